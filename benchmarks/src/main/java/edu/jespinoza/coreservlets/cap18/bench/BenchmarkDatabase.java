@@ -0,0 +1,111 @@
+package edu.jespinoza.coreservlets.cap18.bench;
+
+import org.h2.tools.Server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Random;
+
+/**
+ * An H2 database inside the benchmark JVM, seeded with a table
+ * of the requested shape. Over "mem" the driver talks to the
+ * database directly; over "tcp" it goes through a local H2 TCP
+ * server, so connections cost a real socket handshake.
+ */
+
+public class BenchmarkDatabase implements AutoCloseable {
+    public static final String DRIVER = "org.h2.Driver";
+    public static final String USERNAME = "sa";
+    public static final String PASSWORD = "";
+    public static final String TABLE_NAME = "BENCH";
+
+    private final Server server;
+    private final String url;
+    private final Connection keepAlive;
+
+    public BenchmarkDatabase(String name, String transport) throws SQLException {
+        if(transport.equals("tcp")) {
+            server = Server.createTcpServer("-tcpPort", "0", "-ifNotExists").start();
+            url = "jdbc:h2:tcp://localhost:" + server.getPort() + "/mem:" + name
+                    + ";DB_CLOSE_DELAY=-1";
+        } else {
+            server = null;
+            url = "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1";
+        }
+        keepAlive = DriverManager.getConnection(url, USERNAME, PASSWORD);
+    }
+
+    public String getURL() {
+        return url;
+    }
+
+    /**
+     * (Re)create BENCH with an INTEGER id, a DOUBLE, a TIMESTAMP
+     * and width VARCHAR columns; each non-id value is null with
+     * probability nullRatio. The data is the same on every run.
+     */
+    public void seed(int rows, int width, double nullRatio) throws SQLException {
+        StringBuilder format = new StringBuilder("(ID INT PRIMARY KEY, AMOUNT DOUBLE, CREATED TIMESTAMP");
+        StringBuilder insert = new StringBuilder("INSERT INTO " + TABLE_NAME + " VALUES (?, ?, ?");
+        for(int i = 1; i <= width; ++i) {
+            format.append(", C").append(i).append(" VARCHAR(32)");
+            insert.append(", ?");
+        }
+        format.append(')');
+        insert.append(')');
+        Random random = new Random(42);
+        try (Statement statement = keepAlive.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS " + TABLE_NAME);
+            statement.execute("CREATE TABLE " + TABLE_NAME + " " + format);
+        }
+        keepAlive.setAutoCommit(false);
+        try (PreparedStatement statement = keepAlive.prepareStatement(insert.toString())) {
+            long start = Timestamp.valueOf("2020-01-01 00:00:00").getTime();
+            for(int row = 0; row < rows; ++row) {
+                statement.setInt(1, row);
+                if(random.nextDouble() < nullRatio) {
+                    statement.setNull(2, Types.DOUBLE);
+                } else {
+                    statement.setDouble(2, random.nextInt(1000000) / 100.0);
+                }
+                if(random.nextDouble() < nullRatio) {
+                    statement.setNull(3, Types.TIMESTAMP);
+                } else {
+                    statement.setTimestamp(3, new Timestamp(start + row * 60000L));
+                }
+                for(int i = 1; i <= width; ++i) {
+                    if(random.nextDouble() < nullRatio) {
+                        statement.setNull(3 + i, Types.VARCHAR);
+                    } else {
+                        statement.setString(3 + i, "value-" + random.nextInt(100000));
+                    }
+                }
+                statement.addBatch();
+                if(row % 1000 == 999) {
+                    statement.executeBatch();
+                }
+            }
+            statement.executeBatch();
+            keepAlive.commit();
+        } finally {
+            keepAlive.setAutoCommit(true);
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try (Statement statement = keepAlive.createStatement()) {
+            statement.execute("DROP ALL OBJECTS");
+        } finally {
+            keepAlive.close();
+            if(server != null) {
+                server.stop();
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package edu.jespinoza.coreservlets.cap18.bench;
+
+import edu.jespinoza.coreservlets.cap18.ConnectionPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Getting a connection, using it for nothing and giving it
+ * back: a fresh DriverManager connection (what the driver/url
+ * forms of DatabaseUtilites do) against a ConnectionPool.
+ * Run over "tcp" to include a real socket handshake.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ConnectionAcquisitionBenchmark {
+    @Param({"mem", "tcp"})
+    public String transport;
+
+    private BenchmarkDatabase database;
+    private ConnectionPool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        database = new BenchmarkDatabase("acquire", transport);
+        database.seed(1, 1, 0);
+        pool = new ConnectionPool(BenchmarkDatabase.DRIVER, database.getURL(),
+                BenchmarkDatabase.USERNAME, BenchmarkDatabase.PASSWORD, 4, 8);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        pool.close();
+        database.close();
+    }
+
+    @Benchmark
+    public boolean driverManager() throws SQLException {
+        try (Connection connection = DriverManager.getConnection(database.getURL(),
+                BenchmarkDatabase.USERNAME, BenchmarkDatabase.PASSWORD)) {
+            return connection.getAutoCommit();
+        }
+    }
+
+    @Benchmark
+    public boolean pooled() throws SQLException {
+        try (Connection connection = pool.getConnection()) {
+            return connection.getAutoCommit();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package edu.jespinoza.coreservlets.cap18.bench;
+
+import edu.jespinoza.coreservlets.cap18.ConnectionPool;
+import edu.jespinoza.coreservlets.cap18.DBResults;
+import edu.jespinoza.coreservlets.cap18.DatabaseUtilites;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning a full-table query into rows: the String[]
+ * DBResults, the columnar DBResults, and streaming the rows
+ * past a consumer without keeping them.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryMaterializationBenchmark {
+    @Param({"1000", "100000"})
+    public int rows;
+
+    @Param({"4", "16"})
+    public int width;
+
+    @Param({"0.0", "0.2"})
+    public double nullRatio;
+
+    private BenchmarkDatabase database;
+    private ConnectionPool pool;
+    private String query;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        database = new BenchmarkDatabase("materialize", "mem");
+        database.seed(rows, width, nullRatio);
+        pool = new ConnectionPool(BenchmarkDatabase.DRIVER, database.getURL(),
+                BenchmarkDatabase.USERNAME, BenchmarkDatabase.PASSWORD, 1, 4);
+        query = "SELECT * FROM " + BenchmarkDatabase.TABLE_NAME;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        pool.close();
+        database.close();
+    }
+
+    @Benchmark
+    public DBResults rowResults() {
+        return DatabaseUtilites.getQueryResults(pool, query);
+    }
+
+    @Benchmark
+    public DBResults columnarResults() {
+        return DatabaseUtilites.getColumnarQueryResults(pool, query);
+    }
+
+    @Benchmark
+    public long streamedRows(Blackhole blackhole) {
+        return DatabaseUtilites.forEachRow(pool, query, 1000, blackhole::consume);
+    }
+}
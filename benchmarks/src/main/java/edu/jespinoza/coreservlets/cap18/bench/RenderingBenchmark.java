@@ -0,0 +1,94 @@
+package edu.jespinoza.coreservlets.cap18.bench;
+
+import edu.jespinoza.coreservlets.cap18.ConnectionPool;
+import edu.jespinoza.coreservlets.cap18.DBResults;
+import edu.jespinoza.coreservlets.cap18.DatabaseUtilites;
+import edu.jespinoza.coreservlets.cap18.TextTablePrinter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of rendering an already materialized DBResults as HTML
+ * and as a text table. Output goes to null sinks, so only the
+ * formatting is measured.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderingBenchmark {
+    @Param({"1000", "100000"})
+    public int rows;
+
+    @Param({"4", "16"})
+    public int width;
+
+    @Param({"0.0", "0.2"})
+    public double nullRatio;
+
+    private DBResults results;
+    private PrintStream originalOut;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        try (BenchmarkDatabase database = new BenchmarkDatabase("render", "mem")) {
+            database.seed(rows, width, nullRatio);
+            try (ConnectionPool pool = new ConnectionPool(BenchmarkDatabase.DRIVER,
+                    database.getURL(), BenchmarkDatabase.USERNAME,
+                    BenchmarkDatabase.PASSWORD, 1, 1)) {
+                results = DatabaseUtilites.getQueryResults(pool,
+                        "SELECT * FROM " + BenchmarkDatabase.TABLE_NAME);
+            }
+        }
+        // printTableData always writes to System.out.
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(originalOut);
+    }
+
+    @Benchmark
+    public String htmlString() {
+        return results.toHTMLTable("#FFAD00");
+    }
+
+    @Benchmark
+    public void htmlToWriter() throws IOException {
+        results.writeHTMLTable(Writer.nullWriter(), "#FFAD00");
+    }
+
+    @Benchmark
+    public void textTableFixedWidth() {
+        DatabaseUtilites.printTableData(BenchmarkDatabase.TABLE_NAME, results, 24, true);
+    }
+
+    @Benchmark
+    public void textTableAutoWidth() {
+        new TextTablePrinter(Writer.nullWriter()).print(BenchmarkDatabase.TABLE_NAME,
+                results, true);
+    }
+}
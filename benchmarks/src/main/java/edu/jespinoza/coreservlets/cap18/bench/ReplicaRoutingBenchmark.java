@@ -0,0 +1,117 @@
+package edu.jespinoza.coreservlets.cap18.bench;
+
+import edu.jespinoza.coreservlets.cap18.ConnectionPool;
+import edu.jespinoza.coreservlets.cap18.DBResults;
+import edu.jespinoza.coreservlets.cap18.RoutingDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read throughput through a RoutingDataSource as replicas are
+ * added. Each backend is its own H2 database that serves at most
+ * BACKEND_CAPACITY queries at a time, each taking SERVICE_MILLIS
+ * (a sleep, so the backends do not compete for CPU), so a single
+ * database caps out at about BACKEND_CAPACITY / SERVICE_MILLIS
+ * queries per millisecond. With slowReplica, the last replica
+ * takes ten times as long, and the latency-aware choice should
+ * send it little traffic.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(32)
+public class ReplicaRoutingBenchmark {
+    public static final int BACKEND_CAPACITY = 2;
+    public static final int SERVICE_MILLIS = 1;
+    private static final int ROWS = 1000;
+
+    @Param({"0", "1", "2", "4"})
+    public int replicas;
+
+    @Param({"false", "true"})
+    public boolean slowReplica;
+
+    private BenchmarkDatabase[] databases;
+    private ConnectionPool[] pools;
+    private RoutingDataSource router;
+
+    /** The work of a query on an ordinary backend. */
+    public static void serviceTime() throws InterruptedException {
+        Thread.sleep(SERVICE_MILLIS);
+    }
+
+    /** The work of a query on the slow backend. */
+    public static void slowServiceTime() throws InterruptedException {
+        Thread.sleep(SERVICE_MILLIS * 10);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        databases = new BenchmarkDatabase[replicas + 1];
+        pools = new ConnectionPool[replicas + 1];
+        for(int i = 0; i <= replicas; ++i) {
+            databases[i] = new BenchmarkDatabase("backend" + i, "mem");
+            databases[i].seed(ROWS, 1, 0);
+            String method = slowReplica && replicas > 1 && i == replicas
+                    ? "slowServiceTime" : "serviceTime";
+            try (Connection connection = DriverManager.getConnection(databases[i].getURL(),
+                    BenchmarkDatabase.USERNAME, BenchmarkDatabase.PASSWORD);
+                 Statement statement = connection.createStatement()) {
+                statement.execute("CREATE ALIAS SERVICE_TIME FOR \""
+                        + ReplicaRoutingBenchmark.class.getName() + "." + method + "\"");
+            }
+            pools[i] = new ConnectionPool(BenchmarkDatabase.DRIVER, databases[i].getURL(),
+                    BenchmarkDatabase.USERNAME, BenchmarkDatabase.PASSWORD,
+                    BACKEND_CAPACITY, BACKEND_CAPACITY);
+        }
+        ConnectionPool[] replicaPools = new ConnectionPool[replicas];
+        System.arraycopy(pools, 1, replicaPools, 0, replicas);
+        router = new RoutingDataSource(pools[0], replicaPools);
+        router.setHealthCheckInterval(100);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        System.out.println();
+        System.out.println(router);
+        for(RoutingDataSource.Backend backend : router.getReplicas()) {
+            System.out.println(backend.getPool().getURL() + ": "
+                    + backend.getRequestCount() + " reads");
+        }
+        router.close();
+        for(int i = 0; i <= replicas; ++i) {
+            pools[i].close();
+            databases[i].close();
+        }
+    }
+
+    @Benchmark
+    public DBResults read() {
+        return router.getQueryResults("SELECT SERVICE_TIME(), ID, AMOUNT FROM "
+                        + BenchmarkDatabase.TABLE_NAME + " WHERE ID = ?",
+                ThreadLocalRandom.current().nextInt(ROWS));
+    }
+}
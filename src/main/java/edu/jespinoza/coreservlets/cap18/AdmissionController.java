@@ -0,0 +1,555 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Limits the queries run against one datasource at a time, so that
+ * under a burst the extra callers wait a bounded time (or are turned
+ * away at once) instead of piling onto the database until every
+ * query slows down.
+ * <ul>
+ * 		<li>At most concurrencyLimit queries run at once. The rest
+ * 			wait in order of arrival, INTERACTIVE ones ahead of
+ * 			BATCH ones, and BATCH queries never take more than
+ * 			batchLimit of the running slots.</li>
+ * 		<li>A caller finding maxQueueLength queries already waiting
+ * 			is rejected straight away, and one still waiting after
+ * 			queueTimeout milliseconds gives up; both get an
+ * 			SQLTransientException (SQLTimeoutException for the
+ * 			latter), meaning try again later.</li>
+ * 		<li>An admitted query has queryTimeout milliseconds to run.
+ * 			Its statement gets the matching setQueryTimeout, and is
+ * 			cancelled at the deadline in case the driver does not
+ * 			keep to it.</li>
+ * 		<li>Every limit can be changed while queries run: raising
+ * 			concurrencyLimit admits waiting queries at once, lowering
+ * 			it lets those running finish.</li>
+ * </ul>
+ * A datasource has no controller, and no limit beyond its pool's
+ * maxSize, until configure is called for it. The queries run by
+ * DatabaseUtilites through a pool, by QueryExecutor and by
+ * QueryServer go through its controller; streaming reads
+ * (forEachRow, exportQueryResults) count as BATCH.
+ */
+
+public class AdmissionController {
+    public enum Priority { INTERACTIVE, BATCH }
+
+    public static final int DEFAULT_MAX_QUEUE_LENGTH = 100;
+    public static final long DEFAULT_QUEUE_TIMEOUT = 10000;
+
+    private static final Map<String, AdmissionController> CONTROLLERS = new ConcurrentHashMap<>();
+    private static final Permit UNLIMITED = new Permit(null, Priority.INTERACTIVE, 0);
+    // How often a waiter that can be cancelled checks whether it has been.
+    private static final long CANCEL_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    // Cancels the statements of queries past their deadline.
+    private static final ScheduledThreadPoolExecutor WATCHDOG = createWatchdog();
+
+    private final String dataSource;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Waiter> interactiveQueue = new ArrayDeque<>();
+    private final ArrayDeque<Waiter> batchQueue = new ArrayDeque<>();
+    private int concurrencyLimit;
+    // 0 until set, meaning concurrencyLimit.
+    private int batchLimit;
+    private int maxQueueLength = DEFAULT_MAX_QUEUE_LENGTH;
+    private volatile long queueTimeout = DEFAULT_QUEUE_TIMEOUT;
+    private volatile long queryTimeout;
+    private int running;
+    private int runningBatch;
+    private long admittedCount;
+    private long rejectedCount;
+    private long timedOutCount;
+    private final AtomicLong cancelledCount = new AtomicLong();
+
+    private AdmissionController(String dataSource, int concurrencyLimit) {
+        this.dataSource = dataSource;
+        this.concurrencyLimit = concurrencyLimit;
+    }
+
+    private static ScheduledThreadPoolExecutor createWatchdog() {
+        ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "AdmissionController-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog.setRemoveOnCancelPolicy(true);
+        return watchdog;
+    }
+
+    /**
+     * The controller of the pool's datasource, created with the
+     * given limit the first time; later calls just set the limit.
+     */
+    public static AdmissionController configure(ConnectionPool pool,
+                                                int concurrencyLimit) {
+        checkLimit(concurrencyLimit);
+        AdmissionController controller = CONTROLLERS.computeIfAbsent(pool.getURL(),
+                url -> new AdmissionController(url, concurrencyLimit));
+        controller.setConcurrencyLimit(concurrencyLimit);
+        return controller;
+    }
+
+    /** The controller of the pool's datasource, or null if it has none. */
+    public static AdmissionController of(ConnectionPool pool) {
+        return CONTROLLERS.get(pool.getURL());
+    }
+
+    /**
+     * Stop controlling the pool's datasource. Queries already
+     * admitted or waiting finish under the old controller.
+     */
+    public static void remove(ConnectionPool pool) {
+        CONTROLLERS.remove(pool.getURL());
+    }
+
+    /**
+     * Wait for a turn to query the pool's datasource, if it has a
+     * controller; deadline (a System.nanoTime value, or 0 for none)
+     * also bounds the wait and the query.
+     */
+    static Permit admit(ConnectionPool pool, Priority priority, long deadline)
+            throws SQLException {
+        return admit(pool, priority, deadline, null);
+    }
+
+    /**
+     * Like the previous method, but gives up waiting soon after
+     * cancelled (if not null) returns true, without needing the
+     * thread to be interrupted.
+     */
+    static Permit admit(ConnectionPool pool, Priority priority, long deadline,
+                        BooleanSupplier cancelled) throws SQLException {
+        AdmissionController controller = of(pool);
+        return controller == null ? UNLIMITED
+                : controller.acquire(priority, deadline, cancelled);
+    }
+
+    /** A permit that limits nothing, for queries outside any controller. */
+    static Permit unlimited() {
+        return UNLIMITED;
+    }
+
+    private static void checkLimit(int limit) {
+        if(limit < 1) {
+            throw new IllegalArgumentException("Limit must be positive: " + limit);
+        }
+    }
+
+    public String getDataSource() {
+        return dataSource;
+    }
+
+    public int getConcurrencyLimit() {
+        lock.lock();
+        try {
+            return concurrencyLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Queries that may run at once. */
+    public void setConcurrencyLimit(int concurrencyLimit) {
+        checkLimit(concurrencyLimit);
+        lock.lock();
+        try {
+            this.concurrencyLimit = concurrencyLimit;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getBatchLimit() {
+        lock.lock();
+        try {
+            return effectiveBatchLimit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * BATCH queries that may run at once; concurrencyLimit unless
+     * set (and never more). Keeping it below concurrencyLimit
+     * leaves room for INTERACTIVE queries however many batch jobs
+     * are waiting.
+     */
+    public void setBatchLimit(int batchLimit) {
+        checkLimit(batchLimit);
+        lock.lock();
+        try {
+            this.batchLimit = batchLimit;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Callers hold the lock.
+    private int effectiveBatchLimit() {
+        return batchLimit == 0 ? concurrencyLimit : Math.min(batchLimit, concurrencyLimit);
+    }
+
+    public int getMaxQueueLength() {
+        lock.lock();
+        try {
+            return maxQueueLength;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Queries that may wait for a turn; any more are rejected. */
+    public void setMaxQueueLength(int maxQueueLength) {
+        if(maxQueueLength < 0) {
+            throw new IllegalArgumentException("Queue length must not be negative: "
+                    + maxQueueLength);
+        }
+        lock.lock();
+        try {
+            this.maxQueueLength = maxQueueLength;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getQueueTimeout() {
+        return queueTimeout;
+    }
+
+    /** Milliseconds a query may wait for its turn. */
+    public void setQueueTimeout(long queueTimeout) {
+        this.queueTimeout = queueTimeout;
+    }
+
+    public long getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    /** Milliseconds an admitted query may run; 0, the default, for no limit. */
+    public void setQueryTimeout(long queryTimeout) {
+        this.queryTimeout = queryTimeout;
+    }
+
+    /** Queries running now, which may briefly exceed a lowered limit. */
+    public int getRunningCount() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueueLength() {
+        lock.lock();
+        try {
+            return interactiveQueue.size() + batchQueue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAdmittedCount() {
+        lock.lock();
+        try {
+            return admittedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Queries turned away because the queue was full. */
+    public long getRejectedCount() {
+        lock.lock();
+        try {
+            return rejectedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Queries that gave up waiting for a turn. */
+    public long getTimedOutCount() {
+        lock.lock();
+        try {
+            return timedOutCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Queries cancelled for running past their deadline. */
+    public long getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    /**
+     * Wait for a turn to run a query, up to queueTimeout. Close
+     * the permit once the query is done with.
+     */
+    public Permit acquire(Priority priority) throws SQLException {
+        return acquire(priority, 0);
+    }
+
+    Permit acquire(Priority priority, long deadline) throws SQLException {
+        return acquire(priority, deadline, null);
+    }
+
+    private Permit acquire(Priority priority, long deadline, BooleanSupplier cancelled)
+            throws SQLException {
+        long now = System.nanoTime();
+        long waitUntil = now + TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+        if(deadline != 0 && deadline - waitUntil < 0) {
+            waitUntil = deadline;
+        }
+        Waiter waiter;
+        lock.lock();
+        try {
+            if(canRun(priority)) {
+                return admitted(priority, deadline);
+            }
+            if(interactiveQueue.size() + batchQueue.size() >= maxQueueLength) {
+                ++rejectedCount;
+                throw new SQLTransientException("Too many queries waiting for "
+                        + dataSource + " (" + running + " running)");
+            }
+            waiter = new Waiter(lock.newCondition());
+            queueOf(priority).addLast(waiter);
+            try {
+                long remaining = waitUntil - System.nanoTime();
+                while(!waiter.granted && remaining > 0) {
+                    if(cancelled == null) {
+                        remaining = waiter.condition.awaitNanos(remaining);
+                    } else if(cancelled.getAsBoolean()) {
+                        queueOf(priority).remove(waiter);
+                        throw new SQLTransientException("Cancelled waiting to query "
+                                + dataSource);
+                    } else {
+                        waiter.condition.awaitNanos(Math.min(remaining, CANCEL_POLL_NANOS));
+                        remaining = waitUntil - System.nanoTime();
+                    }
+                }
+            } catch (InterruptedException e) {
+                if(!waiter.granted) {
+                    queueOf(priority).remove(waiter);
+                    Thread.currentThread().interrupt();
+                    throw new SQLTransientException("Interrupted waiting to query "
+                            + dataSource, e);
+                }
+                // Admitted just as it was interrupted: keep the turn
+                // and leave the interrupt for the query to notice.
+                Thread.currentThread().interrupt();
+            }
+            if(!waiter.granted) {
+                queueOf(priority).remove(waiter);
+                ++timedOutCount;
+                throw new SQLTimeoutException("Timed out after "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - now)
+                        + " ms waiting to query " + dataSource + " (" + running
+                        + " running)");
+            }
+            // dispatch already counted it as running.
+            ++admittedCount;
+            return new Permit(this, priority, queryDeadline(deadline));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Callers hold the lock. A new query only runs straight away if
+    // nobody it should not overtake is waiting.
+    private boolean canRun(Priority priority) {
+        if(running >= concurrencyLimit || !interactiveQueue.isEmpty()) {
+            return false;
+        }
+        return priority == Priority.INTERACTIVE
+                || (batchQueue.isEmpty() && runningBatch < effectiveBatchLimit());
+    }
+
+    private Permit admitted(Priority priority, long deadline) {
+        ++running;
+        if(priority == Priority.BATCH) {
+            ++runningBatch;
+        }
+        ++admittedCount;
+        return new Permit(this, priority, queryDeadline(deadline));
+    }
+
+    private long queryDeadline(long deadline) {
+        long timeout = queryTimeout;
+        if(timeout <= 0) {
+            return deadline;
+        }
+        long own = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        return deadline == 0 || own - deadline < 0 ? own : deadline;
+    }
+
+    private ArrayDeque<Waiter> queueOf(Priority priority) {
+        return priority == Priority.INTERACTIVE ? interactiveQueue : batchQueue;
+    }
+
+    // Callers hold the lock. Hand free slots to the waiters, every
+    // INTERACTIVE one before any BATCH one.
+    private void dispatch() {
+        while(running < concurrencyLimit) {
+            Waiter waiter = interactiveQueue.pollFirst();
+            if(waiter == null) {
+                if(batchQueue.isEmpty() || runningBatch >= effectiveBatchLimit()) {
+                    return;
+                }
+                waiter = batchQueue.pollFirst();
+                ++runningBatch;
+            }
+            ++running;
+            waiter.granted = true;
+            waiter.condition.signal();
+        }
+    }
+
+    private void release(Priority priority) {
+        lock.lock();
+        try {
+            --running;
+            if(priority == Priority.BATCH) {
+                --runningBatch;
+            }
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return dataSource + ": " + running + "/" + concurrencyLimit + " running, "
+                    + (interactiveQueue.size() + batchQueue.size()) + " waiting";
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Waiter {
+        final Condition condition;
+        boolean granted;
+
+        Waiter(Condition condition) {
+            this.condition = condition;
+        }
+    }
+
+    /**
+     * One query's turn on the datasource. Give its statement to
+     * watch, unwatch it before its connection goes back to the
+     * pool, and close the permit when the query is finished.
+     */
+    public static class Permit implements AutoCloseable {
+        private final AdmissionController controller;
+        private final Priority priority;
+        private final long deadline;
+        private ScheduledFuture<?> timer;
+        // What the timer will run, or null once unwatched.
+        private Runnable canceller;
+        private boolean closed;
+
+        private Permit(AdmissionController controller, Priority priority,
+                       long deadline) {
+            this.controller = controller;
+            this.priority = priority;
+            this.deadline = deadline;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        /**
+         * Whole seconds left before the deadline, at least 1, for
+         * Statement.setQueryTimeout; 0 if there is no deadline.
+         */
+        public int getQueryTimeout() {
+            if(deadline == 0) {
+                return 0;
+            }
+            long remaining = deadline - System.nanoTime();
+            return (int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(remaining + 999999999));
+        }
+
+        /** Cancel the statement if it is still running at the deadline. */
+        public void watch(Statement statement) {
+            watch(() -> {
+                try {
+                    statement.cancel();
+                } catch (SQLException sqle) {
+                    System.err.println("Error cancelling query: " + sqle);
+                }
+            });
+        }
+
+        /** Like the previous method, for a query cancelled some other way. */
+        public synchronized void watch(Runnable canceller) {
+            if(deadline == 0 || closed || controller == null) {
+                return;
+            }
+            unwatch();
+            this.canceller = canceller;
+            timer = WATCHDOG.schedule(() -> expire(canceller),
+                    Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Stop watching. Once this returns the statement will not
+         * be cancelled, so call it before the statement's
+         * connection goes back to the pool, where a cached
+         * statement passes to the next borrower.
+         */
+        public synchronized void unwatch() {
+            if(timer != null) {
+                timer.cancel(false);
+                timer = null;
+            }
+            canceller = null;
+        }
+
+        // Runs under the same lock as unwatch, so a cancel under
+        // way finishes before unwatch returns, and one that fires
+        // afterwards finds its canceller gone.
+        private synchronized void expire(Runnable canceller) {
+            if(this.canceller == canceller) {
+                controller.cancelledCount.incrementAndGet();
+                canceller.run();
+            }
+        }
+
+        /** Give the turn to the next query; further calls do nothing. */
+        @Override
+        public void close() {
+            synchronized (this) {
+                if(closed || controller == null) {
+                    return;
+                }
+                closed = true;
+                unwatch();
+            }
+            controller.release(priority);
+        }
+    }
+}
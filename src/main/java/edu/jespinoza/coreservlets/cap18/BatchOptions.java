@@ -0,0 +1,71 @@
+package edu.jespinoza.coreservlets.cap18;
+
+/**
+ * Settings for the batched form of DatabaseUtilites.createTable.
+ * <ul>
+ * 		<li>batchSize: rows sent to the database per round trip.</li>
+ * 		<li>commitInterval: batches per commit. 0 (the default) loads
+ * 			everything in a single transaction.</li>
+ * 		<li>multiRowValues: send each batch as one
+ * 			INSERT ... VALUES (...), (...) statement when the database
+ * 			accepts that syntax, instead of a JDBC batch of single-row
+ * 			inserts.</li>
+ * 		<li>stopOnError: give up at the first failed batch. Otherwise
+ * 			the failed batch (and anything else not yet committed) is
+ * 			rolled back and loading carries on with the next one.</li>
+ * </ul>
+ */
+
+public class BatchOptions {
+    private int batchSize = 500;
+    private int commitInterval = 0;
+    private boolean multiRowValues = true;
+    private boolean stopOnError = true;
+
+    public BatchOptions() {
+    }
+
+    public BatchOptions(int batchSize, int commitInterval) {
+        setBatchSize(batchSize);
+        setCommitInterval(commitInterval);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if(batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    public int getCommitInterval() {
+        return commitInterval;
+    }
+
+    public void setCommitInterval(int commitInterval) {
+        if(commitInterval < 0) {
+            throw new IllegalArgumentException("Commit interval must not be negative: "
+                    + commitInterval);
+        }
+        this.commitInterval = commitInterval;
+    }
+
+    public boolean isMultiRowValues() {
+        return multiRowValues;
+    }
+
+    public void setMultiRowValues(boolean multiRowValues) {
+        this.multiRowValues = multiRowValues;
+    }
+
+    public boolean isStopOnError() {
+        return stopOnError;
+    }
+
+    public void setStopOnError(boolean stopOnError) {
+        this.stopOnError = stopOnError;
+    }
+}
@@ -0,0 +1,130 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What happened to each batch sent by the batched form of
+ * DatabaseUtilites.createTable.
+ */
+
+public class BatchReport {
+    private final List<Batch> batches = new ArrayList<>();
+
+    void add(Batch batch) {
+        batches.add(batch);
+    }
+
+    public List<Batch> getBatches() {
+        return Collections.unmodifiableList(batches);
+    }
+
+    /** Rows that were inserted and committed. */
+    public long getRowsInserted() {
+        long rows = 0;
+        for(Batch batch : batches) {
+            if(batch.isCommitted()) {
+                rows += batch.getRowsInserted();
+            }
+        }
+        return rows;
+    }
+
+    public List<Batch> getFailedBatches() {
+        List<Batch> failed = new ArrayList<>();
+        for(Batch batch : batches) {
+            if(batch.getFailure() != null) {
+                failed.add(batch);
+            }
+        }
+        return failed;
+    }
+
+    public boolean isSuccessful() {
+        for(Batch batch : batches) {
+            if(!batch.isCommitted()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** One round trip's worth of rows. */
+    public static class Batch {
+        private final int firstRow;
+        private final int size;
+        private int[] updateCounts = new int[0];
+        private SQLException failure;
+        private boolean committed;
+
+        Batch(int firstRow, int size) {
+            this.firstRow = firstRow;
+            this.size = size;
+        }
+
+        /** Index in tableRows of the first row in this batch. */
+        public int getFirstRow() {
+            return firstRow;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * The counts the driver reported. A JDBC batch has one per
+         * row, possibly Statement.SUCCESS_NO_INFO or EXECUTE_FAILED;
+         * a multi-row insert has a single count for the whole batch.
+         */
+        public int[] getUpdateCounts() {
+            return updateCounts.clone();
+        }
+
+        void setUpdateCounts(int[] updateCounts) {
+            this.updateCounts = updateCounts;
+        }
+
+        /** Rows inserted, counting SUCCESS_NO_INFO entries as one row. */
+        public int getRowsInserted() {
+            if(failure != null) {
+                return 0;
+            }
+            int rows = 0;
+            for(int count : updateCounts) {
+                if(count == Statement.SUCCESS_NO_INFO) {
+                    ++rows;
+                } else if(count > 0) {
+                    rows += count;
+                }
+            }
+            return rows;
+        }
+
+        public SQLException getFailure() {
+            return failure;
+        }
+
+        void setFailure(SQLException failure) {
+            this.failure = failure;
+        }
+
+        /** False if the batch failed or was rolled back with a failed one. */
+        public boolean isCommitted() {
+            return committed;
+        }
+
+        void setCommitted(boolean committed) {
+            this.committed = committed;
+        }
+
+        @Override
+        public String toString() {
+            return "Batch[rows " + firstRow + "-" + (firstRow + size - 1)
+                    + (failure != null ? ", failed: " + failure.getMessage()
+                    : committed ? ", committed" : ", rolled back") + "]";
+        }
+    }
+}
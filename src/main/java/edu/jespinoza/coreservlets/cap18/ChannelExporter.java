@@ -0,0 +1,234 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Types;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Base of the exporters that write rows to a channel in a text
+ * format (see CsvExporter and JsonLinesExporter).
+ * <ul>
+ * 		<li>Every value is encoded as UTF-8 straight into one reused
+ * 			direct buffer, which goes to the channel whenever it
+ * 			fills up; no String is built per line.</li>
+ * 		<li>Integer columns of a columnar DBResults are written from
+ * 			their primitive values without becoming Strings at all.</li>
+ * 		<li>A RowSource (a QueryStream, say) is exported as it is
+ * 			read, so an extract of any size runs in constant memory.</li>
+ * 		<li>Given a Path, the output can be gzipped on the way.</li>
+ * </ul>
+ * close writes out whatever is buffered and closes the channel,
+ * which for gzipped output also writes the gzip trailer.
+ */
+
+public abstract class ChannelExporter implements Closeable, Flushable {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] LONG_MIN_VALUE =
+            Long.toString(Long.MIN_VALUE).getBytes();
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final byte[] digits = new byte[20];
+
+    protected ChannelExporter(WritableByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, 16));
+    }
+
+    /** Create (or truncate) the file, gzipping what is written if asked. */
+    protected static WritableByteChannel open(Path path, boolean gzip)
+            throws IOException {
+        FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        if(!gzip) {
+            return file;
+        }
+        return Channels.newChannel(new GZIPOutputStream(
+                Channels.newOutputStream(file), DEFAULT_BUFFER_SIZE));
+    }
+
+    /** Write the column names and then every row. Returns the row count. */
+    public long export(DBResults results) throws IOException {
+        int columnCount = results.getColumnCount();
+        boolean[] integer = new boolean[columnCount];
+        for(int column = 0; column < columnCount; ++column) {
+            integer[column] = results.isColumnar()
+                    && isIntegerType(results.getColumnType(column));
+        }
+        writeHeader(results.getColumnNames());
+        int rowCount = results.getRowCount();
+        for(int row = 0; row < rowCount; ++row) {
+            beginRow();
+            for(int column = 0; column < columnCount; ++column) {
+                if(results.isNull(row, column)) {
+                    writeNull(column);
+                } else if(integer[column]) {
+                    writeNumber(column, results.getLong(row, column));
+                } else {
+                    writeValue(column, results.getString(row, column));
+                }
+            }
+            endRow();
+        }
+        flush();
+        return rowCount;
+    }
+
+    /**
+     * Write the column names and then the rows as they are read.
+     * Returns the number of rows written.
+     */
+    public long export(RowSource rows) throws IOException {
+        writeHeader(rows.getColumnNames());
+        long count = 0;
+        while(rows.hasNext()) {
+            String[] row = rows.next();
+            beginRow();
+            for(int column = 0; column < row.length; ++column) {
+                if(row[column] == null) {
+                    writeNull(column);
+                } else {
+                    writeValue(column, row[column]);
+                }
+            }
+            endRow();
+            ++count;
+        }
+        flush();
+        return count;
+    }
+
+    protected abstract void writeHeader(String[] columnNames) throws IOException;
+
+    protected abstract void beginRow() throws IOException;
+
+    protected abstract void writeValue(int column, String value) throws IOException;
+
+    protected abstract void writeNumber(int column, long value) throws IOException;
+
+    protected abstract void writeNull(int column) throws IOException;
+
+    protected abstract void endRow() throws IOException;
+
+    private static boolean isIntegerType(int sqlType) {
+        return sqlType == Types.TINYINT || sqlType == Types.SMALLINT
+                || sqlType == Types.INTEGER || sqlType == Types.BIGINT;
+    }
+
+    /** Make room for at least count bytes. */
+    protected final void reserve(int count) throws IOException {
+        if(buffer.remaining() < count) {
+            drain();
+        }
+    }
+
+    protected final void put(byte b) throws IOException {
+        if(!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put(b);
+    }
+
+    protected final void put(byte[] bytes) throws IOException {
+        int offset = 0;
+        while(offset < bytes.length) {
+            if(!buffer.hasRemaining()) {
+                drain();
+            }
+            int count = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, count);
+            offset += count;
+        }
+    }
+
+    /** A character as UTF-8; low is the one after it, if any. */
+    protected final int putChar(char c, char low) throws IOException {
+        reserve(4);
+        if(c < 0x80) {
+            buffer.put((byte) c);
+        } else if(c < 0x800) {
+            buffer.put((byte) (0xc0 | (c >> 6)));
+            buffer.put((byte) (0x80 | (c & 0x3f)));
+        } else if(Character.isHighSurrogate(c) && Character.isLowSurrogate(low)) {
+            int codePoint = Character.toCodePoint(c, low);
+            buffer.put((byte) (0xf0 | (codePoint >> 18)));
+            buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+            buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+            buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+            return 2;
+        } else if(Character.isSurrogate(c)) {
+            buffer.put((byte) '?');
+        } else {
+            buffer.put((byte) (0xe0 | (c >> 12)));
+            buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+            buffer.put((byte) (0x80 | (c & 0x3f)));
+        }
+        return 1;
+    }
+
+    /** The characters of text, as UTF-8, with no escaping. */
+    protected final void putText(String text) throws IOException {
+        int length = text.length();
+        int i = 0;
+        while(i < length) {
+            char c = text.charAt(i);
+            if(c < 0x80 && buffer.hasRemaining()) {
+                buffer.put((byte) c);
+                ++i;
+            } else {
+                i += putChar(c, i + 1 < length ? text.charAt(i + 1) : 0);
+            }
+        }
+    }
+
+    /** A long in decimal, without going through a String. */
+    protected final void putLong(long value) throws IOException {
+        if(value == Long.MIN_VALUE) {
+            put(LONG_MIN_VALUE);
+            return;
+        }
+        reserve(20);
+        if(value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int start = digits.length;
+        do {
+            digits[--start] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while(value != 0);
+        buffer.put(digits, start, digits.length - start);
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /** Send everything buffered so far to the channel. */
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            channel.close();
+        }
+    }
+}
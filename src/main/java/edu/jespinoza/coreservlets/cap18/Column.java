@@ -0,0 +1,500 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.Predicate;
+
+/**
+ * One column of a columnar DBResults. Numbers and dates are
+ * kept in primitive arrays, with a bitmap marking the nulls,
+ * and are only turned into strings when somebody asks. Strings
+ * are dictionary-encoded while the column has few distinct
+ * values (see StringDictionary).
+ */
+
+abstract class Column {
+    private static final int INITIAL_CAPACITY = 16;
+
+    final int sqlType;
+    int size;
+    private long[] nulls = new long[1];
+
+    Column(int sqlType) {
+        this.sqlType = sqlType;
+    }
+
+    /**
+     * Pick the storage for a java.sql.Types column type. String
+     * columns use a dictionary of up to maxDictionarySize values
+     * (0 for none).
+     */
+    static Column forType(int sqlType, int maxDictionarySize) {
+        switch (sqlType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return new IntColumn(sqlType);
+            case Types.BIGINT:
+                return new LongColumn(sqlType);
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return new DoubleColumn(sqlType);
+            case Types.DATE:
+            case Types.TIME:
+            case Types.TIMESTAMP:
+                return new TemporalColumn(sqlType);
+            default:
+                return new StringColumn(sqlType, maxDictionarySize);
+        }
+    }
+
+    /** Append the value in the given (1-based) column of the current row. */
+    abstract void read(ResultSet resultSet, int index) throws SQLException;
+
+    /** Append a value given in the form ResultSet.getString returns it. */
+    abstract void append(String value);
+
+    abstract String getString(int row);
+
+    /** Rough number of heap bytes retained by this column. */
+    abstract long estimateBytes();
+
+    int getInt(int row) {
+        return Math.toIntExact(getLong(row));
+    }
+
+    long getLong(int row) {
+        String value = getString(row);
+        return value == null ? 0 : Long.parseLong(value);
+    }
+
+    double getDouble(int row) {
+        String value = getString(row);
+        return value == null ? 0 : Double.parseDouble(value);
+    }
+
+    /**
+     * Compare the values in two rows, with nulls after every
+     * other value. Call prepareCompare first.
+     */
+    final int compare(int a, int b) {
+        boolean aNull = isNull(a);
+        if(aNull || isNull(b)) {
+            return aNull == isNull(b) ? 0 : aNull ? 1 : -1;
+        }
+        return compareValues(a, b);
+    }
+
+    /** Get ready for compare calls until more rows are added. */
+    void prepareCompare() {
+    }
+
+    int compareValues(int a, int b) {
+        return getString(a).compareTo(getString(b));
+    }
+
+    /** Set the bit of each row in [from, to) whose value passes test. */
+    void match(Predicate<? super String> test, int from, int to, BitSet rows) {
+        for(int row = from; row < to; ++row) {
+            if(!isNull(row) && test.test(getString(row))) {
+                rows.set(row);
+            }
+        }
+    }
+
+    boolean isNull(int row) {
+        return (nulls[row >>> 6] & (1L << row)) != 0;
+    }
+
+    void setNull(int row, boolean isNull) {
+        int word = row >>> 6;
+        if(word >= nulls.length) {
+            nulls = Arrays.copyOf(nulls, Math.max(word + 1, nulls.length * 2));
+        }
+        if(isNull) {
+            nulls[word] |= 1L << row;
+        } else {
+            nulls[word] &= ~(1L << row);
+        }
+    }
+
+    long nullBitmapBytes() {
+        return 16 + 8L * nulls.length;
+    }
+
+    static int grow(int capacity, int needed) {
+        return Math.max(needed, Math.max(INITIAL_CAPACITY, capacity * 2));
+    }
+
+    static String trim(String entry) {
+        if(entry != null && !entry.isEmpty()) {
+            entry = entry.trim();
+        }
+        return entry;
+    }
+
+    static class IntColumn extends Column {
+        private int[] values = new int[0];
+
+        IntColumn(int sqlType) {
+            super(sqlType);
+        }
+
+        private void add(int value, boolean isNull) {
+            if(size == values.length) {
+                values = Arrays.copyOf(values, grow(values.length, size + 1));
+            }
+            values[size] = value;
+            setNull(size++, isNull);
+        }
+
+        @Override
+        void read(ResultSet resultSet, int index) throws SQLException {
+            int value = resultSet.getInt(index);
+            add(value, resultSet.wasNull());
+        }
+
+        @Override
+        void append(String value) {
+            add(value == null ? 0 : Integer.parseInt(value.trim()), value == null);
+        }
+
+        @Override
+        String getString(int row) {
+            return isNull(row) ? null : Integer.toString(values[row]);
+        }
+
+        @Override
+        int getInt(int row) {
+            return values[row];
+        }
+
+        @Override
+        int compareValues(int a, int b) {
+            return Integer.compare(values[a], values[b]);
+        }
+
+        @Override
+        long getLong(int row) {
+            return values[row];
+        }
+
+        @Override
+        double getDouble(int row) {
+            return values[row];
+        }
+
+        @Override
+        long estimateBytes() {
+            return 16 + 4L * values.length + nullBitmapBytes();
+        }
+    }
+
+    static class LongColumn extends Column {
+        long[] values = new long[0];
+
+        LongColumn(int sqlType) {
+            super(sqlType);
+        }
+
+        void add(long value, boolean isNull) {
+            if(size == values.length) {
+                values = Arrays.copyOf(values, grow(values.length, size + 1));
+            }
+            values[size] = value;
+            setNull(size++, isNull);
+        }
+
+        @Override
+        void read(ResultSet resultSet, int index) throws SQLException {
+            long value = resultSet.getLong(index);
+            add(value, resultSet.wasNull());
+        }
+
+        @Override
+        void append(String value) {
+            add(value == null ? 0 : Long.parseLong(value.trim()), value == null);
+        }
+
+        @Override
+        String getString(int row) {
+            return isNull(row) ? null : Long.toString(values[row]);
+        }
+
+        @Override
+        long getLong(int row) {
+            return values[row];
+        }
+
+        @Override
+        double getDouble(int row) {
+            return values[row];
+        }
+
+        @Override
+        int compareValues(int a, int b) {
+            return Long.compare(values[a], values[b]);
+        }
+
+        @Override
+        long estimateBytes() {
+            return 16 + 8L * values.length + nullBitmapBytes();
+        }
+    }
+
+    /**
+     * REAL, FLOAT and DOUBLE values. REAL is single precision, so
+     * its strings are those of the float, as the driver gives them.
+     */
+    static class DoubleColumn extends Column {
+        private double[] values = new double[0];
+
+        DoubleColumn(int sqlType) {
+            super(sqlType);
+        }
+
+        private void add(double value, boolean isNull) {
+            if(size == values.length) {
+                values = Arrays.copyOf(values, grow(values.length, size + 1));
+            }
+            values[size] = value;
+            setNull(size++, isNull);
+        }
+
+        @Override
+        void read(ResultSet resultSet, int index) throws SQLException {
+            double value = resultSet.getDouble(index);
+            add(value, resultSet.wasNull());
+        }
+
+        @Override
+        void append(String value) {
+            add(value == null ? 0 : Double.parseDouble(value.trim()), value == null);
+        }
+
+        @Override
+        String getString(int row) {
+            if(isNull(row)) {
+                return null;
+            }
+            return sqlType == Types.REAL ? Float.toString((float) values[row])
+                    : Double.toString(values[row]);
+        }
+
+        @Override
+        long getLong(int row) {
+            return (long) values[row];
+        }
+
+        @Override
+        int compareValues(int a, int b) {
+            return Double.compare(values[a], values[b]);
+        }
+
+        @Override
+        double getDouble(int row) {
+            return values[row];
+        }
+
+        @Override
+        long estimateBytes() {
+            return 16 + 8L * values.length + nullBitmapBytes();
+        }
+    }
+
+    /**
+     * DATE, TIME and TIMESTAMP values as epoch milliseconds.
+     * Sub-millisecond precision of timestamps is not kept, so a
+     * TIMESTAMP string lacks the microsecond and nanosecond digits
+     * ResultSet.getString gives in row mode.
+     */
+    static class TemporalColumn extends LongColumn {
+        TemporalColumn(int sqlType) {
+            super(sqlType);
+        }
+
+        @Override
+        void read(ResultSet resultSet, int index) throws SQLException {
+            java.util.Date value;
+            if(sqlType == Types.DATE) {
+                value = resultSet.getDate(index);
+            } else if(sqlType == Types.TIME) {
+                value = resultSet.getTime(index);
+            } else {
+                value = resultSet.getTimestamp(index);
+            }
+            add(value == null ? 0 : value.getTime(), value == null);
+        }
+
+        @Override
+        void append(String value) {
+            add(value == null ? 0 : parse(value.trim()), value == null);
+        }
+
+        private long parse(String value) {
+            if(sqlType == Types.DATE) {
+                return Date.valueOf(value).getTime();
+            }
+            if(sqlType == Types.TIME) {
+                return Time.valueOf(value).getTime();
+            }
+            return Timestamp.valueOf(value).getTime();
+        }
+
+        @Override
+        String getString(int row) {
+            if(isNull(row)) {
+                return null;
+            }
+            long millis = values[row];
+            if(sqlType == Types.DATE) {
+                return new Date(millis).toString();
+            }
+            if(sqlType == Types.TIME) {
+                return new Time(millis).toString();
+            }
+            return new Timestamp(millis).toString();
+        }
+    }
+
+    /**
+     * Strings, stored as char codes into a dictionary until the
+     * column turns out to have too many distinct values, and
+     * from then on as plain references.
+     */
+    static class StringColumn extends Column {
+        private StringDictionary dictionary;
+        private char[] codes;
+        private String[] values;
+        // The place of each code in the sorted dictionary, for
+        // the first rankedSize codes.
+        private int[] ranks;
+        private int rankedSize;
+
+        StringColumn(int sqlType, int maxDictionarySize) {
+            super(sqlType);
+            if(maxDictionarySize > 0) {
+                dictionary = new StringDictionary(maxDictionarySize);
+                codes = new char[0];
+            } else {
+                values = new String[0];
+            }
+        }
+
+        private void add(String value) {
+            if(dictionary != null) {
+                int code = value == null ? 0 : dictionary.encode(value);
+                if(code >= 0) {
+                    if(size == codes.length) {
+                        codes = Arrays.copyOf(codes, grow(codes.length, size + 1));
+                    }
+                    codes[size] = (char) code;
+                    setNull(size++, value == null);
+                    return;
+                }
+                decodeAll();
+            }
+            if(size == values.length) {
+                values = Arrays.copyOf(values, grow(values.length, size + 1));
+            }
+            values[size] = value;
+            setNull(size++, value == null);
+        }
+
+        // Too many distinct values: switch to plain storage.
+        private void decodeAll() {
+            values = new String[grow(codes.length, size + 1)];
+            for(int i = 0; i < size; ++i) {
+                values[i] = isNull(i) ? null : dictionary.decode(codes[i]);
+            }
+            dictionary = null;
+            codes = null;
+        }
+
+        boolean isDictionaryEncoded() {
+            return dictionary != null;
+        }
+
+        @Override
+        void read(ResultSet resultSet, int index) throws SQLException {
+            add(trim(resultSet.getString(index)));
+        }
+
+        @Override
+        void append(String value) {
+            add(value);
+        }
+
+        @Override
+        String getString(int row) {
+            if(dictionary != null) {
+                return isNull(row) ? null : dictionary.decode(codes[row]);
+            }
+            return values[row];
+        }
+
+        @Override
+        void prepareCompare() {
+            if(dictionary == null || dictionary.size() == rankedSize) {
+                return;
+            }
+            int dictionarySize = dictionary.size();
+            Integer[] sorted = new Integer[dictionarySize];
+            for(int code = 0; code < dictionarySize; ++code) {
+                sorted[code] = code;
+            }
+            Arrays.sort(sorted, (a, b) -> dictionary.decode(a).compareTo(dictionary.decode(b)));
+            ranks = new int[dictionarySize];
+            for(int rank = 0; rank < dictionarySize; ++rank) {
+                ranks[sorted[rank]] = rank;
+            }
+            rankedSize = dictionarySize;
+        }
+
+        @Override
+        int compareValues(int a, int b) {
+            if(dictionary != null) {
+                return Integer.compare(ranks[codes[a]], ranks[codes[b]]);
+            }
+            return values[a].compareTo(values[b]);
+        }
+
+        // Test each distinct value once rather than once per row.
+        @Override
+        void match(Predicate<? super String> test, int from, int to, BitSet rows) {
+            if(dictionary == null) {
+                super.match(test, from, to, rows);
+                return;
+            }
+            boolean[] passes = new boolean[dictionary.size()];
+            for(int code = 0; code < passes.length; ++code) {
+                passes[code] = test.test(dictionary.decode(code));
+            }
+            for(int row = from; row < to; ++row) {
+                if(!isNull(row) && passes[codes[row]]) {
+                    rows.set(row);
+                }
+            }
+        }
+
+        @Override
+        long estimateBytes() {
+            if(dictionary != null) {
+                return 16 + 2L * codes.length + nullBitmapBytes()
+                        + dictionary.estimateBytes();
+            }
+            long bytes = 16 + 8L * values.length + nullBitmapBytes();
+            for(int i = 0; i < size; ++i) {
+                bytes += DBResults.estimateBytes(values[i]);
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of JDBC connections to a single datasource.
+ * <ul>
+ * 		<li>At most maxSize connections exist at any time; at
+ * 			least minSize are kept open once created.</li>
+ * 		<li>getConnection hands out a wrapper whose close method
+ * 			returns the physical connection to the pool, so code
+ * 			written against plain connections (including the
+ * 			close argument of DatabaseUtilites) works unchanged.</li>
+ * 		<li>Idle connections are validated before being handed out,
+ * 			evicted after idleTimeout and retired after maxLifetime.</li>
+ * 		<li>Connections held longer than leakDetectionThreshold are
+ * 			reported on System.err with the borrower's stack trace.</li>
+ * 		<li>Each physical connection keeps its statementCacheSize
+ * 			most recently used PreparedStatements open, for the
+ * 			parameterized DatabaseUtilites.getQueryResults.</li>
+ * 		<li>The time each getConnection call waits is recorded
+ * 			in QueryMetrics.</li>
+ * </ul>
+ */
+
+public class ConnectionPool implements AutoCloseable {
+    /**
+     * SQLState of the exception getConnection throws when it gives
+     * up waiting for a connection (all in use), as opposed to
+     * failing to reach the database.
+     */
+    public static final String ACQUIRE_TIMEOUT_STATE = "HYT00";
+
+    private static final Map<String, ConnectionPool> POOLS = new ConcurrentHashMap<>();
+    private static final AtomicInteger HOUSEKEEPER_COUNT = new AtomicInteger();
+
+    /** Connections used more recently than this are not re-validated. */
+    private static final long VALIDATION_BYPASS_MILLIS = 500;
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<PooledConnection> idleConnections =
+            new ConcurrentLinkedDeque<>();
+    private final Set<PooledConnection> borrowedConnections = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService housekeeper;
+    private volatile long connectionTimeout = 30000;
+    private volatile long idleTimeout = 600000;
+    private volatile long maxLifetime = 1800000;
+    private volatile long leakDetectionThreshold = 0;
+    private volatile int validationTimeout = 5;
+    private volatile int statementCacheSize = 50;
+    private volatile boolean closed;
+
+    /**
+     * Create a pool and open minSize connections right away.
+     * The driver class is loaded once here rather than on every query.
+     */
+    public ConnectionPool(String driver, String url,
+                          String username, String password,
+                          int minSize, int maxSize) throws SQLException {
+        if(minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min="
+                    + minSize + ", max=" + maxSize);
+        }
+        try {
+            DataSourceRegistry.loadDriver(driver);
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("Error loading driver: " + driver, e);
+        }
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        permits = new Semaphore(maxSize);
+        housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable,
+                    "PoolDB-housekeeper-" + HOUSEKEEPER_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        fillToMinimum();
+        housekeeper.scheduleWithFixedDelay(this::houseKeep, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Get the shared pool for the given datasource, creating it
+     * (with 1 to 10 connections) the first time it is asked for.
+     * Pools are keyed by URL and username.
+     */
+    public static ConnectionPool getPool(String driver, String url,
+                                         String username, String password)
+            throws SQLException {
+        String key = url + "|" + username;
+        ConnectionPool pool = POOLS.get(key);
+        if(pool != null && !pool.closed) {
+            return pool;
+        }
+        synchronized (POOLS) {
+            pool = POOLS.get(key);
+            if(pool == null || pool.closed) {
+                pool = new ConnectionPool(driver, url, username, password, 1, 10);
+                POOLS.put(key, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Borrow a connection, waiting up to connectionTimeout milliseconds
+     * if maxSize connections are already in use. Closing the returned
+     * connection gives it back to the pool.
+     */
+    public Connection getConnection() throws SQLException {
+        if(closed) {
+            throw new SQLException("Connection pool is closed: " + url);
+        }
+        long start = System.nanoTime();
+        try {
+            if(!permits.tryAcquire(connectionTimeout, TimeUnit.MILLISECONDS)) {
+                QueryMetrics.getInstance().recordAcquire(this,
+                        System.nanoTime() - start, true);
+                throw new SQLTransientConnectionException("Timed out after "
+                        + connectionTimeout + " ms waiting for a connection to "
+                        + url + " (" + getActiveCount() + " in use)",
+                        ACQUIRE_TIMEOUT_STATE);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException(
+                    "Interrupted waiting for a connection", ACQUIRE_TIMEOUT_STATE, e);
+        }
+        try {
+            PooledConnection pooled = takeIdleConnection();
+            if(pooled == null) {
+                pooled = new PooledConnection(openConnection());
+            }
+            pooled.borrowedAt = System.currentTimeMillis();
+            pooled.borrowStack = leakDetectionThreshold > 0
+                    ? new Throwable("Connection borrowed here") : null;
+            pooled.leakReported = false;
+            borrowedConnections.add(pooled);
+            QueryMetrics.getInstance().recordAcquire(this,
+                    System.nanoTime() - start, false);
+            return pooled.newHandle();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    // Most recently returned first, so a few hot connections serve
+    // most requests and the rest can age out.
+    private PooledConnection takeIdleConnection() {
+        PooledConnection pooled;
+        while((pooled = idleConnections.pollFirst()) != null) {
+            long now = System.currentTimeMillis();
+            if(isExpired(pooled, now)) {
+                closeQuietly(pooled);
+            } else if(now - pooled.lastUsed < VALIDATION_BYPASS_MILLIS
+                    || isValid(pooled)) {
+                return pooled;
+            } else {
+                closeQuietly(pooled);
+            }
+        }
+        return null;
+    }
+
+    private boolean isValid(PooledConnection pooled) {
+        try {
+            return pooled.connection.isValid(validationTimeout);
+        } catch (SQLException sqle) {
+            return false;
+        }
+    }
+
+    private boolean isExpired(PooledConnection pooled, long now) {
+        return maxLifetime > 0 && now - pooled.createdAt > maxLifetime;
+    }
+
+    private Connection openConnection() throws SQLException {
+        return DriverManager.getConnection(url, username, password);
+    }
+
+    // The connection is pushed back before the permit is released, so
+    // a waiting borrower always sees it and never opens an extra one.
+    private void release(PooledConnection pooled) {
+        borrowedConnections.remove(pooled);
+        pooled.lastUsed = System.currentTimeMillis();
+        pooled.borrowStack = null;
+        boolean reusable = !closed && !isExpired(pooled, pooled.lastUsed)
+                && resetState(pooled);
+        if(reusable) {
+            idleConnections.offerFirst(pooled);
+        } else {
+            closeQuietly(pooled);
+        }
+        permits.release();
+    }
+
+    // Undo anything the borrower left behind that would leak
+    // into the next user of the connection.
+    private boolean resetState(PooledConnection pooled) {
+        try {
+            Connection connection = pooled.connection;
+            if(connection.isClosed()) {
+                return false;
+            }
+            if(!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            connection.clearWarnings();
+            return true;
+        } catch (SQLException sqle) {
+            return false;
+        }
+    }
+
+    private void fillToMinimum() {
+        while(!closed && getTotalCount() < minSize && permits.tryAcquire()) {
+            try {
+                idleConnections.offerLast(new PooledConnection(openConnection()));
+            } catch (SQLException sqle) {
+                System.err.println("Error opening pooled connection: " + sqle);
+                return;
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    private void houseKeep() {
+        try {
+            long now = System.currentTimeMillis();
+            int surplus = idleConnections.size() - minSize;
+            for(PooledConnection pooled : idleConnections) {
+                boolean idleTooLong = idleTimeout > 0 && surplus > 0
+                        && now - pooled.lastUsed > idleTimeout;
+                if((idleTooLong || isExpired(pooled, now))
+                        && idleConnections.remove(pooled)) {
+                    closeQuietly(pooled);
+                    --surplus;
+                }
+            }
+            if(leakDetectionThreshold > 0) {
+                for(PooledConnection pooled : borrowedConnections) {
+                    if(!pooled.leakReported && pooled.borrowStack != null
+                            && now - pooled.borrowedAt > leakDetectionThreshold) {
+                        pooled.leakReported = true;
+                        System.err.println("Possible connection leak: connection to "
+                                + url + " held for " + (now - pooled.borrowedAt) + " ms");
+                        pooled.borrowStack.printStackTrace();
+                    }
+                }
+            }
+            fillToMinimum();
+        } catch (RuntimeException e) {
+            System.err.println("Error in pool housekeeping: " + e);
+        }
+    }
+
+    private static void closeQuietly(PooledConnection pooled) {
+        if(pooled.statementCache != null) {
+            pooled.statementCache.clear();
+        }
+        try {
+            pooled.connection.close();
+        } catch (SQLException sqle) {}
+    }
+
+    /**
+     * Close every idle connection and stop handing out new ones.
+     * Connections still borrowed are closed as they are returned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        POOLS.values().remove(this);
+        housekeeper.shutdownNow();
+        PooledConnection pooled;
+        while((pooled = idleConnections.pollFirst()) != null) {
+            closeQuietly(pooled);
+        }
+    }
+
+    public String getURL() {
+        return url;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getActiveCount() {
+        return borrowedConnections.size();
+    }
+
+    public int getIdleCount() {
+        return idleConnections.size();
+    }
+
+    public int getTotalCount() {
+        return getActiveCount() + getIdleCount();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /** Max milliseconds getConnection waits for a free connection. */
+    public void setConnectionTimeout(long connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    /** Milliseconds an idle connection above minSize is kept; 0 disables. */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /** Milliseconds after which a connection is retired; 0 disables. */
+    public void setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = maxLifetime;
+    }
+
+    /** Milliseconds a connection may be borrowed before it is reported; 0 disables. */
+    public void setLeakDetectionThreshold(long leakDetectionThreshold) {
+        this.leakDetectionThreshold = leakDetectionThreshold;
+    }
+
+    /** Seconds passed to Connection.isValid when validating on borrow. */
+    public void setValidationTimeout(int validationTimeout) {
+        this.validationTimeout = validationTimeout;
+    }
+
+    /**
+     * The statement cache of the physical connection behind a
+     * connection from a pool, or null for any other connection.
+     */
+    static StatementCache statementCacheOf(Connection connection) {
+        Handle handle = handleOf(connection);
+        return handle == null ? null : handle.pooled.statementCache;
+    }
+
+    /**
+     * The pool a connection was borrowed from, or null for a
+     * connection that did not come from a pool.
+     */
+    static ConnectionPool poolOf(Connection connection) {
+        Handle handle = handleOf(connection);
+        return handle == null ? null : handle.pool();
+    }
+
+    private static Handle handleOf(Connection connection) {
+        if(!Proxy.isProxyClass(connection.getClass())) {
+            return null;
+        }
+        InvocationHandler handler = Proxy.getInvocationHandler(connection);
+        return handler instanceof Handle ? (Handle) handler : null;
+    }
+
+    /** PreparedStatements kept open per connection; 0 disables caching. */
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    /** A physical connection plus the bookkeeping the pool needs. */
+    private class PooledConnection {
+        final Connection connection;
+        final StatementCache statementCache;
+        final long createdAt;
+        volatile long lastUsed;
+        volatile long borrowedAt;
+        volatile Throwable borrowStack;
+        volatile boolean leakReported;
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+            statementCache = statementCacheSize > 0
+                    ? new StatementCache(connection, statementCacheSize) : null;
+            createdAt = System.currentTimeMillis();
+            lastUsed = createdAt;
+        }
+
+        // Each borrow gets its own handle, so a caller that keeps
+        // using a connection after closing it cannot disturb the
+        // next borrower.
+        Connection newHandle() {
+            return (Connection) Proxy.newProxyInstance(
+                    ConnectionPool.class.getClassLoader(),
+                    new Class<?>[] { Connection.class },
+                    new Handle(this));
+        }
+    }
+
+    private class Handle implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean released;
+
+        Handle(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        ConnectionPool pool() {
+            return ConnectionPool.this;
+        }
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            String name = method.getName();
+            if(name.equals("close")) {
+                if(!released) {
+                    released = true;
+                    release(pooled);
+                }
+                return null;
+            }
+            if(name.equals("isClosed")) {
+                return released || pooled.connection.isClosed();
+            }
+            if(name.equals("equals")) {
+                return proxy == args[0];
+            }
+            if(name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            if(name.equals("toString")) {
+                return "Pooled[" + pooled.connection + "]";
+            }
+            if(released) {
+                throw new SQLException("Connection has been returned to the pool");
+            }
+            try {
+                return method.invoke(pooled.connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * Writes rows as CSV following RFC 4180: a heading line with the
+ * column names, CRLF line endings, and fields holding a comma,
+ * double quote or line break enclosed in double quotes, with
+ * any double quote inside doubled. Nulls are written as empty
+ * fields and empty strings as "", so the two can be told apart
+ * (CsvLoader reads them back that way). See ChannelExporter.
+ */
+
+public class CsvExporter extends ChannelExporter {
+    private static final byte[] LINE_END = { '\r', '\n' };
+
+    public CsvExporter(WritableByteChannel channel) {
+        super(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    /** Write to a file, gzipped if gzip is true. */
+    public CsvExporter(Path path, boolean gzip) throws IOException {
+        super(open(path, gzip), DEFAULT_BUFFER_SIZE);
+    }
+
+    @Override
+    protected void writeHeader(String[] columnNames) throws IOException {
+        beginRow();
+        for(int column = 0; column < columnNames.length; ++column) {
+            writeValue(column, columnNames[column]);
+        }
+        endRow();
+    }
+
+    @Override
+    protected void beginRow() {
+    }
+
+    @Override
+    protected void writeValue(int column, String value) throws IOException {
+        separate(column);
+        if(!needsQuotes(value)) {
+            putText(value);
+            return;
+        }
+        put((byte) '"');
+        int length = value.length();
+        int i = 0;
+        while(i < length) {
+            char c = value.charAt(i);
+            if(c == '"') {
+                put((byte) '"');
+            }
+            i += putChar(c, i + 1 < length ? value.charAt(i + 1) : 0);
+        }
+        put((byte) '"');
+    }
+
+    @Override
+    protected void writeNumber(int column, long value) throws IOException {
+        separate(column);
+        putLong(value);
+    }
+
+    @Override
+    protected void writeNull(int column) throws IOException {
+        separate(column);
+    }
+
+    @Override
+    protected void endRow() throws IOException {
+        put(LINE_END);
+    }
+
+    private void separate(int column) throws IOException {
+        if(column > 0) {
+            put((byte) ',');
+        }
+    }
+
+    // An empty string is quoted so that it is not read back as null.
+    private static boolean needsQuotes(String value) {
+        if(value.isEmpty()) {
+            return true;
+        }
+        for(int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if(c == ',' || c == '"' || c == '\r' || c == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,664 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLDataException;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads a CSV file (as written by CsvExporter) into a table over
+ * several connections at once, without reading the whole file
+ * into memory.
+ * <ul>
+ * 		<li>The file is memory-mapped a chunk at a time and cut at
+ * 			the last line break in each chunk that is not inside a
+ * 			quoted field.</li>
+ * 		<li>Up to parallelism chunks are parsed and inserted at
+ * 			once, each on its own thread and pooled connection,
+ * 			with a PreparedStatement sent in JDBC batches of
+ * 			batchSize rows (see BatchOptions; multiRowValues does
+ * 			not apply). Cutting the file only ever gets a few
+ * 			chunks ahead of the inserts, so memory use stays the
+ * 			same whatever the size of the file.</li>
+ * 		<li>Each chunk is its own transaction (or commits every
+ * 			commitInterval batches). A chunk that fails, on a bad
+ * 			row or a failed batch, is rolled back and reported; the
+ * 			other chunks carry on unless stopOnError is set.</li>
+ * 		<li>Values are bound as strings converted to the column's
+ * 			type, and empty unquoted fields as NULL.</li>
+ * 		<li>A row longer than MAX_ROW_CHUNKS chunks, most likely
+ * 			from a quote that is never closed, ends the cutting:
+ * 			the rest of the file is reported as one failed chunk,
+ * 			after the chunks already cut are loaded.</li>
+ * </ul>
+ * With a heading line (the default) its names are the columns
+ * to insert into; without one, the file holds every column of
+ * the table in order.
+ */
+
+public class CsvLoader {
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    /** The most chunks a single row may span before it is given up on. */
+    public static final int MAX_ROW_CHUNKS = 64;
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final ConnectionPool pool;
+    private final Path path;
+    private final String tableName;
+    private String tableFormat;
+    private boolean header = true;
+    private byte separator = ',';
+    private int parallelism;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private BatchOptions options = new BatchOptions();
+    private Listener listener;
+
+    /** Told how far a load has got. */
+    public interface Listener {
+        /**
+         * Called from the loading threads, one call at a time, as
+         * each chunk is finished (loaded or failed) and at every
+         * commit.
+         */
+        void progress(long bytesLoaded, long totalBytes, long rowsInserted);
+    }
+
+    /** Load into an existing table, unless setTableFormat is called. */
+    public CsvLoader(ConnectionPool pool, Path path, String tableName) {
+        this.pool = pool;
+        this.path = path;
+        this.tableName = tableName;
+        parallelism = Math.min(4, pool.getMaxSize());
+    }
+
+    public String getTableFormat() {
+        return tableFormat;
+    }
+
+    /**
+     * Drop the table and create it again with this format (as for
+     * DatabaseUtilites.createTable) before loading; null, the
+     * default, loads into the table as it is.
+     */
+    public void setTableFormat(String tableFormat) {
+        this.tableFormat = tableFormat;
+    }
+
+    public boolean hasHeader() {
+        return header;
+    }
+
+    /** Whether the first line holds the column names (the default). */
+    public void setHeader(boolean header) {
+        this.header = header;
+    }
+
+    public char getSeparator() {
+        return (char) separator;
+    }
+
+    /** The field separator, ',' unless set; any ASCII character but '"'. */
+    public void setSeparator(char separator) {
+        if(separator > 127 || separator == '"' || separator == '\n' || separator == '\r') {
+            throw new IllegalArgumentException("Invalid separator: " + separator);
+        }
+        this.separator = (byte) separator;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** Chunks loaded at once; at most the pool's maxSize. */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, Math.min(parallelism, pool.getMaxSize()));
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Bytes per chunk; a chunk grows past this only to hold a
+     * longer row, up to MAX_ROW_CHUNKS times this.
+     */
+    public void setChunkSize(int chunkSize) {
+        if(chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public BatchOptions getOptions() {
+        return options;
+    }
+
+    public void setOptions(BatchOptions options) {
+        this.options = options;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Load the file, returning a report on every chunk, or null
+     * if the file could not be read or the table could not be
+     * created or found.
+     */
+    public Report load() {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            String[] columnNames = null;
+            if(header && size > 0) {
+                RowParser parser = new RowParser(mapRows(channel, 0, size), separator, 0);
+                columnNames = parser.next(-1);
+                position = parser.position;
+            }
+            Load load = new Load(size);
+            if(!prepare(load, columnNames)) {
+                return null;
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+                Thread thread = new Thread(runnable,
+                        "CsvLoader-" + THREAD_COUNT.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            // Chunks cut but not yet loaded, which holds off the
+            // cutting when the inserts fall behind.
+            Semaphore ahead = new Semaphore(parallelism * 2);
+            try {
+                int index = 0;
+                while(position < size && !load.stopped) {
+                    ByteBuffer rows;
+                    try {
+                        rows = mapRows(channel, position, size);
+                    } catch (SQLDataException sqle) {
+                        // With no end to the row, the rest of the file
+                        // cannot be cut into chunks.
+                        Chunk rest = new Chunk(index++, position,
+                                (int) Math.min(Integer.MAX_VALUE, size - position));
+                        rest.failure = sqle;
+                        rest.failedOffset = position;
+                        load.report.add(rest);
+                        committed(load, rest, 0, size - position);
+                        break;
+                    }
+                    Chunk chunk = new Chunk(index++, position, rows.limit());
+                    load.report.add(chunk);
+                    position += rows.limit();
+                    ahead.acquire();
+                    executor.execute(() -> {
+                        try {
+                            loadChunk(load, chunk, rows);
+                        } finally {
+                            ahead.release();
+                        }
+                    });
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                load.stopped = true;
+            } finally {
+                executor.shutdown();
+                try {
+                    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            load.report.finish();
+            return load.report;
+        } catch (IOException | SQLDataException e) {
+            System.err.println("Error reading " + path + ": " + e);
+        }
+        return null;
+    }
+
+    // Rows from position up to the last line break (outside quotes)
+    // within a chunk, mapping more, up to MAX_ROW_CHUNKS chunks, for
+    // a longer row.
+    private ByteBuffer mapRows(FileChannel channel, long position, long size)
+            throws IOException, SQLDataException {
+        long longest = Math.min(Math.min(Integer.MAX_VALUE, size - position),
+                (long) chunkSize * MAX_ROW_CHUNKS);
+        long length = Math.min(chunkSize, longest);
+        // Bytes already scanned (none with a line break outside
+        // quotes), and whether they end inside quotes.
+        int scanned = 0;
+        boolean quoted = false;
+        while(true) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            if(position + length == size) {
+                return buffer;
+            }
+            int end = 0;
+            int limit = buffer.limit();
+            for(int i = scanned; i < limit; ++i) {
+                byte b = buffer.get(i);
+                if(b == '"') {
+                    quoted = !quoted;
+                } else if(b == '\n' && !quoted) {
+                    end = i + 1;
+                }
+            }
+            if(end > 0) {
+                buffer.limit(end);
+                return buffer;
+            }
+            if(length == longest) {
+                // Most likely a quote that is never closed.
+                throw new SQLDataException("No line break outside quotes within "
+                        + length + " bytes of byte " + position);
+            }
+            scanned = limit;
+            length = Math.min(2 * length, longest);
+        }
+    }
+
+    // Create the table if asked to, and work out the INSERT and the
+    // types of its columns.
+    private boolean prepare(Load load, String[] columnNames) {
+        String columns = columnNames == null ? "*" : String.join(", ", trim(columnNames));
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement()) {
+            if(tableFormat != null) {
+                // As in createTable, a missing table is not an error.
+                try {
+                    statement.execute("DROP TABLE " + tableName);
+                } catch (SQLException sqle) {}
+                statement.execute("CREATE TABLE " + tableName + " " + tableFormat);
+            }
+            try (ResultSet resultSet = statement.executeQuery("SELECT "
+                    + columns + " FROM " + tableName + " WHERE 1 = 0")) {
+                ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
+                int columnCount = resultSetMetaData.getColumnCount();
+                load.columnTypes = new int[columnCount];
+                for(int i = 1; i <= columnCount; ++i) {
+                    load.columnTypes[i - 1] = resultSetMetaData.getColumnType(i);
+                }
+            }
+        } catch (SQLException sqle) {
+            System.err.println("Error preparing table " + tableName + ": " + sqle);
+            return false;
+        }
+        StringBuilder insert = new StringBuilder("INSERT INTO ").append(tableName);
+        if(columnNames != null) {
+            insert.append(" (").append(columns).append(')');
+        }
+        insert.append(" VALUES (");
+        for(int i = 0; i < load.columnTypes.length; ++i) {
+            insert.append(i == 0 ? "?" : ", ?");
+        }
+        load.insert = insert.append(')').toString();
+        return true;
+    }
+
+    private static String[] trim(String[] names) {
+        String[] trimmed = new String[names.length];
+        for(int i = 0; i < names.length; ++i) {
+            trimmed[i] = names[i] == null ? "" : names[i].trim();
+        }
+        return trimmed;
+    }
+
+    private void loadChunk(Load load, Chunk chunk, ByteBuffer rows) {
+        if(load.stopped) {
+            return;
+        }
+        int[] columnTypes = load.columnTypes;
+        int batchSize = options.getBatchSize();
+        int commitInterval = options.getCommitInterval();
+        RowParser parser = new RowParser(rows, separator, chunk.offset);
+        try (Connection connection = pool.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            long failedAt = chunk.offset;
+            try (PreparedStatement statement = connection.prepareStatement(load.insert)) {
+                int inBatch = 0;
+                int batches = 0;
+                long uncommitted = 0;
+                String[] row;
+                while(!load.stopped) {
+                    if(inBatch == 0) {
+                        failedAt = chunk.offset + parser.position;
+                    }
+                    row = parser.next(columnTypes.length);
+                    if(row == null) {
+                        break;
+                    }
+                    ++chunk.rowsRead;
+                    for(int i = 0; i < row.length; ++i) {
+                        if(row[i] == null) {
+                            statement.setNull(i + 1, columnTypes[i]);
+                        } else {
+                            statement.setObject(i + 1, row[i], columnTypes[i]);
+                        }
+                    }
+                    statement.addBatch();
+                    if(++inBatch == batchSize) {
+                        statement.executeBatch();
+                        uncommitted += inBatch;
+                        inBatch = 0;
+                        if(commitInterval > 0 && ++batches % commitInterval == 0) {
+                            connection.commit();
+                            committed(load, chunk, uncommitted, 0);
+                            uncommitted = 0;
+                        }
+                    }
+                }
+                if(load.stopped) {
+                    connection.rollback();
+                } else {
+                    if(inBatch > 0) {
+                        statement.executeBatch();
+                        uncommitted += inBatch;
+                    }
+                    connection.commit();
+                    chunk.committed = true;
+                    committed(load, chunk, uncommitted, chunk.length);
+                }
+            } catch (SQLException sqle) {
+                // A bad row fails where it starts, a batch where its
+                // first row does.
+                chunk.failure = sqle;
+                chunk.failedOffset = sqle instanceof SQLDataException
+                        && parser.failed ? chunk.offset + parser.rowStart : failedAt;
+                if(options.isStopOnError()) {
+                    load.stopped = true;
+                }
+                try {
+                    connection.rollback();
+                } catch (SQLException e) {}
+                committed(load, chunk, 0, chunk.length);
+            } finally {
+                try {
+                    connection.setAutoCommit(autoCommit);
+                } catch (SQLException sqle) {}
+            }
+        } catch (SQLException sqle) {
+            chunk.failure = sqle;
+            chunk.failedOffset = chunk.offset;
+            if(options.isStopOnError()) {
+                load.stopped = true;
+            }
+        }
+    }
+
+    // Count rows just committed and bytes just finished with.
+    private void committed(Load load, Chunk chunk, long rows, long bytes) {
+        chunk.rowsInserted += rows;
+        long rowsInserted = load.rowsInserted.addAndGet(rows);
+        long bytesLoaded = load.bytesLoaded.addAndGet(bytes);
+        Listener listener = this.listener;
+        if(listener != null) {
+            synchronized (listener) {
+                listener.progress(bytesLoaded, load.totalBytes, rowsInserted);
+            }
+        }
+    }
+
+    // The state of one call to load.
+    private static class Load {
+        final long totalBytes;
+        final Report report = new Report();
+        final AtomicLong rowsInserted = new AtomicLong();
+        final AtomicLong bytesLoaded = new AtomicLong();
+        int[] columnTypes;
+        String insert;
+        volatile boolean stopped;
+
+        Load(long totalBytes) {
+            this.totalBytes = totalBytes;
+        }
+    }
+
+    // Splits the rows of a chunk into fields.
+    private static class RowParser {
+        private final ByteBuffer buffer;
+        private final byte separator;
+        private final long offset;
+        private final List<String> values = new ArrayList<>();
+        private byte[] field = new byte[256];
+        private int length;
+        int position;
+        int rowStart;
+        boolean failed;
+
+        // offset is where the buffer starts in the file.
+        RowParser(ByteBuffer buffer, byte separator, long offset) {
+            this.buffer = buffer;
+            this.separator = separator;
+            this.offset = offset;
+            // Skip a UTF-8 byte order mark.
+            if(buffer.limit() >= 3 && buffer.get(0) == (byte) 0xEF
+                    && buffer.get(1) == (byte) 0xBB && buffer.get(2) == (byte) 0xBF) {
+                position = 3;
+            }
+        }
+
+        /**
+         * The next row, or null at the end; blank lines are
+         * skipped. A row without fieldCount fields (unless it
+         * is -1) is an error.
+         */
+        String[] next(int fieldCount) throws SQLDataException {
+            int limit = buffer.limit();
+            while(position < limit && (buffer.get(position) == '\n'
+                    || buffer.get(position) == '\r')) {
+                ++position;
+            }
+            if(position >= limit) {
+                return null;
+            }
+            rowStart = position;
+            values.clear();
+            while(true) {
+                values.add(readField(limit));
+                if(position >= limit) {
+                    break;
+                }
+                byte b = buffer.get(position++);
+                if(b == separator) {
+                    continue;
+                }
+                if(b == '\r' && position < limit && buffer.get(position) == '\n') {
+                    ++position;
+                }
+                break;
+            }
+            if(fieldCount >= 0 && values.size() != fieldCount) {
+                throw error("has " + values.size() + " fields, expected " + fieldCount);
+            }
+            return values.toArray(new String[0]);
+        }
+
+        // Leaves position on the separator or line break after the field.
+        private String readField(int limit) throws SQLDataException {
+            length = 0;
+            if(position < limit && buffer.get(position) == '"') {
+                ++position;
+                while(true) {
+                    if(position >= limit) {
+                        throw error("ends inside quotes");
+                    }
+                    byte b = buffer.get(position++);
+                    if(b == '"') {
+                        if(position < limit && buffer.get(position) == '"') {
+                            ++position;
+                        } else {
+                            break;
+                        }
+                    }
+                    append(b);
+                }
+                if(position < limit) {
+                    byte b = buffer.get(position);
+                    if(b != separator && b != '\n' && b != '\r') {
+                        throw error("has text after a closing quote");
+                    }
+                }
+                return new String(field, 0, length, StandardCharsets.UTF_8);
+            }
+            while(position < limit) {
+                byte b = buffer.get(position);
+                if(b == separator || b == '\n' || b == '\r') {
+                    break;
+                }
+                append(b);
+                ++position;
+            }
+            return length == 0 ? null : new String(field, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private void append(byte b) {
+            if(length == field.length) {
+                field = Arrays.copyOf(field, length * 2);
+            }
+            field[length++] = b;
+        }
+
+        private SQLDataException error(String problem) {
+            failed = true;
+            return new SQLDataException("Row at byte " + (offset + rowStart) + " "
+                    + problem);
+        }
+    }
+
+    /** What happened to each chunk of the file. */
+    public static class Report {
+        private final List<Chunk> chunks = Collections.synchronizedList(new ArrayList<>());
+
+        void add(Chunk chunk) {
+            chunks.add(chunk);
+        }
+
+        void finish() {
+            chunks.sort(Comparator.comparingInt(Chunk::getIndex));
+        }
+
+        /** The chunks cut from the file, in file order. */
+        public List<Chunk> getChunks() {
+            return Collections.unmodifiableList(chunks);
+        }
+
+        /** Rows that were inserted and committed. */
+        public long getRowsInserted() {
+            long rows = 0;
+            for(Chunk chunk : chunks) {
+                rows += chunk.getRowsInserted();
+            }
+            return rows;
+        }
+
+        public List<Chunk> getFailedChunks() {
+            List<Chunk> failed = new ArrayList<>();
+            for(Chunk chunk : chunks) {
+                if(chunk.getFailure() != null) {
+                    failed.add(chunk);
+                }
+            }
+            return failed;
+        }
+
+        /** Whether every row of the file was committed. */
+        public boolean isSuccessful() {
+            for(Chunk chunk : chunks) {
+                if(!chunk.isCommitted()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** A run of whole rows of the file, loaded in one transaction. */
+    public static class Chunk {
+        private final int index;
+        private final long offset;
+        private final int length;
+        private volatile long rowsRead;
+        private volatile long rowsInserted;
+        private volatile SQLException failure;
+        private volatile long failedOffset = -1;
+        private volatile boolean committed;
+
+        Chunk(int index, long offset, int length) {
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /** Byte offset of the chunk in the file. */
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /** Rows parsed, including any rolled back. */
+        public long getRowsRead() {
+            return rowsRead;
+        }
+
+        /** Rows committed; with a commitInterval, some may be from before a failure. */
+        public long getRowsInserted() {
+            return rowsInserted;
+        }
+
+        /** The bad row or failed batch, or null. */
+        public SQLException getFailure() {
+            return failure;
+        }
+
+        /** Byte offset in the file of the bad row or failed batch, or -1. */
+        public long getFailedOffset() {
+            return failedOffset;
+        }
+
+        /**
+         * False if the chunk failed, or was skipped or rolled back
+         * after another chunk failed with stopOnError set.
+         */
+        public boolean isCommitted() {
+            return committed;
+        }
+
+        @Override
+        public String toString() {
+            return "Chunk[" + index + ", bytes " + offset + "-" + (offset + length - 1)
+                    + (failure != null ? ", failed at byte " + failedOffset + ": "
+                    + failure.getMessage() : committed ? ", committed"
+                    : ", not loaded") + "]";
+        }
+    }
+}
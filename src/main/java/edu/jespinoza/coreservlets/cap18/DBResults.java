@@ -1,6 +1,11 @@
 package edu.jespinoza.coreservlets.cap18;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -11,17 +16,48 @@ import java.util.List;
  * 		<li>ResultSet doesn't necessarily have all the data;
  * 			reconnection to database occurs as you ask for
  * 			later rows.</li>
- * 		<li>This class stores results as strings, in arrays</li>
+ * 		<li>This class stores results as strings, in arrays,
+ * 			or, when built with column types, in typed columns
+ * 			(see below).</li>
  * 		<li>This class includes DatabaseMetaData (database product
  * 			name and version) and ResultSetMetaData
  * 			(the column names).</li>
  * 		<li>This class has a toHTMLTable method that turns
  * 			the results into a long string corresponding to
- * 			an HTML table.</li>
+ * 			an HTML table, and writeHTMLTable to send the
+ * 			same table straight to a Writer.</li>
  * </ul>
+ * A columnar DBResults keeps integer, floating point and date
+ * columns in primitive arrays with a null bitmap instead of one
+ * String per cell. getRow still works but builds the strings on
+ * demand; use getInt, getLong, getDouble and getString to read
+ * single values without that cost. TIMESTAMP strings built this
+ * way stop at milliseconds, where row mode keeps every digit the
+ * driver gives.
+ * <p>
+ * Rows stored as strings are kept on the heap only up to the
+ * memory budget (a quarter of the maximum heap, unless set
+ * otherwise). Rows beyond it go to a temporary file (see
+ * SpillStore) and are read back from there on demand, so a
+ * huge result cannot run the JVM out of memory. Close the
+ * DBResults to delete that file as soon as it is done with.
+ * <p>
+ * Columns with few distinct values (status, country and the like)
+ * keep each value only once while loading: string columns of a
+ * columnar DBResults store codes into a dictionary, and rows
+ * stored as strings share one String per distinct value. A
+ * column that passes dictionarySize distinct values goes back
+ * to storing its values plainly.
  */
 
-public class DBResults {
+public class DBResults implements AutoCloseable {
+    /** Distinct values a column may have and still be dictionary-encoded. */
+    public static final int DEFAULT_DICTIONARY_SIZE = 256;
+
+    private static volatile long defaultMemoryBudget =
+            Runtime.getRuntime().maxMemory() / 4;
+    private static volatile int defaultDictionarySize = DEFAULT_DICTIONARY_SIZE;
+
     String[] rowData;
     private final Connection connection;
     private final String productName;
@@ -29,6 +65,16 @@ public class DBResults {
     private final int columnCount;
     private final String[] columnNames;
     private final List<String[]> queryResults;
+    private final Column[] columns;
+    private int rowCount;
+    private long rowBytes;
+    private long memoryBudget = defaultMemoryBudget;
+    private SpillStore spill;
+    private StringDictionary[] dictionaries;
+    private boolean readOnly;
+    // Bumped whenever a row is replaced, so that ResultIndex
+    // knows its sorts are stale.
+    int modCount;
 
     public DBResults(Connection connection, String productName,
                      String productVersion, int columnCount,
@@ -40,6 +86,35 @@ public class DBResults {
         this.columnNames = columnNames;
         rowData = new String[columnCount];
         queryResults = new ArrayList<>();
+        columns = null;
+        int dictionarySize = defaultDictionarySize;
+        if(dictionarySize > 0) {
+            dictionaries = new StringDictionary[columnCount];
+            for(int i = 0; i < columnCount; ++i) {
+                dictionaries[i] = new StringDictionary(dictionarySize);
+            }
+        }
+    }
+
+    /**
+     * Build a columnar DBResults. columnTypes holds the
+     * java.sql.Types constant of each column, as given by
+     * ResultSetMetaData.getColumnType.
+     */
+    public DBResults(Connection connection, String productName,
+                     String productVersion, int columnCount,
+                     String[] columnNames, int[] columnTypes) {
+        this.connection = connection;
+        this.productName = productName;
+        this.productVersion = productVersion;
+        this.columnCount = columnCount;
+        this.columnNames = columnNames;
+        rowData = new String[columnCount];
+        queryResults = null;
+        columns = new Column[columnCount];
+        for(int i = 0; i < columnCount; ++i) {
+            columns[i] = Column.forType(columnTypes[i], defaultDictionarySize);
+        }
     }
 
     public Connection getConnection() {
@@ -62,16 +137,319 @@ public class DBResults {
         return columnNames;
     }
 
+    public boolean isColumnar() {
+        return columns != null;
+    }
+
+    /**
+     * The java.sql.Types constant of a column, or Types.VARCHAR
+     * if the results are stored as strings.
+     */
+    public int getColumnType(int column) {
+        return columns == null ? Types.VARCHAR : columns[column].sqlType;
+    }
+
+    // The storage of a column, or null if rows are stored as strings.
+    Column getColumn(int column) {
+        return columns == null ? null : columns[column];
+    }
+
     public int getRowCount() {
-        return queryResults.size();
+        if(columns != null) {
+            return rowCount;
+        }
+        return spill == null ? queryResults.size()
+                : queryResults.size() + spill.size();
     }
 
     public String[] getRow(int index) {
-        return queryResults.get(index);
+        if(columns == null) {
+            // Rows of a read-only DBResults may be shared, so
+            // callers get a copy they are free to change.
+            if(index >= queryResults.size() && spill != null) {
+                return spill.get(index - queryResults.size()).clone();
+            }
+            return readOnly ? queryResults.get(index).clone()
+                    : queryResults.get(index);
+        }
+        checkRow(index);
+        String[] row = new String[columnCount];
+        for(int i = 0; i < columnCount; ++i) {
+            row[i] = columns[i].getString(index);
+        }
+        return row;
+    }
+
+    /** A single value, as getRow(row)[column] would return it. */
+    public String getString(int row, int column) {
+        if(columns == null) {
+            return storedRow(row)[column];
+        }
+        checkRow(row);
+        return columns[column].getString(row);
+    }
+
+    /** A single value as an int; 0 if it is null (see isNull). */
+    public int getInt(int row, int column) {
+        if(columns == null) {
+            String value = storedRow(row)[column];
+            return value == null ? 0 : Integer.parseInt(value);
+        }
+        checkRow(row);
+        return columns[column].getInt(row);
+    }
+
+    /** A single value as a long; 0 if it is null (see isNull). */
+    public long getLong(int row, int column) {
+        if(columns == null) {
+            String value = storedRow(row)[column];
+            return value == null ? 0 : Long.parseLong(value);
+        }
+        checkRow(row);
+        return columns[column].getLong(row);
+    }
+
+    /**
+     * A single value as a double; 0 if it is null (see isNull).
+     * Date columns give epoch milliseconds.
+     */
+    public double getDouble(int row, int column) {
+        if(columns == null) {
+            String value = storedRow(row)[column];
+            return value == null ? 0 : Double.parseDouble(value);
+        }
+        checkRow(row);
+        return columns[column].getDouble(row);
+    }
+
+    public boolean isNull(int row, int column) {
+        if(columns == null) {
+            return storedRow(row)[column] == null;
+        }
+        checkRow(row);
+        return columns[column].isNull(row);
     }
 
     public void addRow(String[] row) {
-        queryResults.add(row);
+        if(readOnly) {
+            throw new UnsupportedOperationException("DBResults is read-only");
+        }
+        if(columns == null) {
+            if(spill == null && rowBytes > memoryBudget) {
+                spill = new SpillStore(columnCount);
+            }
+            if(spill != null) {
+                spill.append(row);
+            } else {
+                queryResults.add(row);
+                rowBytes += dictionaries == null ? estimateBytes(row) : internRow(row);
+            }
+            return;
+        }
+        for(int i = 0; i < columnCount; ++i) {
+            columns[i].append(row[i]);
+        }
+        ++rowCount;
+    }
+
+    /**
+     * Replace the row at index with row, for DBResults stored as
+     * strings (see IncrementalQuery). Rows of a columnar DBResults
+     * cannot be replaced.
+     */
+    public void setRow(int index, String[] row) {
+        if(readOnly) {
+            throw new UnsupportedOperationException("DBResults is read-only");
+        }
+        if(columns != null) {
+            throw new UnsupportedOperationException(
+                    "Rows of a columnar DBResults cannot be replaced");
+        }
+        if(index >= queryResults.size() && spill != null) {
+            spill.replace(index - queryResults.size(), row);
+        } else {
+            String[] old = queryResults.set(index, row);
+            rowBytes += dictionaries == null ? estimateBytes(row) : internRow(row);
+            // Values shared through a dictionary stay in use.
+            if(dictionaries == null) {
+                rowBytes -= estimateBytes(old);
+            }
+        }
+        ++modCount;
+    }
+
+    /** Append the current row of a ResultSet to a columnar DBResults. */
+    void addRow(ResultSet resultSet) throws SQLException {
+        for(int i = 0; i < columnCount; ++i) {
+            columns[i].read(resultSet, i + 1);
+        }
+        ++rowCount;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * A read-only view of these results that shares their
+     * storage but not their connection, suitable for handing
+     * to many threads (from a ResultCache, say). Stop adding
+     * rows to this DBResults once the copy has been made.
+     */
+    public DBResults readOnlyCopy() {
+        DBResults copy = new DBResults(null, productName, productVersion,
+                columnCount, columnNames, queryResults, columns, getRowCount());
+        copy.rowBytes = rowBytes;
+        copy.spill = spill;
+        copy.readOnly = true;
+        return copy;
+    }
+
+    private DBResults(Connection connection, String productName,
+                      String productVersion, int columnCount,
+                      String[] columnNames, List<String[]> queryResults,
+                      Column[] columns, int rowCount) {
+        this.connection = connection;
+        this.productName = productName;
+        this.productVersion = productVersion;
+        this.columnCount = columnCount;
+        this.columnNames = columnNames;
+        rowData = new String[columnCount];
+        this.queryResults = queryResults;
+        this.columns = columns;
+        this.rowCount = rowCount;
+    }
+
+    /** Rough number of heap bytes retained by the rows. */
+    public long estimateBytes() {
+        long bytes = 64;
+        if(columns != null) {
+            for(Column column : columns) {
+                bytes += column.estimateBytes();
+            }
+            return bytes;
+        }
+        bytes += 16 + 4L * queryResults.size() + rowBytes;
+        // Spilled rows cost only their offset.
+        return spill == null ? bytes : bytes + 8L * spill.size();
+    }
+
+    /** The budget new DBResults start with. */
+    public static void setDefaultMemoryBudget(long bytes) {
+        defaultMemoryBudget = bytes;
+    }
+
+    public static long getDefaultMemoryBudget() {
+        return defaultMemoryBudget;
+    }
+
+    /**
+     * Estimated heap bytes (see estimateBytes) of rows to keep
+     * in memory before spilling the rest to disk.
+     */
+    public void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /** Whether some rows are being kept on disk. */
+    public boolean isSpilled() {
+        return spill != null;
+    }
+
+    /**
+     * Delete the file holding spilled rows, if any; they can no
+     * longer be read afterwards. Does nothing for a read-only copy,
+     * whose rows belong to the DBResults it was copied from. The
+     * connection is not closed.
+     */
+    @Override
+    public void close() {
+        if(spill != null && !readOnly) {
+            spill.close();
+        }
+    }
+
+    // Swap each entry for the equal String already stored, if
+    // any, and return the bytes the row adds, counting only
+    // values not seen before.
+    private long internRow(String[] row) {
+        long bytes = 16 + 4L * row.length;
+        for(int i = 0; i < columnCount; ++i) {
+            String value = row[i];
+            if(value == null) {
+                continue;
+            }
+            StringDictionary dictionary = dictionaries[i];
+            if(dictionary == null) {
+                bytes += estimateBytes(value);
+                continue;
+            }
+            int size = dictionary.size();
+            String shared = dictionary.intern(value);
+            if(shared == null) {
+                // Too many distinct values to be worth sharing.
+                dictionaries[i] = null;
+                bytes += estimateBytes(value);
+            } else {
+                row[i] = shared;
+                if(dictionary.size() > size) {
+                    bytes += estimateBytes(value);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /** Whether a column is currently stored through a dictionary. */
+    public boolean isDictionaryEncoded(int column) {
+        if(columns == null) {
+            return dictionaries != null && dictionaries[column] != null;
+        }
+        return columns[column] instanceof Column.StringColumn
+                && ((Column.StringColumn) columns[column]).isDictionaryEncoded();
+    }
+
+    /** Distinct values per column for DBResults created from now on; 0 disables. */
+    public static void setDefaultDictionarySize(int size) {
+        defaultDictionarySize = Math.min(size, StringDictionary.MAX_SIZE);
+    }
+
+    public static int getDefaultDictionarySize() {
+        return defaultDictionarySize;
+    }
+
+    // Kept as rows are added, so estimateBytes is cheap enough
+    // to call after every query.
+    static long estimateBytes(String[] row) {
+        long bytes = 16 + 4L * row.length;
+        for(String entry : row) {
+            bytes += estimateBytes(entry);
+        }
+        return bytes;
+    }
+
+    // A String header plus its (Latin-1 compacted) characters.
+    static long estimateBytes(String entry) {
+        return entry == null ? 0 : 40 + entry.length();
+    }
+
+    // A row of a DBResults stored as strings, not to be changed.
+    private String[] storedRow(int row) {
+        if(row >= queryResults.size() && spill != null) {
+            return spill.get(row - queryResults.size());
+        }
+        return queryResults.get(row);
+    }
+
+    private void checkRow(int row) {
+        if(row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException("Row " + row
+                    + " of " + rowCount);
+        }
     }
 
     /**
@@ -80,34 +458,23 @@ public class DBResults {
      * the results filling regular data cells.
      */
     public String toHTMLTable(String headingColor) {
-        StringBuilder buffer = new StringBuilder();
-        buffer.append("<table border=1>\n");
-        if(headingColor != null && !headingColor.isEmpty()) {
-        	buffer.append("\t<tr bgcolor=\"");
-        	buffer.append(headingColor);
-        	buffer.append("\">\n");
-		} else {
-        	buffer.append("\t<tr>\n");
-		}
-        for(String columnName : columnNames) {
-        	buffer.append("<th>");
-        	buffer.append(columnName);
-        	buffer.append("</th>");
-		}
-        buffer.append("\n\t</th>");
-        for (String[] rowData : queryResults) {
-            buffer.append("\n\t<tr>\n\t\t");
-            for (String s : rowData) {
-				buffer.append("<td>");
-				buffer.append(s);
-				buffer.append("</td>");
-            }
-            buffer.append("\n\t</tr>\n");
+        StringBuilder buffer = new StringBuilder(
+                HtmlTableWriter.estimateLength(columnCount, getRowCount()));
+        try {
+            writeHTMLTable(buffer, headingColor);
+        } catch (IOException ioe) {
+            // StringBuilder.append never throws.
+            throw new UncheckedIOException(ioe);
         }
-
-        buffer.append("\n</table>");
-		System.out.println(buffer.toString());
         return buffer.toString();
     }
 
+    /**
+     * Like toHTMLTable, but writes the table straight to out
+     * (a Writer, for instance) instead of building a String.
+     */
+    public void writeHTMLTable(Appendable out, String headingColor)
+            throws IOException {
+        new HtmlTableWriter(out, headingColor).write(this);
+    }
 }
@@ -0,0 +1,148 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Everything about a datasource that never changes once it is
+ * known, so that it is worked out once rather than on every query.
+ * <ul>
+ * 		<li>loadDriver loads each driver class only the first time
+ * 			it is asked for.</li>
+ * 		<li>getProduct caches the database product name and version
+ * 			per URL; DatabaseUtilites and DBResults use it instead of
+ * 			asking the DatabaseMetaData each time.</li>
+ * 		<li>register sets up a named datasource from its Vendor at
+ * 			startup, opening its pool's minimum connections and
+ * 			reading the product details, so the first real query
+ * 			finds everything ready.</li>
+ * </ul>
+ */
+
+public final class DataSourceRegistry {
+    private static final Set<String> LOADED_DRIVERS = ConcurrentHashMap.newKeySet();
+    private static final Map<String, Product> PRODUCTS = new ConcurrentHashMap<>();
+    private static final Map<String, ConnectionPool> DATA_SOURCES = new ConcurrentHashMap<>();
+
+    private DataSourceRegistry() {
+    }
+
+    /** Name and version of a database product. */
+    public static final class Product {
+        private final String name;
+        private final String version;
+
+        Product(String name, String version) {
+            this.name = name;
+            this.version = version;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        /** Whether the name contains any of the given (lower case) strings. */
+        public boolean isOneOf(String... names) {
+            String lowerName = name.toLowerCase();
+            for(String candidate : names) {
+                if(lowerName.contains(candidate)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + version;
+        }
+    }
+
+    /** Load the driver class, unless it has been loaded already. */
+    public static void loadDriver(String driver) throws ClassNotFoundException {
+        if(driver == null || driver.isEmpty() || LOADED_DRIVERS.contains(driver)) {
+            return;
+        }
+        Class.forName(driver);
+        LOADED_DRIVERS.add(driver);
+    }
+
+    /**
+     * The product behind a connection, read from its metadata
+     * the first time its URL is seen.
+     */
+    public static Product getProduct(Connection connection) throws SQLException {
+        String url = QueryMetrics.dataSourceOf(connection);
+        Product product = PRODUCTS.get(url);
+        if(product == null) {
+            DatabaseMetaData dbMetaData = connection.getMetaData();
+            product = new Product(dbMetaData.getDatabaseProductName(),
+                    dbMetaData.getDatabaseProductVersion());
+            PRODUCTS.put(url, product);
+        }
+        return product;
+    }
+
+    /**
+     * Set up the named datasource: load its driver, open its pool
+     * with minSize connections ready and cache its product details.
+     * A null or empty port means the vendor's default.
+     */
+    public static ConnectionPool register(String name, Vendor vendor,
+                                          String host, String port,
+                                          String dbName, String username,
+                                          String password, int minSize,
+                                          int maxSize)
+            throws SQLException {
+        return register(name, vendor.getDriver(),
+                vendor.makeURL(host, port, dbName), username, password,
+                minSize, maxSize);
+    }
+
+    /** Like the previous method, for any driver and URL. */
+    public static ConnectionPool register(String name, String driver,
+                                          String url, String username,
+                                          String password, int minSize,
+                                          int maxSize)
+            throws SQLException {
+        try {
+            loadDriver(driver);
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("Error loading driver: " + driver, e);
+        }
+        ConnectionPool pool = new ConnectionPool(null, url, username,
+                password, minSize, maxSize);
+        try (Connection connection = pool.getConnection()) {
+            getProduct(connection);
+        } catch (SQLException sqle) {
+            pool.close();
+            throw sqle;
+        }
+        ConnectionPool previous = DATA_SOURCES.put(name, pool);
+        if(previous != null) {
+            previous.close();
+        }
+        return pool;
+    }
+
+    /** The pool of a registered datasource, or null. */
+    public static ConnectionPool getPool(String name) {
+        return DATA_SOURCES.get(name);
+    }
+
+    /** Close every registered datasource's pool. */
+    public static void closeAll() {
+        for(ConnectionPool pool : DATA_SOURCES.values()) {
+            pool.close();
+        }
+        DATA_SOURCES.clear();
+    }
+}
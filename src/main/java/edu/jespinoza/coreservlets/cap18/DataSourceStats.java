@@ -0,0 +1,84 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How long callers wait to get a connection to one datasource,
+ * and how often they give up. See QueryMetrics.
+ */
+
+public class DataSourceStats implements DataSourceStatsMBean {
+    private final String dataSource;
+    private final LatencyHistogram acquireWait = new LatencyHistogram();
+    private final LongAdder timeouts = new LongAdder();
+    private volatile ConnectionPool pool;
+
+    DataSourceStats(String dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    void recordAcquire(ConnectionPool pool, long waitNanos, boolean timedOut) {
+        this.pool = pool;
+        acquireWait.record(waitNanos);
+        if(timedOut) {
+            timeouts.increment();
+        }
+    }
+
+    @Override
+    public String getDataSource() {
+        return dataSource;
+    }
+
+    public LatencyHistogram getAcquireWait() {
+        return acquireWait;
+    }
+
+    @Override
+    public long getAcquireCount() {
+        return acquireWait.getCount();
+    }
+
+    @Override
+    public long getAcquireTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public double getAcquireWaitMean() {
+        return acquireWait.getMean();
+    }
+
+    @Override
+    public double getAcquireWait95thPercentile() {
+        return acquireWait.getPercentile(95);
+    }
+
+    @Override
+    public double getAcquireWait99thPercentile() {
+        return acquireWait.getPercentile(99);
+    }
+
+    @Override
+    public double getAcquireWaitMax() {
+        return acquireWait.getMax();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        ConnectionPool current = pool;
+        return current == null ? -1 : current.getActiveCount();
+    }
+
+    @Override
+    public int getIdleConnections() {
+        ConnectionPool current = pool;
+        return current == null ? -1 : current.getIdleCount();
+    }
+
+    @Override
+    public void reset() {
+        acquireWait.reset();
+        timeouts.reset();
+    }
+}
@@ -0,0 +1,29 @@
+package edu.jespinoza.coreservlets.cap18;
+
+/**
+ * JMX view of connection statistics for one datasource.
+ * Times are in milliseconds; the connection counts are -1
+ * unless the datasource is reached through a ConnectionPool.
+ */
+
+public interface DataSourceStatsMBean {
+    String getDataSource();
+
+    long getAcquireCount();
+
+    long getAcquireTimeoutCount();
+
+    double getAcquireWaitMean();
+
+    double getAcquireWait95thPercentile();
+
+    double getAcquireWait99thPercentile();
+
+    double getAcquireWaitMax();
+
+    int getActiveConnections();
+
+    int getIdleConnections();
+
+    void reset();
+}
@@ -1,6 +1,11 @@
 package edu.jespinoza.coreservlets.cap18;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
 
 public class DatabaseUtilites {
 
@@ -16,7 +21,7 @@ public class DatabaseUtilites {
                                             String query,
                                             boolean close) {
         try {
-            Class.forName(driver);
+            DataSourceRegistry.loadDriver(driver);
             Connection connection =
                     DriverManager.getConnection(url, username, password);
             return getQueryResults(connection, query, close);
@@ -30,34 +35,74 @@ public class DatabaseUtilites {
         return null;
     }
 
+    /**
+     * Borrow a connection from the pool, execute the query
+     * (with any ? placeholders bound to params) and give the
+     * connection back, even if the query fails. The
+     * PreparedStatement stays in the connection's statement
+     * cache for the next call with the same SQL. If the pool's
+     * datasource has an AdmissionController, the query first
+     * waits for its turn there and keeps to its deadline.
+     */
+    public static DBResults getQueryResults(ConnectionPool pool, String query,
+                                            Object... params) {
+        try {
+            return executeQuery(pool, query, params);
+        } catch (SQLException sqle) {
+            System.err.println("Error connecting: " + sqle);
+            sqle.printStackTrace();
+        }
+        return null;
+    }
+
+    /** The body of the previous method, throwing instead of returning null. */
+    static DBResults executeQuery(ConnectionPool pool, String query,
+                                  Object[] params) throws SQLException {
+        try (AdmissionController.Permit permit = AdmissionController.admit(pool,
+                AdmissionController.Priority.INTERACTIVE, 0);
+             Connection connection = pool.getConnection()) {
+            try {
+                return executeQuery(connection, query, params, permit.getQueryTimeout(),
+                        permit::watch);
+            } finally {
+                permit.unwatch();
+            }
+        }
+    }
+
+    /**
+     * Like the previous method, but answers from the cache when
+     * it holds fresh results for the same datasource, query and
+     * parameters. The results are read-only.
+     */
+    public static DBResults getQueryResults(ResultCache cache,
+                                            ConnectionPool pool, String query,
+                                            Object... params) {
+        return cache.get(pool, query, params);
+    }
+
+    /**
+     * Run a query with no placeholders, closing the connection
+     * afterwards if close is true. For a query with ? placeholders
+     * use getPreparedQueryResults: a single boolean parameter
+     * passed here would be taken as close, not bound.
+     */
     public static DBResults getQueryResults(Connection connection,
                                             String query, boolean close) {
+        QueryMetrics metrics = QueryMetrics.getInstance();
         try {
-            DatabaseMetaData dbMetaData = connection.getMetaData();
-            String productName = dbMetaData.getDatabaseProductName();
-            String productVersion = dbMetaData.getDatabaseProductVersion();
-            Statement statement = connection.createStatement();
-            ResultSet resultSet = statement.executeQuery(query);
-            ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
-            int columnCount = resultSetMetaData.getColumnCount();
-            String[] columnNames = new String[columnCount];
-            // Column index starts at 1 (a la SQL) not 0 (a la Java).
-            for(int i = 1; i <= columnCount; ++i) {
-                columnNames[i - 1] = resultSetMetaData.getColumnName(i).trim();
-            }
-            DBResults dbResults = new DBResults(connection, productName, productVersion,
-                    columnCount, columnNames);
-            while(resultSet.next()) {
-                String[] row = new String[columnCount];
-                // Again, ResultSet index starts at 1, not 0.
-                for(int i = 1; i <= columnCount; ++i) {
-                    String entry = resultSet.getString(i);
-                    if(entry != null && !entry.isEmpty()) {
-                        entry = entry.trim();
-                    }
-                    row[i - 1] = entry;
+            DBResults dbResults;
+            long start = System.nanoTime();
+            try (Statement statement = connection.createStatement()) {
+                FetchSizeTuner.Tuning tuning = tuneFetchSize(connection, statement, query);
+                try (ResultSet resultSet = statement.executeQuery(query)) {
+                    long executed = System.nanoTime();
+                    dbResults = readResults(connection, resultSet, tuning);
+                    metrics.recordQuery(connection, query, start, executed, dbResults);
                 }
-                dbResults.addRow(row);
+            } catch (SQLException sqle) {
+                metrics.recordError(connection, query);
+                throw sqle;
             }
             if(close) {
                 connection.close();
@@ -70,13 +115,381 @@ public class DatabaseUtilites {
         return null;
     }
 
+    /**
+     * Execute a query whose ? placeholders are bound, in order,
+     * to params. On a connection from a ConnectionPool the
+     * PreparedStatement is cached per connection (keyed by the
+     * SQL text), so the database parses and plans each distinct
+     * query only once; on other connections it is closed after
+     * use. The connection is left open. (Not an overload of
+     * getQueryResults, whose (Connection, String, boolean close)
+     * form would capture a single boolean parameter.)
+     */
+    public static DBResults getPreparedQueryResults(Connection connection,
+                                                    String query, Object... params) {
+        try {
+            return executeQuery(connection, query, params, 0, null);
+        } catch (SQLException sqle) {
+            System.err.println("Error executing query: " + sqle);
+            sqle.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * The body of the previous method, throwing instead of
+     * returning null. A queryTimeout above 0 is passed to
+     * Statement.setQueryTimeout, and started, if not null, is
+     * given the statement just before it is executed so that
+     * another thread can cancel it.
+     */
+    static DBResults executeQuery(Connection connection, String query,
+                                  Object[] params, int queryTimeout,
+                                  Consumer<Statement> started)
+            throws SQLException {
+        try {
+            StatementCache cache = ConnectionPool.statementCacheOf(connection);
+            long start = System.nanoTime();
+            PreparedStatement statement = cache != null
+                    ? cache.prepare(query) : connection.prepareStatement(query);
+            FetchSizeTuner.Tuning tuning = null;
+            try {
+                bindParameters(statement, params);
+                if(queryTimeout > 0) {
+                    statement.setQueryTimeout(queryTimeout);
+                }
+                tuning = tuneFetchSize(connection, statement, query);
+                if(started != null) {
+                    started.accept(statement);
+                }
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    long executed = System.nanoTime();
+                    DBResults dbResults = readResults(connection, resultSet, tuning);
+                    QueryMetrics.getInstance().recordQuery(connection, query,
+                            start, executed, dbResults);
+                    return dbResults;
+                }
+            } finally {
+                if(queryTimeout > 0 && cache != null) {
+                    try {
+                        statement.setQueryTimeout(0);
+                    } catch (SQLException sqle) {}
+                }
+                if(tuning != null && cache != null) {
+                    try {
+                        statement.setFetchSize(0);
+                    } catch (SQLException sqle) {}
+                }
+                releaseStatement(statement, cache != null);
+            }
+        } catch (SQLException sqle) {
+            QueryMetrics.getInstance().recordError(connection, query);
+            throw sqle;
+        }
+    }
+
+    /**
+     * Give the statement the fetch size FetchSizeTuner picks for
+     * the query, returning the tuning to pass the rows to (null
+     * if the fetch size is left to the driver).
+     */
+    static FetchSizeTuner.Tuning tuneFetchSize(Connection connection,
+                                               Statement statement, String query)
+            throws SQLException {
+        FetchSizeTuner.Tuning tuning = FetchSizeTuner.getInstance().start(connection, query);
+        if(tuning != null) {
+            statement.setFetchSize(tuning.getFetchSize());
+        }
+        return tuning;
+    }
+
+    // Accumulate the remaining rows of the ResultSet into DBResults.
+    private static DBResults readResults(Connection connection,
+                                         ResultSet resultSet,
+                                         FetchSizeTuner.Tuning tuning)
+            throws SQLException {
+        DataSourceRegistry.Product product = DataSourceRegistry.getProduct(connection);
+        ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
+        int columnCount = resultSetMetaData.getColumnCount();
+        String[] columnNames = readColumnNames(resultSetMetaData);
+        DBResults dbResults = new DBResults(connection, product.getName(), product.getVersion(),
+                columnCount, columnNames);
+        if(tuning == null) {
+            while(resultSet.next()) {
+                dbResults.addRow(readRow(resultSet, columnCount));
+            }
+            return dbResults;
+        }
+        tuning.attach(resultSet);
+        long start = System.nanoTime();
+        while(resultSet.next()) {
+            long fetched = System.nanoTime();
+            String[] row = readRow(resultSet, columnCount);
+            tuning.rowRead(fetched - start, DBResults.estimateBytes(row));
+            dbResults.addRow(row);
+            start = System.nanoTime();
+        }
+        tuning.finish();
+        return dbResults;
+    }
+
+    // Parameter indexes start at 1, like column indexes.
+    static void bindParameters(PreparedStatement statement, Object[] params)
+            throws SQLException {
+        if(params == null) {
+            return;
+        }
+        for(int i = 0; i < params.length; ++i) {
+            if(params[i] == null) {
+                statement.setNull(i + 1, Types.NULL);
+            } else {
+                statement.setObject(i + 1, params[i]);
+            }
+        }
+    }
+
+    // A cached statement stays open for the next caller, minus
+    // its parameters; any other statement is closed.
+    static void releaseStatement(PreparedStatement statement, boolean cached) {
+        try {
+            if(cached) {
+                statement.clearParameters();
+            } else {
+                statement.close();
+            }
+        } catch (SQLException sqle) {}
+    }
+
+    /**
+     * Like getQueryResults, but stores the results by column,
+     * keeping numeric and date columns in primitive arrays
+     * (see DBResults). Much smaller for numeric-heavy results.
+     */
+    public static DBResults getColumnarQueryResults(Connection connection,
+                                                    String query,
+                                                    boolean close) {
+        return getColumnarQueryResults(connection, query, close,
+                AdmissionController.unlimited());
+    }
+
+    // permit's deadline, if any, applies to the statement.
+    private static DBResults getColumnarQueryResults(Connection connection,
+                                                     String query,
+                                                     boolean close,
+                                                     AdmissionController.Permit permit) {
+        QueryMetrics metrics = QueryMetrics.getInstance();
+        try {
+            DataSourceRegistry.Product product = DataSourceRegistry.getProduct(connection);
+            DBResults dbResults;
+            long start = System.nanoTime();
+            try (Statement statement = connection.createStatement()) {
+                FetchSizeTuner.Tuning tuning = tuneFetchSize(connection, statement, query);
+                int queryTimeout = permit.getQueryTimeout();
+                if(queryTimeout > 0) {
+                    statement.setQueryTimeout(queryTimeout);
+                }
+                permit.watch(statement);
+                try (ResultSet resultSet = statement.executeQuery(query)) {
+                    long executed = System.nanoTime();
+                    ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
+                    int columnCount = resultSetMetaData.getColumnCount();
+                    String[] columnNames = readColumnNames(resultSetMetaData);
+                    int[] columnTypes = new int[columnCount];
+                    for(int i = 1; i <= columnCount; ++i) {
+                        columnTypes[i - 1] = resultSetMetaData.getColumnType(i);
+                    }
+                    dbResults = new DBResults(connection, product.getName(), product.getVersion(),
+                            columnCount, columnNames, columnTypes);
+                    if(tuning == null) {
+                        while(resultSet.next()) {
+                            dbResults.addRow(resultSet);
+                        }
+                    } else {
+                        tuning.attach(resultSet);
+                        long rowBytes = FetchSizeTuner.estimateRowBytes(resultSetMetaData);
+                        long nextStart = System.nanoTime();
+                        while(resultSet.next()) {
+                            tuning.rowRead(System.nanoTime() - nextStart, rowBytes);
+                            dbResults.addRow(resultSet);
+                            nextStart = System.nanoTime();
+                        }
+                        tuning.finish();
+                    }
+                    metrics.recordQuery(connection, query, start, executed, dbResults);
+                }
+            } catch (SQLException sqle) {
+                metrics.recordError(connection, query);
+                throw sqle;
+            }
+            if(close) {
+                connection.close();
+            }
+            return dbResults;
+        } catch (SQLException sqle) {
+            System.err.println("Error connecting: " + sqle);
+            sqle.printStackTrace();
+        }
+        return null;
+    }
+
+    /** Like the previous method, but uses a pooled connection. */
+    public static DBResults getColumnarQueryResults(ConnectionPool pool,
+                                                    String query) {
+        try (AdmissionController.Permit permit = AdmissionController.admit(pool,
+                AdmissionController.Priority.INTERACTIVE, 0);
+             Connection connection = pool.getConnection()) {
+            try {
+                return getColumnarQueryResults(connection, query, false, permit);
+            } finally {
+                permit.unwatch();
+            }
+        } catch (SQLException sqle) {
+            System.err.println("Error connecting: " + sqle);
+            sqle.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Execute the query but, instead of accumulating the rows,
+     * hand them out one at a time through the returned QueryStream.
+     * The driver fetches fetchSize rows per round trip (0 lets
+     * FetchSizeTuner choose), so memory use does not grow with the
+     * size of the result. Close the stream when done; the
+     * connection itself is left open.
+     */
+    public static QueryStream streamQueryResults(Connection connection,
+                                                 String query,
+                                                 int fetchSize)
+            throws SQLException {
+        return new QueryStream(connection, query, fetchSize);
+    }
+
+    /**
+     * Like the previous method, but for a query with ?
+     * placeholders, bound to params in order.
+     */
+    public static QueryStream streamQueryResults(Connection connection,
+                                                 String query,
+                                                 int fetchSize,
+                                                 Object... params)
+            throws SQLException {
+        return new QueryStream(connection, query, params, fetchSize);
+    }
+
+    /**
+     * Execute the query and pass each row to the handler as
+     * soon as it is read, without keeping any of them. Returns
+     * the number of rows handled, or -1 if the query failed.
+     * If the handler throws, the query is closed and the
+     * exception propagates.
+     */
+    public static long forEachRow(Connection connection, String query,
+                                  int fetchSize, Consumer<String[]> handler) {
+        try (QueryStream rows = streamQueryResults(connection, query, fetchSize)) {
+            while(rows.hasNext()) {
+                handler.accept(rows.next());
+            }
+            return rows.getRowsRead();
+        } catch (SQLException | UncheckedSQLException e) {
+            System.err.println("Error reading results: " + e);
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
+    /**
+     * Like the previous method, but uses a pooled connection,
+     * admitted as a BATCH query if the datasource has an
+     * AdmissionController.
+     */
+    public static long forEachRow(ConnectionPool pool, String query,
+                                  int fetchSize, Consumer<String[]> handler) {
+        try (AdmissionController.Permit permit = AdmissionController.admit(pool,
+                AdmissionController.Priority.BATCH, 0);
+             Connection connection = pool.getConnection();
+             QueryStream rows = new QueryStream(connection, query, null, fetchSize,
+                     permit.getQueryTimeout())) {
+            permit.watch(rows::cancel);
+            try {
+                while(rows.hasNext()) {
+                    handler.accept(rows.next());
+                }
+                return rows.getRowsRead();
+            } finally {
+                permit.unwatch();
+            }
+        } catch (SQLException | UncheckedSQLException e) {
+            System.err.println("Error reading results: " + e);
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
+    /**
+     * Stream the results of the query into the exporter (a
+     * CsvExporter or JsonLinesExporter), which is then closed.
+     * Returns the number of rows exported, or -1 on error. Like
+     * forEachRow, the query is admitted as BATCH.
+     */
+    public static long exportQueryResults(ConnectionPool pool, String query,
+                                          int fetchSize,
+                                          ChannelExporter exporter) {
+        try (ChannelExporter out = exporter;
+             AdmissionController.Permit permit = AdmissionController.admit(pool,
+                     AdmissionController.Priority.BATCH, 0);
+             Connection connection = pool.getConnection();
+             QueryStream rows = new QueryStream(connection, query, null, fetchSize,
+                     permit.getQueryTimeout())) {
+            permit.watch(rows::cancel);
+            try {
+                return out.export(rows);
+            } finally {
+                permit.unwatch();
+            }
+        } catch (SQLException | UncheckedSQLException e) {
+            System.err.println("Error reading results: " + e);
+            e.printStackTrace();
+        } catch (IOException ioe) {
+            System.err.println("Error writing export: " + ioe);
+            ioe.printStackTrace();
+        }
+        return -1;
+    }
+
+    // Column index starts at 1 (a la SQL) not 0 (a la Java).
+    static String[] readColumnNames(ResultSetMetaData resultSetMetaData)
+            throws SQLException {
+        int columnCount = resultSetMetaData.getColumnCount();
+        String[] columnNames = new String[columnCount];
+        for(int i = 1; i <= columnCount; ++i) {
+            columnNames[i - 1] = resultSetMetaData.getColumnName(i).trim();
+        }
+        return columnNames;
+    }
+
+    // Read the current row as strings. Again, ResultSet
+    // index starts at 1, not 0.
+    static String[] readRow(ResultSet resultSet, int columnCount)
+            throws SQLException {
+        String[] row = new String[columnCount];
+        for(int i = 1; i <= columnCount; ++i) {
+            String entry = resultSet.getString(i);
+            if(entry != null && !entry.isEmpty()) {
+                entry = entry.trim();
+            }
+            row[i - 1] = entry;
+        }
+        return row;
+    }
+
     /** Build a table with the specified format and rows */
     public static Connection createTable(String driver, String url,
                                          String username, String password,
                                          String tableName, String tableFormat,
                                          String[] tableRows, boolean close) {
         try {
-            Class.forName(driver);
+            DataSourceRegistry.loadDriver(driver);
             Connection connection =
                     DriverManager.getConnection(url, username, password);
             return createTable(connection, username, password,
@@ -89,6 +502,23 @@ public class DatabaseUtilites {
         return null;
     }
 
+    /**
+     * Like the previous method, but borrows a connection from
+     * the pool and returns it when the table has been built.
+     * Returns false if the table could not be created.
+     */
+    public static boolean createTable(ConnectionPool pool,
+                                      String tableName, String tableFormat,
+                                      String[] tableRows) {
+        try (Connection connection = pool.getConnection()) {
+            return createTable(connection, pool.getUsername(), null,
+                    tableName, tableFormat, tableRows, false) != null;
+        } catch (SQLException sqle) {
+            System.err.println("Error connecting: " + sqle);
+        }
+        return false;
+    }
+
     /** Like the previous method, but uses existing connection. */
     public static Connection createTable(Connection connection,
                                          String username,
@@ -97,8 +527,7 @@ public class DatabaseUtilites {
                                          String tableFormat,
                                          String[] tableRows,
                                          boolean close) {
-        try {
-            Statement statement = connection.createStatement();
+        try (Statement statement = connection.createStatement()) {
             // Drop previous table if it exists, but don't get
             // error if it doesn't. Thus the separate try/catch here.
             try {
@@ -121,6 +550,172 @@ public class DatabaseUtilites {
         }
     }
 
+    /**
+     * Build a table like createTable, but send the rows in
+     * batches inside explicit transactions instead of one
+     * auto-committed statement per row (see BatchOptions).
+     * Returns a report on every batch, or null if the table
+     * itself could not be created. The connection's
+     * auto-commit setting is restored afterwards.
+     */
+    public static BatchReport createTable(Connection connection,
+                                          String tableName,
+                                          String tableFormat,
+                                          String[] tableRows,
+                                          BatchOptions options) {
+        try (Statement statement = connection.createStatement()) {
+            // As above, a missing table is not an error.
+            try {
+                statement.execute("DROP TABLE " + tableName);
+            } catch (SQLException sqle) {}
+            statement.execute("CREATE TABLE " + tableName + " " + tableFormat);
+        } catch (SQLException sqle) {
+            System.err.println("Error creating table: " + sqle);
+            return null;
+        }
+        return insertRows(connection, tableName, tableRows, options);
+    }
+
+    /** Like the previous method, but uses a pooled connection. */
+    public static BatchReport createTable(ConnectionPool pool,
+                                          String tableName,
+                                          String tableFormat,
+                                          String[] tableRows,
+                                          BatchOptions options) {
+        try (Connection connection = pool.getConnection()) {
+            return createTable(connection, tableName, tableFormat,
+                    tableRows, options);
+        } catch (SQLException sqle) {
+            System.err.println("Error connecting: " + sqle);
+        }
+        return null;
+    }
+
+    /**
+     * Build a table like createTable, but from a CSV file whose
+     * first line names the columns, loaded over several pooled
+     * connections at once (see CsvLoader). Returns a report on
+     * every chunk of the file, or null if the file could not be
+     * read or the table created.
+     */
+    public static CsvLoader.Report createTable(ConnectionPool pool,
+                                               String tableName,
+                                               String tableFormat,
+                                               Path csvFile,
+                                               BatchOptions options) {
+        CsvLoader loader = new CsvLoader(pool, csvFile, tableName);
+        loader.setTableFormat(tableFormat);
+        loader.setOptions(options);
+        return loader.load();
+    }
+
+    private static BatchReport insertRows(Connection connection,
+                                          String tableName,
+                                          String[] tableRows,
+                                          BatchOptions options) {
+        BatchReport report = new BatchReport();
+        String insertPrefix = "INSERT INTO " + tableName + " VALUES";
+        boolean autoCommit = true;
+        try {
+            autoCommit = connection.getAutoCommit();
+            boolean multiRow = options.isMultiRowValues()
+                    && supportsMultiRowValues(connection);
+            connection.setAutoCommit(false);
+            List<BatchReport.Batch> uncommitted = new ArrayList<>();
+            try (Statement statement = connection.createStatement()) {
+                int batchSize = options.getBatchSize();
+                for(int first = 0; first < tableRows.length; first += batchSize) {
+                    int size = Math.min(batchSize, tableRows.length - first);
+                    BatchReport.Batch batch = new BatchReport.Batch(first, size);
+                    report.add(batch);
+                    uncommitted.add(batch);
+                    try {
+                        if(multiRow) {
+                            batch.setUpdateCounts(new int[] {
+                                    statement.executeUpdate(makeMultiRowInsert(
+                                            insertPrefix, tableRows, first, size)) });
+                        } else {
+                            for(int i = first; i < first + size; ++i) {
+                                statement.addBatch(insertPrefix + tableRows[i]);
+                            }
+                            batch.setUpdateCounts(statement.executeBatch());
+                        }
+                    } catch (SQLException sqle) {
+                        // Everything since the last commit is rolled
+                        // back, so the table never holds half a batch.
+                        batch.setFailure(sqle);
+                        if(sqle instanceof BatchUpdateException) {
+                            batch.setUpdateCounts(
+                                    ((BatchUpdateException) sqle).getUpdateCounts());
+                        }
+                        try {
+                            statement.clearBatch();
+                        } catch (SQLException e) {}
+                        connection.rollback();
+                        uncommitted.clear();
+                        if(options.isStopOnError()) {
+                            return report;
+                        }
+                        continue;
+                    }
+                    if(options.getCommitInterval() > 0
+                            && uncommitted.size() >= options.getCommitInterval()) {
+                        commit(connection, uncommitted);
+                    }
+                }
+                commit(connection, uncommitted);
+            }
+        } catch (SQLException sqle) {
+            System.err.println("Error inserting rows: " + sqle);
+            try {
+                connection.rollback();
+            } catch (SQLException e) {}
+        } finally {
+            try {
+                connection.setAutoCommit(autoCommit);
+            } catch (SQLException sqle) {}
+        }
+        return report;
+    }
+
+    private static void commit(Connection connection,
+                               List<BatchReport.Batch> uncommitted)
+            throws SQLException {
+        connection.commit();
+        for(BatchReport.Batch batch : uncommitted) {
+            batch.setCommitted(true);
+        }
+        uncommitted.clear();
+    }
+
+    // "INSERT INTO t VALUES(1, 'a'), (2, 'b'), ..." in one statement.
+    private static String makeMultiRowInsert(String insertPrefix,
+                                             String[] tableRows,
+                                             int first, int size) {
+        int length = insertPrefix.length();
+        for(int i = first; i < first + size; ++i) {
+            length += tableRows[i].length() + 1;
+        }
+        StringBuilder insert = new StringBuilder(length);
+        insert.append(insertPrefix);
+        for(int i = first; i < first + size; ++i) {
+            if(i > first) {
+                insert.append(',');
+            }
+            insert.append(tableRows[i]);
+        }
+        return insert.toString();
+    }
+
+    // Oracle (before 23c) is the notable database that does
+    // not accept more than one row in an INSERT ... VALUES.
+    private static boolean supportsMultiRowValues(Connection connection)
+            throws SQLException {
+        return DataSourceRegistry.getProduct(connection).isOneOf("postgres",
+                "mysql", "mariadb", "h2", "hsql", "sql server", "derby",
+                "db2", "sqlite");
+    }
+
     public static void printTable(String driver,
                                   String url,
                                   String username,
@@ -134,6 +729,15 @@ public class DatabaseUtilites {
         printTableData(tableName, results, entrywidth, true);
     }
 
+    /** Like the next method, but uses a pooled connection. */
+    public static void printTable(ConnectionPool pool,
+                                  String tableName,
+                                  int entryWidth) {
+        String query = "SELECT * FROM " + tableName;
+        DBResults results = getQueryResults(pool, query);
+        printTableData(tableName, results, entryWidth, true);
+    }
+
     /**
      * Prints out all entries in a table. Each entry will
      * be printed in a column that is entryWidth characters
@@ -149,68 +753,80 @@ public class DatabaseUtilites {
         printTableData(tableName, results, entryWidth, true);
     }
 
-    public static void printTableData(String tableName,
-                                      DBResults results,
-                                      int entryWidth,
-                                      boolean printMetaData) {
-        if(results == null) {
-            return;
+    /**
+     * Like the previous method, but streams the rows instead of
+     * loading the whole table, sizing each column from the first
+     * rows fetched (see TextTablePrinter).
+     */
+    public static void printTable(ConnectionPool pool, String tableName) {
+        String query = "SELECT * FROM " + tableName;
+        try (Connection connection = pool.getConnection();
+             QueryStream rows = streamQueryResults(connection, query,
+                     TextTablePrinter.DEFAULT_SAMPLE_SIZE)) {
+            new TextTablePrinter(System.out).print(tableName, rows);
+        } catch (SQLException | UncheckedSQLException e) {
+            System.err.println("Error reading table: " + e);
         }
-        if(printMetaData) {
+    }
 
-            System.out.println("Database: " + results.getProductName());
-            System.out.println("Version: " + results.getProductVersion());
-            System.out.println();
-        }
-        System.out.println(tableName + ":");
-        String underline = padString("", tableName.length() + 1, "=");
-        System.out.println(underline);
-        int columnCount = results.getColumnCount();
-        String separator = makeSeparator(entryWidth, columnCount);
-        System.out.println(separator);
-        String row = makeRow(results.getColumnNames(), entryWidth);
-        System.out.println(row);
-        System.out.println(separator);
-        int rowCount = results.getRowCount();
-        for(int i = 0; i < rowCount; ++i) {
-            row = makeRow(results.getRow(i), entryWidth);
-            System.out.println(row);
+    /**
+     * Like the previous method, but reads the table over up to
+     * parallelism connections at once, split by ranges of its
+     * integer key (see PartitionedScan). Rows are printed in key
+     * order.
+     */
+    public static void printTableInParallel(ConnectionPool pool,
+                                            String tableName,
+                                            int parallelism) {
+        PartitionedScan scan = new PartitionedScan(pool, tableName);
+        scan.setParallelism(parallelism);
+        try (RowSource rows = scan.open()) {
+            new TextTablePrinter(System.out).print(tableName, rows);
+        } catch (SQLException | UncheckedSQLException e) {
+            System.err.println("Error reading table: " + e);
         }
-        System.out.println(separator);
     }
 
-    // A String of the form "| xxx | xxx | xxx |"
-    private static String makeRow(String[] entries, int entryWidth) {
-        String row = "|";
-
-        for(int i = 0; i < entries.length; ++i) {
-            row = row + padString(entries[i], entryWidth, " ");
-            row = row + " |";
+    /**
+     * The whole table, read over up to parallelism connections
+     * at once and merged in key order (see PartitionedScan).
+     */
+    public static DBResults getTableResults(ConnectionPool pool,
+                                            String tableName,
+                                            int parallelism) {
+        PartitionedScan scan = new PartitionedScan(pool, tableName);
+        scan.setParallelism(parallelism);
+        try {
+            return scan.readAll();
+        } catch (SQLException sqle) {
+            System.err.println("Error reading table: " + sqle);
+            sqle.printStackTrace();
         }
-
-        return row;
+        return null;
     }
 
-    // A String of the form "+------+------+------+"
-    private static String makeSeparator(int entryWidth, int columnCount) {
-        String entry = padString("", entryWidth + 1, "-");
-        String separator = "+";
-        for(int i = 0; i < columnCount; ++i) {
-            separator = separator + entry + "+";
+    public static void printTableData(String tableName,
+                                      DBResults results,
+                                      int entryWidth,
+                                      boolean printMetaData) {
+        if(results == null) {
+            return;
         }
-        return separator;
+        new TextTablePrinter(System.out).print(tableName, results,
+                entryWidth, printMetaData);
     }
 
-    private static String padString(String orig, int size, String padChar) {
-        if(orig == null) {
-            orig = "<null>";
-        }
-        StringBuilder buffer = new StringBuilder();
-        int extraChars = size - orig.length();
-        for(int i = 0; i < extraChars; ++i) {
-            buffer.append(padChar);
+    /**
+     * Like the previous method, but makes each column
+     * as wide as its widest entry.
+     */
+    public static void printTableData(String tableName,
+                                      DBResults results,
+                                      boolean printMetaData) {
+        if(results == null) {
+            return;
         }
-        buffer.append(orig);
-        return buffer.toString();
+        new TextTablePrinter(System.out).print(tableName, results,
+                printMetaData);
     }
 }
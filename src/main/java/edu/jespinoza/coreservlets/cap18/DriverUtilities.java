@@ -3,6 +3,9 @@ package edu.jespinoza.coreservlets.cap18;
 /** Some simple utilities for building Oracle, Postgres and MySQL
  * JDBC connections. This is <I>not</I> general-purpose
  * code -- it is specific to my local setup.
+ * <p>
+ * The int constants are kept for old callers; the details of
+ * each database now live in Vendor.
  */
 
 public class DriverUtilities {
@@ -16,51 +19,36 @@ public class DriverUtilities {
      */
     public static String makeURL(String host, String port, String dbName,
                                  int vendor) {
-        if(vendor == ORACLE) {
-            return "jdbc:oracle:thin:@" + host + ":" + port + ":" + dbName;
-        }
-
-        if(vendor == POSTGRES) {
-            return "";
-        }
-
-        if(vendor == MYSQL) {
-            return "";
-        }
+        Vendor descriptor = Vendor.forCode(vendor);
+        return descriptor == null ? null : descriptor.makeURL(host, port, dbName);
+    }
 
-        return null;
+    /** One URL per host in a comma-separated list of hosts, in
+     * the same order; with a primary and its read replicas, the
+     * primary goes first (see RoutingDataSource).
+     */
+    public static String[] makeURLs(String hosts, String port, String dbName,
+                                    int vendor) {
+        Vendor descriptor = Vendor.forCode(vendor);
+        if(descriptor == null) {
+            return null;
+        }
+        String[] names = hosts.split(",");
+        String[] urls = new String[names.length];
+        for(int i = 0; i < names.length; ++i) {
+            urls[i] = descriptor.makeURL(names[i].trim(), port, dbName);
+        }
+        return urls;
     }
 
     /** Get the fully qualified name of a driver. */
     public static String getDriver(int vendor) {
-        if(vendor == ORACLE) {
-            return "oracle.jdbc.driver.OracleDriver";
-        }
-
-        if(vendor == POSTGRES) {
-            return "";
-        }
-
-        if(vendor == MYSQL) {
-            return "";
-        }
-
-        return null;
+        Vendor descriptor = Vendor.forCode(vendor);
+        return descriptor == null ? null : descriptor.getDriver();
     }
 
     public static int getVendor(String vendorName) {
-        if(vendorName.equalsIgnoreCase("oracle")) {
-            return ORACLE;
-        }
-
-        if(vendorName.equalsIgnoreCase("postgres")) {
-            return POSTGRES;
-        }
-
-        if(vendorName.equalsIgnoreCase("mysql")) {
-            return MYSQL;
-        }
-
-        return UNKNOWN;
+        Vendor vendor = Vendor.forName(vendorName);
+        return vendor == null ? UNKNOWN : vendor.getCode();
     }
 }
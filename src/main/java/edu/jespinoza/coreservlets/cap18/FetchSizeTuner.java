@@ -0,0 +1,317 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses the fetch size (rows per round trip) of the queries
+ * run through DatabaseUtilites and QueryStream, where the caller
+ * does not give one. Left alone, some drivers fetch 10 rows at a
+ * time (Oracle), which makes large results slow.
+ * <ul>
+ * 		<li>Queries whose driver would ignore the fetch size are
+ * 			not tuned. The PostgreSQL driver reads the whole result
+ * 			at once unless autocommit is off, and MySQL Connector/J
+ * 			does unless the URL has useCursorFetch=true. So on
+ * 			PostgreSQL only the streaming reads (QueryStream, and
+ * 			forEachRow and exportQueryResults through it), which
+ * 			turn autocommit off, are tuned.</li>
+ * 		<li>ADAPTIVE (the default) starts at the fetch size learned
+ * 			for the same SQL shape (see QueryMetrics.normalize) on
+ * 			the same datasource, or at initialFetchSize, and adjusts
+ * 			it while the rows are read.</li>
+ * 		<li>It measures the bytes per row and the time of each round
+ * 			trip. The fetch size shrinks whenever a batch would pass
+ * 			targetBatchBytes, and doubles, up to that size, for as
+ * 			long as doing so still cuts the round-trip time per row
+ * 			by a tenth.</li>
+ * 		<li>The fetch size reached is remembered for the next run.</li>
+ * 		<li>FIXED always uses initialFetchSize; DRIVER_DEFAULT
+ * 			leaves the fetch size alone.</li>
+ * </ul>
+ * The fetch size always stays between minFetchSize and
+ * maxFetchSize.
+ */
+
+public class FetchSizeTuner {
+    public enum Strategy { DRIVER_DEFAULT, FIXED, ADAPTIVE }
+
+    public static final int DEFAULT_MIN_FETCH_SIZE = 10;
+    public static final int DEFAULT_MAX_FETCH_SIZE = 10000;
+    public static final int DEFAULT_INITIAL_FETCH_SIZE = 100;
+    public static final long DEFAULT_TARGET_BATCH_BYTES = 512 * 1024;
+
+    /** Shapes whose fetch size is remembered; later ones are not. */
+    public static final int MAX_LEARNED = 1000;
+
+    private static final FetchSizeTuner INSTANCE = new FetchSizeTuner();
+
+    // Growing must cut the round-trip time per row by this much.
+    private static final double MIN_GAIN = 0.9;
+
+    private final Map<String, Integer> learned = new ConcurrentHashMap<>();
+    // Datasources (by URL) and when their drivers keep to the fetch size.
+    private final Map<String, FetchSupport> support = new ConcurrentHashMap<>();
+    private volatile Strategy strategy = Strategy.ADAPTIVE;
+    private volatile int minFetchSize = DEFAULT_MIN_FETCH_SIZE;
+    private volatile int maxFetchSize = DEFAULT_MAX_FETCH_SIZE;
+    private volatile int initialFetchSize = DEFAULT_INITIAL_FETCH_SIZE;
+    private volatile long targetBatchBytes = DEFAULT_TARGET_BATCH_BYTES;
+
+    private enum FetchSupport { ALWAYS, OUTSIDE_AUTOCOMMIT, NEVER }
+
+    private FetchSizeTuner() {
+    }
+
+    public static FetchSizeTuner getInstance() {
+        return INSTANCE;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    public void setStrategy(Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    public int getMinFetchSize() {
+        return minFetchSize;
+    }
+
+    public int getMaxFetchSize() {
+        return maxFetchSize;
+    }
+
+    public void setBounds(int minFetchSize, int maxFetchSize) {
+        if(minFetchSize < 1 || maxFetchSize < minFetchSize) {
+            throw new IllegalArgumentException("Invalid fetch size bounds: min="
+                    + minFetchSize + ", max=" + maxFetchSize);
+        }
+        this.minFetchSize = minFetchSize;
+        this.maxFetchSize = maxFetchSize;
+    }
+
+    public int getInitialFetchSize() {
+        return initialFetchSize;
+    }
+
+    /** The fetch size of queries not seen before, and of every query under FIXED. */
+    public void setInitialFetchSize(int initialFetchSize) {
+        if(initialFetchSize < 1) {
+            throw new IllegalArgumentException("Fetch size must be positive: "
+                    + initialFetchSize);
+        }
+        this.initialFetchSize = initialFetchSize;
+    }
+
+    public long getTargetBatchBytes() {
+        return targetBatchBytes;
+    }
+
+    /** Rough bytes of row data a batch should hold. */
+    public void setTargetBatchBytes(long targetBatchBytes) {
+        if(targetBatchBytes < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: "
+                    + targetBatchBytes);
+        }
+        this.targetBatchBytes = targetBatchBytes;
+    }
+
+    /** The fetch size remembered for a query on a datasource, or 0. */
+    public int getLearnedFetchSize(String dataSource, String sql) {
+        Integer fetchSize = learned.get(key(dataSource, sql));
+        return fetchSize == null ? 0 : fetchSize;
+    }
+
+    /** Forget every fetch size learned so far. */
+    public void reset() {
+        learned.clear();
+    }
+
+    private static String key(String dataSource, String sql) {
+        return dataSource + '\n' + QueryMetrics.getInstance().shapeOf(sql);
+    }
+
+    /**
+     * The tuning of one run of sql on connection, or null under
+     * DRIVER_DEFAULT or if the driver would ignore the fetch size.
+     * Set its fetch size on the statement before executing it.
+     */
+    Tuning start(Connection connection, String sql) throws SQLException {
+        return start(connection, sql, connection.getAutoCommit());
+    }
+
+    /**
+     * Like the previous method, for a caller that will have set
+     * autocommit as given by the time the query runs.
+     */
+    Tuning start(Connection connection, String sql, boolean autoCommit)
+            throws SQLException {
+        Strategy strategy = this.strategy;
+        if(strategy == Strategy.DRIVER_DEFAULT) {
+            return null;
+        }
+        String dataSource = QueryMetrics.dataSourceOf(connection);
+        FetchSupport fetchSupport = support.get(dataSource);
+        if(fetchSupport == null) {
+            fetchSupport = fetchSupportOf(connection);
+            support.put(dataSource, fetchSupport);
+        }
+        if(fetchSupport == FetchSupport.NEVER
+                || (fetchSupport == FetchSupport.OUTSIDE_AUTOCOMMIT && autoCommit)) {
+            return null;
+        }
+        int fetchSize = initialFetchSize;
+        String key = null;
+        if(strategy == Strategy.ADAPTIVE) {
+            key = key(dataSource, sql);
+            Integer remembered = learned.get(key);
+            if(remembered != null) {
+                fetchSize = remembered;
+            }
+        }
+        return new Tuning(key, clamp(fetchSize));
+    }
+
+    private static FetchSupport fetchSupportOf(Connection connection)
+            throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        String driverName = metaData.getDriverName().toLowerCase();
+        if(driverName.contains("postgresql")) {
+            return FetchSupport.OUTSIDE_AUTOCOMMIT;
+        }
+        if(driverName.contains("mysql")) {
+            String url = metaData.getURL();
+            return url != null && url.toLowerCase().contains("usecursorfetch=true")
+                    ? FetchSupport.ALWAYS : FetchSupport.NEVER;
+        }
+        return FetchSupport.ALWAYS;
+    }
+
+    private int clamp(long fetchSize) {
+        return (int) Math.max(minFetchSize, Math.min(maxFetchSize, fetchSize));
+    }
+
+    /**
+     * A guess at the bytes per row of a ResultSet from its column
+     * types, for readers that do not build String rows.
+     */
+    static long estimateRowBytes(ResultSetMetaData resultSetMetaData)
+            throws SQLException {
+        int columnCount = resultSetMetaData.getColumnCount();
+        long bytes = 16;
+        for(int i = 1; i <= columnCount; ++i) {
+            switch (resultSetMetaData.getColumnType(i)) {
+                case Types.TINYINT:
+                case Types.SMALLINT:
+                case Types.INTEGER:
+                case Types.REAL:
+                    bytes += 4;
+                    break;
+                case Types.BIGINT:
+                case Types.FLOAT:
+                case Types.DOUBLE:
+                case Types.DATE:
+                case Types.TIME:
+                case Types.TIMESTAMP:
+                    bytes += 8;
+                    break;
+                default:
+                    int size = resultSetMetaData.getColumnDisplaySize(i);
+                    bytes += 40 + (size > 0 ? Math.min(size, 256) : 32);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Watches the rows of one query as they are read and moves
+     * its fetch size. Call rowRead after each ResultSet.next that
+     * returned a row, and finish once the rows are read.
+     */
+    class Tuning {
+        private final String key;
+        private int fetchSize;
+        private ResultSet resultSet;
+        private long rows;
+        private long bytes;
+        // Rows until the next call to next that fetches a batch.
+        private int untilFetch;
+        private boolean measured;
+        private boolean growing = true;
+        private double lastCostPerRow;
+
+        private Tuning(String key, int fetchSize) {
+            this.key = key;
+            this.fetchSize = fetchSize;
+        }
+
+        int getFetchSize() {
+            return fetchSize;
+        }
+
+        /** The ResultSet whose fetch size to adjust. */
+        void attach(ResultSet resultSet) {
+            if(key != null) {
+                this.resultSet = resultSet;
+            }
+        }
+
+        /**
+         * A row came back from a next call that took nextNanos,
+         * holding about rowBytes.
+         */
+        void rowRead(long nextNanos, long rowBytes) {
+            ++rows;
+            bytes += rowBytes;
+            if(resultSet == null || untilFetch-- > 0) {
+                return;
+            }
+            // This next fetched a batch (the first one may have come
+            // with the ResultSet, so it is not timed).
+            untilFetch = fetchSize - 1;
+            if(!measured) {
+                measured = true;
+                return;
+            }
+            double costPerRow = (double) nextNanos / fetchSize;
+            int bySize = clamp(targetBatchBytes * rows / Math.max(bytes, 1));
+            int next = fetchSize;
+            if(fetchSize > bySize) {
+                next = bySize;
+            } else if(growing && fetchSize < bySize) {
+                if(lastCostPerRow > 0 && costPerRow > lastCostPerRow * MIN_GAIN) {
+                    growing = false;
+                } else {
+                    next = (int) Math.min(bySize, 2L * fetchSize);
+                }
+            }
+            lastCostPerRow = costPerRow;
+            if(next != fetchSize) {
+                try {
+                    resultSet.setFetchSize(next);
+                    fetchSize = next;
+                } catch (SQLException sqle) {
+                    resultSet = null;
+                }
+            }
+        }
+
+        /** Remember the fetch size reached, if enough rows were read to judge. */
+        void finish() {
+            if(key == null || !measured) {
+                return;
+            }
+            if(learned.size() < MAX_LEARNED || learned.containsKey(key)) {
+                learned.put(key, fetchSize);
+            }
+        }
+    }
+}
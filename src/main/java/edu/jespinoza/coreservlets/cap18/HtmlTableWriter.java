@@ -0,0 +1,184 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.io.BufferedWriter;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes query results as an HTML table, row by row, straight
+ * to a Writer, OutputStream or any other Appendable. Nothing
+ * is gathered into one big String first, so a servlet can start
+ * sending the page before the query has finished (see
+ * write(RowSource)). Cell contents and column names are
+ * HTML-escaped.
+ */
+
+public class HtmlTableWriter {
+    /** Rows between flushes when writing a RowSource. */
+    public static final int DEFAULT_FLUSH_INTERVAL = 100;
+
+    // Markup around each cell, plus a guess at the
+    // average cell, used to size StringBuilders.
+    private static final int CELL_OVERHEAD = "<td></td>".length();
+    private static final int AVERAGE_CELL_LENGTH = 12;
+
+    private final Appendable out;
+    private final String headingColor;
+
+    public HtmlTableWriter(Appendable out, String headingColor) {
+        this.out = out;
+        this.headingColor = headingColor;
+    }
+
+    /** Write UTF-8 encoded HTML to the stream, through a buffer. */
+    public HtmlTableWriter(OutputStream out, String headingColor) {
+        this(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)),
+                headingColor);
+    }
+
+    /** Roughly how many chars a table of this size will take. */
+    public static int estimateLength(int columnCount, int rowCount) {
+        long rowLength = 12 + (long) columnCount * (CELL_OVERHEAD + AVERAGE_CELL_LENGTH);
+        long length = 64 + rowLength * (rowCount + 1);
+        return (int) Math.min(length, Integer.MAX_VALUE - 8);
+    }
+
+    /** Write a complete table. */
+    public void write(DBResults results) throws IOException {
+        writeHeader(results.getColumnNames());
+        int rowCount = results.getRowCount();
+        for(int row = 0; row < rowCount; ++row) {
+            writeRow(results.getRow(row));
+        }
+        writeFooter();
+        flush();
+    }
+
+    /**
+     * Write a complete table as the rows are fetched, flushing
+     * every flushInterval rows so the reader sees them arrive.
+     * Returns the number of rows written. flushInterval must be
+     * positive; the rows are not read if it is not.
+     */
+    public long write(RowSource rows, int flushInterval) throws IOException {
+        if(flushInterval < 1) {
+            throw new IllegalArgumentException("Flush interval must be positive: "
+                    + flushInterval);
+        }
+        writeHeader(rows.getColumnNames());
+        long count = 0;
+        while(rows.hasNext()) {
+            writeRow(rows.next());
+            if(++count % flushInterval == 0) {
+                flush();
+            }
+        }
+        writeFooter();
+        flush();
+        return count;
+    }
+
+    public long write(RowSource rows) throws IOException {
+        return write(rows, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /** Open the table and write the heading row. */
+    public void writeHeader(String[] columnNames) throws IOException {
+        out.append("<table border=1>\n");
+        if(headingColor != null && !headingColor.isEmpty()) {
+            out.append("\t<tr bgcolor=\"");
+            escape(headingColor, out);
+            out.append("\">\n");
+        } else {
+            out.append("\t<tr>\n");
+        }
+        out.append("\t\t");
+        for(String columnName : columnNames) {
+            out.append("<th>");
+            escape(columnName, out);
+            out.append("</th>");
+        }
+        out.append("\n\t</tr>\n");
+    }
+
+    public void writeRow(String[] row) throws IOException {
+        out.append("\t<tr>\n\t\t");
+        for(String cell : row) {
+            out.append("<td>");
+            escape(cell, out);
+            out.append("</td>");
+        }
+        out.append("\n\t</tr>\n");
+    }
+
+    public void writeFooter() throws IOException {
+        out.append("</table>");
+    }
+
+    public void flush() throws IOException {
+        if(out instanceof Flushable) {
+            ((Flushable) out).flush();
+        }
+    }
+
+    /**
+     * Append text with &amp;, &lt;, &gt;, &quot; and &#39; escaped.
+     * Runs of ordinary characters are copied as a block, and
+     * nothing is allocated along the way. A null value is written
+     * as "null", as StringBuilder.append would.
+     */
+    public static void escape(String text, Appendable out) throws IOException {
+        if(text == null) {
+            out.append("null");
+            return;
+        }
+        int start = 0;
+        int length = text.length();
+        for(int i = 0; i < length; ++i) {
+            String entity;
+            switch (text.charAt(i)) {
+                case '&':
+                    entity = "&amp;";
+                    break;
+                case '<':
+                    entity = "&lt;";
+                    break;
+                case '>':
+                    entity = "&gt;";
+                    break;
+                case '"':
+                    entity = "&quot;";
+                    break;
+                case '\'':
+                    entity = "&#39;";
+                    break;
+                default:
+                    continue;
+            }
+            appendRange(text, start, i, out);
+            out.append(entity);
+            start = i + 1;
+        }
+        appendRange(text, start, length, out);
+    }
+
+    // Writer.append(CharSequence, int, int) makes a substring,
+    // so writers get the allocation-free write(String, int, int).
+    private static void appendRange(String text, int start, int end,
+                                    Appendable out) throws IOException {
+        if(start == end) {
+            return;
+        }
+        if(start == 0 && end == text.length()) {
+            out.append(text);
+        } else if(out instanceof Writer) {
+            ((Writer) out).write(text, start, end - start);
+        } else {
+            out.append(text, start, end);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the DBResults of a query up to date by fetching only the
+ * rows that changed since the last refresh, for tables that are
+ * mostly appended to.
+ * <ul>
+ * 		<li>The watermark column only ever grows for new or changed
+ * 			rows: an id from a sequence, or an updated-at timestamp.
+ * 			Each refresh reads WHERE watermark &gt;= the highest value
+ * 			seen so far, which with an index costs in proportion to
+ * 			the rows changed, not to the size of the table.</li>
+ * 		<li>Rows are matched by the key column (unique, often the
+ * 			same as the watermark). A row whose key is already in
+ * 			the results replaces it in place; others are appended.</li>
+ * 		<li>Rows at the watermark itself are read again each time,
+ * 			so a row committed late with the same timestamp is not
+ * 			missed; those that have not changed are ignored.</li>
+ * </ul>
+ * Deleted rows are not noticed. Fetching (fetchChanges) may happen
+ * on any thread, but merge changes the DBResults and must run
+ * where the results are read, for a table on the event dispatch
+ * thread. refresh does both. cancel may be called from any thread.
+ */
+
+public class IncrementalQuery {
+    private final ConnectionPool pool;
+    private final String query;
+    private final String keyColumn;
+    private final String watermarkColumn;
+    private final Map<String, Integer> rowOfKey = new HashMap<>();
+    private DBResults results;
+    private int keyIndex = -1;
+    private volatile Object watermark;
+    // The statement fetchChanges is running, for cancel.
+    private volatile Statement running;
+
+    /** The rows read by one fetchChanges, and what merge did with them. */
+    public static class Changes {
+        private final String[] columnNames;
+        private final List<String[]> rows;
+        private final Object watermark;
+        private int[] updatedRows = new int[0];
+        private int firstInsertedRow;
+        private int insertedCount;
+
+        private Changes(String[] columnNames, List<String[]> rows, Object watermark) {
+            this.columnNames = columnNames;
+            this.rows = rows;
+            this.watermark = watermark;
+        }
+
+        /** Rows read, including any found unchanged by merge. */
+        public int getRowsRead() {
+            return rows.size();
+        }
+
+        /** Indexes of the rows merge replaced with new values. */
+        public int[] getUpdatedRows() {
+            return updatedRows;
+        }
+
+        /** Index of the first row merge appended. */
+        public int getFirstInsertedRow() {
+            return firstInsertedRow;
+        }
+
+        public int getInsertedCount() {
+            return insertedCount;
+        }
+
+        public boolean isEmpty() {
+            return updatedRows.length == 0 && insertedCount == 0;
+        }
+    }
+
+    public IncrementalQuery(ConnectionPool pool, String query,
+                            String keyColumn, String watermarkColumn) {
+        this.pool = pool;
+        this.query = query;
+        this.keyColumn = keyColumn.trim();
+        this.watermarkColumn = watermarkColumn.trim();
+    }
+
+    /** The results so far; null until the first merge. */
+    public DBResults getResults() {
+        return results;
+    }
+
+    /** The highest watermark merged so far, or null. */
+    public Object getWatermark() {
+        return watermark;
+    }
+
+    /** Fetch and merge in one go. */
+    public Changes refresh() throws SQLException {
+        Changes changes = fetchChanges();
+        merge(changes);
+        return changes;
+    }
+
+    /**
+     * Read the rows at or past the watermark (all of them, the
+     * first time), without touching the results.
+     */
+    public Changes fetchChanges() throws SQLException {
+        Object since = watermark;
+        StringBuilder sql = new StringBuilder(query.length() + 64);
+        sql.append("SELECT * FROM (").append(query).append(") q");
+        if(since != null) {
+            sql.append(" WHERE ").append(watermarkColumn).append(" >= ?");
+        }
+        sql.append(" ORDER BY ").append(watermarkColumn);
+        String changesQuery = sql.toString();
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(changesQuery)) {
+            if(since != null) {
+                statement.setObject(1, since);
+            }
+            FetchSizeTuner.Tuning tuning =
+                    DatabaseUtilites.tuneFetchSize(connection, statement, changesQuery);
+            long start = System.nanoTime();
+            running = statement;
+            try (ResultSet resultSet = statement.executeQuery()) {
+                long executed = System.nanoTime();
+                ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
+                int columnCount = resultSetMetaData.getColumnCount();
+                String[] columnNames = DatabaseUtilites.readColumnNames(resultSetMetaData);
+                int watermarkIndex = resultSet.findColumn(watermarkColumn);
+                if(tuning != null) {
+                    tuning.attach(resultSet);
+                }
+                List<String[]> rows = new ArrayList<>();
+                Object last = since;
+                long bytes = 0;
+                long nextStart = System.nanoTime();
+                while(resultSet.next()) {
+                    long fetched = System.nanoTime();
+                    Object value = resultSet.getObject(watermarkIndex);
+                    if(value != null) {
+                        last = value;
+                    }
+                    String[] row = DatabaseUtilites.readRow(resultSet, columnCount);
+                    long rowBytes = DBResults.estimateBytes(row);
+                    if(tuning != null) {
+                        tuning.rowRead(fetched - nextStart, rowBytes);
+                    }
+                    bytes += rowBytes;
+                    rows.add(row);
+                    nextStart = System.nanoTime();
+                }
+                if(tuning != null) {
+                    tuning.finish();
+                }
+                QueryMetrics.getInstance().recordQuery(QueryMetrics.dataSourceOf(connection),
+                        changesQuery, executed - start, System.nanoTime() - executed,
+                        rows.size(), bytes);
+                return new Changes(columnNames, rows, last);
+            } finally {
+                running = null;
+            }
+        } catch (SQLException sqle) {
+            QueryMetrics.getInstance().recordError(pool.getURL(), changesQuery);
+            throw sqle;
+        }
+    }
+
+    /**
+     * Ask the database to abort a fetchChanges under way, which
+     * then fails with an SQLException; the results and watermark
+     * are left as they were.
+     */
+    public void cancel() {
+        Statement statement = running;
+        if(statement != null) {
+            try {
+                statement.cancel();
+            } catch (SQLException sqle) {
+                System.err.println("Error cancelling query: " + sqle);
+            }
+        }
+    }
+
+    /**
+     * Merge rows from fetchChanges into the results, recording
+     * in changes which rows were replaced and which appended.
+     */
+    public void merge(Changes changes) {
+        if(results == null) {
+            results = new DBResults(null, null, null, changes.columnNames.length,
+                    changes.columnNames);
+            keyIndex = Arrays.asList(changes.columnNames).indexOf(keyColumn);
+            if(keyIndex < 0) {
+                keyIndex = indexIgnoringCase(changes.columnNames, keyColumn);
+            }
+            if(keyIndex < 0) {
+                throw new IllegalArgumentException("No column " + keyColumn
+                        + " in " + Arrays.toString(changes.columnNames));
+            }
+        }
+        int[] updated = new int[changes.rows.size()];
+        int updatedCount = 0;
+        changes.firstInsertedRow = results.getRowCount();
+        for(String[] row : changes.rows) {
+            Integer index = rowOfKey.get(row[keyIndex]);
+            if(index == null) {
+                rowOfKey.put(row[keyIndex], results.getRowCount());
+                results.addRow(row);
+                ++changes.insertedCount;
+            } else if(!Arrays.equals(results.getRow(index), row)) {
+                results.setRow(index, row);
+                // A row both added and changed in this batch counts
+                // as added.
+                if(index < changes.firstInsertedRow) {
+                    updated[updatedCount++] = index;
+                }
+            }
+        }
+        changes.updatedRows = Arrays.copyOf(updated, updatedCount);
+        watermark = changes.watermark;
+    }
+
+    // Databases differ in the case of the names they report.
+    private static int indexIgnoringCase(String[] names, String name) {
+        for(int i = 0; i < names.length; ++i) {
+            if(names[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
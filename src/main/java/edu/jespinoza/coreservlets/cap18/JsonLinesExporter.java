@@ -0,0 +1,125 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Writes rows as JSON Lines: one object per line, keyed by
+ * column name. Values are JSON strings (or numbers, for the
+ * integer columns of a columnar DBResults) and nulls are null.
+ * The keys are escaped once, up front. See ChannelExporter.
+ */
+
+public class JsonLinesExporter extends ChannelExporter {
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    // "name": for each column, with a comma before all but the first.
+    private byte[][] keys;
+
+    public JsonLinesExporter(WritableByteChannel channel) {
+        super(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    /** Write to a file, gzipped if gzip is true. */
+    public JsonLinesExporter(Path path, boolean gzip) throws IOException {
+        super(open(path, gzip), DEFAULT_BUFFER_SIZE);
+    }
+
+    @Override
+    protected void writeHeader(String[] columnNames) {
+        keys = new byte[columnNames.length][];
+        for(int column = 0; column < columnNames.length; ++column) {
+            StringBuilder key = new StringBuilder(columnNames[column].length() + 4);
+            if(column > 0) {
+                key.append(',');
+            }
+            key.append('"');
+            for(char c : columnNames[column].toCharArray()) {
+                if(c == '"' || c == '\\') {
+                    key.append('\\').append(c);
+                } else if(c < 0x20) {
+                    key.append(String.format("\\u%04x", (int) c));
+                } else {
+                    key.append(c);
+                }
+            }
+            key.append("\":");
+            keys[column] = key.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Override
+    protected void beginRow() throws IOException {
+        put((byte) '{');
+    }
+
+    @Override
+    protected void writeValue(int column, String value) throws IOException {
+        put(keys[column]);
+        put((byte) '"');
+        int length = value.length();
+        int i = 0;
+        while(i < length) {
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\') {
+                put((byte) '\\');
+                put((byte) c);
+                ++i;
+            } else if(c < 0x20) {
+                escapeControl(c);
+                ++i;
+            } else {
+                i += putChar(c, i + 1 < length ? value.charAt(i + 1) : 0);
+            }
+        }
+        put((byte) '"');
+    }
+
+    private void escapeControl(char c) throws IOException {
+        put((byte) '\\');
+        switch(c) {
+            case '\n':
+                put((byte) 'n');
+                break;
+            case '\r':
+                put((byte) 'r');
+                break;
+            case '\t':
+                put((byte) 't');
+                break;
+            case '\b':
+                put((byte) 'b');
+                break;
+            case '\f':
+                put((byte) 'f');
+                break;
+            default:
+                put((byte) 'u');
+                put((byte) '0');
+                put((byte) '0');
+                put(HEX[c >> 4]);
+                put(HEX[c & 0xf]);
+        }
+    }
+
+    @Override
+    protected void writeNumber(int column, long value) throws IOException {
+        put(keys[column]);
+        putLong(value);
+    }
+
+    @Override
+    protected void writeNull(int column) throws IOException {
+        put(keys[column]);
+        put(NULL);
+    }
+
+    @Override
+    protected void endRow() throws IOException {
+        put((byte) '}');
+        put((byte) '\n');
+    }
+}
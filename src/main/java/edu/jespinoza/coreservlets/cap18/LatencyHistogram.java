@@ -0,0 +1,123 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations, recorded in microseconds.
+ * Buckets are log-linear: every power of two is split into 8
+ * buckets, so any percentile is off by at most about 12%.
+ * Every counter, the buckets included, is a LongAdder, so
+ * threads recording the same query at once add to cells of their
+ * own instead of fighting over one cache line. Recording never
+ * blocks and is cheap enough to leave on in production.
+ */
+
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BUCKET_BITS = 3;
+    // Durations up to 2^40 microseconds (about 12 days).
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - 1) * SUB_BUCKETS;
+
+    // Made the first time each bucket is hit, as most never are.
+    private final AtomicReferenceArray<LongAdder> buckets =
+            new AtomicReferenceArray<>(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        bucket(bucketOf(micros)).increment();
+        count.increment();
+        sum.add(micros);
+        max.accumulate(micros);
+    }
+
+    private LongAdder bucket(int index) {
+        LongAdder bucket = buckets.get(index);
+        if(bucket == null) {
+            buckets.compareAndSet(index, null, new LongAdder());
+            bucket = buckets.get(index);
+        }
+        return bucket;
+    }
+
+    // Values below 16 get a bucket each; above that, the top
+    // 4 bits (leading one plus 3) pick the bucket.
+    private static int bucketOf(long micros) {
+        if(micros < 2 * SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if(exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - 2) * SUB_BUCKETS + subBucket;
+    }
+
+    // The middle of the range of values falling in a bucket.
+    private static long valueOf(int bucket) {
+        if(bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + 2;
+        int subBucket = bucket % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        long lower = (long) (SUB_BUCKETS + subBucket) << shift;
+        return lower + (1L << shift) / 2;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /** Mean in milliseconds. */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / (n * 1000.0);
+    }
+
+    /** Maximum in milliseconds. */
+    public double getMax() {
+        return max.get() / 1000.0;
+    }
+
+    /** The given percentile (0 to 100) in milliseconds. */
+    public double getPercentile(double percentile) {
+        long total = 0;
+        long[] counts = new long[BUCKET_COUNT];
+        for(int i = 0; i < BUCKET_COUNT; ++i) {
+            LongAdder bucket = buckets.get(i);
+            counts[i] = bucket == null ? 0 : bucket.sum();
+            total += counts[i];
+        }
+        if(total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for(int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += counts[i];
+            if(seen >= rank && counts[i] > 0) {
+                return Math.min(valueOf(i), max.get()) / 1000.0;
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for(int i = 0; i < BUCKET_COUNT; ++i) {
+            LongAdder bucket = buckets.get(i);
+            if(bucket != null) {
+                bucket.reset();
+            }
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+}
@@ -0,0 +1,191 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Random access to the rows of a query, one page at a time,
+ * without ever loading the whole result.
+ * <ul>
+ * 		<li>With a key column (unique and ordered, such as an id),
+ * 			the query is read in key order. A page that follows one
+ * 			already fetched is read with WHERE key &gt; last key
+ * 			(keyset pagination), which costs the same wherever it
+ * 			is; other pages fall back to OFFSET.</li>
+ * 		<li>Without a key column, every page is read with OFFSET,
+ * 			ordered by all the columns so that pages stay in the
+ * 			same order (the columns must all be comparable). This
+ * 			gets slower further into the result.</li>
+ * </ul>
+ * Each page is read on a pooled connection that goes back to the
+ * pool straight afterwards, so nothing is held between pages.
+ * Not thread-safe: use it from one thread at a time, except for
+ * cancel.
+ */
+
+public class PagedQuery implements AutoCloseable {
+    /** Page boundaries remembered for keyset pagination. */
+    private static final int MAX_KNOWN_BOUNDARIES = 10000;
+
+    private final ConnectionPool pool;
+    private final String query;
+    private final String keyColumn;
+    private final String[] columnNames;
+    private final boolean limitOffset;
+    private final TreeMap<Long, Object> lastKeyBefore = new TreeMap<>();
+    // The statement being executed, for cancel.
+    private volatile Statement running;
+
+    /**
+     * Prepare to page through query, reading its column names.
+     * keyColumn may be null, in which case pages are ordered by
+     * every column.
+     */
+    public PagedQuery(ConnectionPool pool, String query, String keyColumn)
+            throws SQLException {
+        this.pool = pool;
+        this.query = query;
+        this.keyColumn = keyColumn == null || keyColumn.trim().isEmpty()
+                ? null : keyColumn.trim();
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(
+                     "SELECT * FROM (" + query + ") q WHERE 1 = 0")) {
+            columnNames = DatabaseUtilites.readColumnNames(resultSet.getMetaData());
+            // MySQL has no OFFSET ... FETCH; everybody else
+            // we talk to has the standard form.
+            limitOffset = DataSourceRegistry.getProduct(connection)
+                    .isOneOf("mysql", "mariadb");
+        }
+    }
+
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    public int getColumnCount() {
+        return columnNames.length;
+    }
+
+    /** Total rows, by SELECT COUNT(*) over the query. */
+    public long countRows() throws SQLException {
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = execute(statement,
+                     "SELECT COUNT(*) FROM (" + query + ") q")) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        } finally {
+            running = null;
+        }
+    }
+
+    // Execute, leaving the statement where cancel can find it.
+    private ResultSet execute(Statement statement, String sql) throws SQLException {
+        running = statement;
+        return statement.executeQuery(sql);
+    }
+
+    /**
+     * Ask the database to abort the query under way, if any,
+     * which then fails with an SQLException. Safe to call from
+     * any thread.
+     */
+    public void cancel() {
+        Statement statement = running;
+        if(statement != null) {
+            try {
+                statement.cancel();
+            } catch (SQLException sqle) {
+                System.err.println("Error cancelling query: " + sqle);
+            }
+        }
+    }
+
+    /** Up to pageSize rows starting at firstRow (0-based). */
+    public List<String[]> fetchPage(long firstRow, int pageSize) throws SQLException {
+        Object lastKey = keyColumn == null ? null : lastKeyBefore.get(firstRow);
+        StringBuilder sql = new StringBuilder(query.length() + 96);
+        sql.append("SELECT * FROM (").append(query).append(") q");
+        if(lastKey != null) {
+            sql.append(" WHERE ").append(keyColumn).append(" > ?");
+        }
+        sql.append(" ORDER BY ");
+        if(keyColumn != null) {
+            sql.append(keyColumn);
+        } else {
+            // By position: the names may not be unique or need quoting.
+            for(int i = 1; i <= columnNames.length; ++i) {
+                sql.append(i == 1 ? "" : ", ").append(i);
+            }
+        }
+        boolean useOffset = lastKey == null && firstRow > 0;
+        if(limitOffset) {
+            sql.append(useOffset ? " LIMIT ? OFFSET ?" : " LIMIT ?");
+        } else {
+            sql.append(useOffset ? " OFFSET ? ROWS FETCH NEXT ? ROWS ONLY"
+                    : " FETCH FIRST ? ROWS ONLY");
+        }
+        List<String[]> rows = new ArrayList<>(pageSize);
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+            int index = 1;
+            if(lastKey != null) {
+                statement.setObject(index++, lastKey);
+            }
+            if(useOffset && !limitOffset) {
+                statement.setLong(index++, firstRow);
+            }
+            statement.setInt(index++, pageSize);
+            if(useOffset && limitOffset) {
+                statement.setLong(index, firstRow);
+            }
+            statement.setFetchSize(pageSize);
+            running = statement;
+            try (ResultSet resultSet = statement.executeQuery()) {
+                ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
+                int columnCount = resultSetMetaData.getColumnCount();
+                int keyIndex = keyColumn == null ? 0 : resultSet.findColumn(keyColumn);
+                Object key = null;
+                while(resultSet.next()) {
+                    if(keyIndex > 0) {
+                        key = resultSet.getObject(keyIndex);
+                    }
+                    rows.add(DatabaseUtilites.readRow(resultSet, columnCount));
+                }
+                if(key != null) {
+                    rememberBoundary(firstRow + rows.size(), key);
+                }
+            }
+        } finally {
+            running = null;
+        }
+        return rows;
+    }
+
+    private void rememberBoundary(long row, Object key) {
+        lastKeyBefore.put(row, key);
+        if(lastKeyBefore.size() > MAX_KNOWN_BOUNDARIES) {
+            Map.Entry<Long, Object> first = lastKeyBefore.firstEntry();
+            lastKeyBefore.remove(first.getKey());
+        }
+    }
+
+    /** Forget page boundaries, after the underlying data has changed. */
+    public void reset() {
+        lastKeyBefore.clear();
+    }
+
+    /** Nothing is held between pages; kept so callers can close it all the same. */
+    @Override
+    public void close() {
+        lastKeyBefore.clear();
+    }
+}
@@ -0,0 +1,432 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads a whole table over several connections at once, to
+ * get past the single cursor of SELECT * FROM tableName.
+ * <ul>
+ * 		<li>The table is split into ranges of an integer key
+ * 			column: the one given, or else a single-column primary
+ * 			key or the first column of an index, found from the
+ * 			database metadata.</li>
+ * 		<li>MIN and MAX of the key divide it into partitions of
+ * 			equal width; rows with a null key form one more.</li>
+ * 		<li>Up to parallelism partitions are read at a time, each
+ * 			on its own pooled connection and thread. Use more
+ * 			partitions than that when the keys are unevenly spread,
+ * 			so a dense range does not hold up the rest.</li>
+ * 		<li>In ordered mode each range is sorted by the key and the
+ * 			ranges are handed out in order, so rows come out in key
+ * 			order; otherwise rows come out as soon as any partition
+ * 			has fetched them.</li>
+ * </ul>
+ * Memory stays bounded: a partition that gets too far ahead of
+ * the reader waits for it.
+ */
+
+public class PartitionedScan {
+    /** Rows passed from a partition's thread to the reader at a time. */
+    public static final int BATCH_SIZE = 256;
+    /** Batches a partition may fetch before the reader catches up. */
+    public static final int BATCHES_AHEAD = 16;
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final ConnectionPool pool;
+    private final String tableName;
+    private String keyColumn;
+    private int parallelism;
+    private int partitions;
+    private boolean ordered = true;
+    private int fetchSize = 1000;
+
+    /** Scan by a key column found from the table's metadata. */
+    public PartitionedScan(ConnectionPool pool, String tableName) {
+        this(pool, tableName, null);
+    }
+
+    public PartitionedScan(ConnectionPool pool, String tableName,
+                           String keyColumn) {
+        this.pool = pool;
+        this.tableName = tableName;
+        this.keyColumn = keyColumn;
+        parallelism = Math.min(4, pool.getMaxSize());
+        partitions = parallelism * 4;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** Partitions read at once; at most the pool's maxSize. */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, Math.min(parallelism, pool.getMaxSize()));
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /** Key ranges the table is split into (not counting null keys). */
+    public void setPartitions(int partitions) {
+        this.partitions = Math.max(1, partitions);
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /** Whether rows come out in key order (the default). */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * The key column, looking it up in the metadata the first
+     * time if none was given.
+     */
+    public String getKeyColumn() throws SQLException {
+        if(keyColumn == null) {
+            try (Connection connection = pool.getConnection()) {
+                keyColumn = findKeyColumn(connection);
+            }
+        }
+        return keyColumn;
+    }
+
+    /**
+     * Start reading the table. The returned rows must be closed;
+     * that also stops any partitions still being fetched.
+     */
+    public RowSource open() throws SQLException {
+        String key = getKeyColumn();
+        String[] columnNames;
+        List<String> conditions = new ArrayList<>();
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement()) {
+            try (ResultSet resultSet = statement.executeQuery(
+                    "SELECT * FROM " + tableName + " WHERE 1 = 0")) {
+                columnNames = DatabaseUtilites.readColumnNames(resultSet.getMetaData());
+            }
+            try (ResultSet resultSet = statement.executeQuery("SELECT MIN(" + key
+                    + "), MAX(" + key + ") FROM " + tableName)) {
+                resultSet.next();
+                long min = resultSet.getLong(1);
+                boolean empty = resultSet.wasNull();
+                long max = resultSet.getLong(2);
+                if(!empty) {
+                    addRanges(conditions, key, min, max);
+                }
+            }
+        }
+        conditions.add(key + " IS NULL");
+        List<String> queries = new ArrayList<>(conditions.size());
+        for(String condition : conditions) {
+            queries.add("SELECT * FROM " + tableName + " WHERE " + condition
+                    + (ordered ? " ORDER BY " + key : ""));
+        }
+        return new Scan(columnNames, queries);
+    }
+
+    /** Read the whole table into one DBResults. */
+    public DBResults readAll() throws SQLException {
+        try (RowSource rows = open()) {
+            DBResults results = new DBResults(null, null, null,
+                    rows.getColumnCount(), rows.getColumnNames());
+            while(rows.hasNext()) {
+                results.addRow(rows.next());
+            }
+            return results;
+        } catch (UncheckedSQLException e) {
+            throw e.getCause();
+        }
+    }
+
+    // The first range has no lower bound and the last no upper
+    // one, so rows added since MIN and MAX were read still count.
+    private void addRanges(List<String> conditions, String key,
+                           long min, long max) {
+        long width = Math.max(1, (max / partitions - min / partitions) + 1);
+        long lower = min;
+        String previous = null;
+        while(conditions.size() < partitions - 1) {
+            long upper;
+            try {
+                upper = Math.addExact(lower, width);
+            } catch (ArithmeticException e) {
+                break;
+            }
+            if(upper > max) {
+                break;
+            }
+            conditions.add((previous == null ? "" : previous + " AND ")
+                    + key + " < " + upper);
+            previous = key + " >= " + upper;
+            lower = upper;
+        }
+        conditions.add(previous == null ? key + " IS NOT NULL" : previous);
+    }
+
+    private String findKeyColumn(Connection connection) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        String schema = null;
+        String table = tableName;
+        int dot = table.lastIndexOf('.');
+        if(dot >= 0) {
+            schema = table.substring(0, dot);
+            table = table.substring(dot + 1);
+        }
+        // Unquoted names are stored in upper or lower case,
+        // depending on the database.
+        for(String name : new String[] { table, table.toUpperCase(), table.toLowerCase() }) {
+            List<String> primaryKey = new ArrayList<>();
+            try (ResultSet keys = metaData.getPrimaryKeys(null, schema, name)) {
+                while(keys.next()) {
+                    primaryKey.add(keys.getString("COLUMN_NAME"));
+                }
+            }
+            if(primaryKey.size() == 1
+                    && isIntegerColumn(metaData, schema, name, primaryKey.get(0))) {
+                return primaryKey.get(0);
+            }
+            try (ResultSet index = metaData.getIndexInfo(null, schema, name,
+                    false, true)) {
+                while(index.next()) {
+                    String column = index.getString("COLUMN_NAME");
+                    if(index.getInt("ORDINAL_POSITION") == 1 && column != null
+                            && isIntegerColumn(metaData, schema, name, column)) {
+                        return column;
+                    }
+                }
+            }
+        }
+        throw new SQLException("No integer key or index column found for "
+                + tableName + "; name one explicitly");
+    }
+
+    private static boolean isIntegerColumn(DatabaseMetaData metaData,
+                                           String schema, String table,
+                                           String column)
+            throws SQLException {
+        try (ResultSet columns = metaData.getColumns(null, schema, table, column)) {
+            if(!columns.next()) {
+                return false;
+            }
+            switch(columns.getInt("DATA_TYPE")) {
+                case Types.TINYINT:
+                case Types.SMALLINT:
+                case Types.INTEGER:
+                case Types.BIGINT:
+                    return true;
+                case Types.NUMERIC:
+                case Types.DECIMAL:
+                    return columns.getInt("DECIMAL_DIGITS") == 0;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    // A batch of rows from one partition; the last one of each
+    // partition has done set, and failure if it ended badly.
+    private static class Batch {
+        final int partition;
+        final List<String[]> rows;
+        final boolean done;
+        final RuntimeException failure;
+
+        Batch(int partition, List<String[]> rows, boolean done,
+              RuntimeException failure) {
+            this.partition = partition;
+            this.rows = rows;
+            this.done = done;
+            this.failure = failure;
+        }
+    }
+
+    private class Scan implements RowSource {
+        private final String[] columnNames;
+        private final List<String> queries;
+        private final List<BlockingQueue<Batch>> queues = new ArrayList<>();
+        private final Set<QueryStream> running = ConcurrentHashMap.newKeySet();
+        private final ExecutorService executor;
+        private volatile boolean closed;
+        private int started;
+        private int current;
+        private int finished;
+        private List<String[]> batch = new ArrayList<>();
+        private int batchIndex;
+        private long rowsRead;
+
+        Scan(String[] columnNames, List<String> queries) {
+            this.columnNames = columnNames;
+            this.queries = queries;
+            // Ordered, every partition gets its own queue, read in
+            // turn; unordered, they all share one.
+            int queueCount = ordered ? queries.size() : 1;
+            int capacity = ordered ? BATCHES_AHEAD : BATCHES_AHEAD * parallelism;
+            for(int i = 0; i < queueCount; ++i) {
+                queues.add(new ArrayBlockingQueue<>(capacity));
+            }
+            executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+                Thread thread = new Thread(runnable,
+                        "PartitionedScan-" + THREAD_COUNT.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            while(started < Math.min(parallelism, queries.size())) {
+                startNext();
+            }
+        }
+
+        // Partitions start in order, at most parallelism ahead of
+        // the one being read, so the reader never waits on a
+        // partition that cannot get a connection.
+        private void startNext() {
+            if(started < queries.size()) {
+                int partition = started++;
+                executor.execute(() -> fetch(partition));
+            }
+        }
+
+        private BlockingQueue<Batch> queueFor(int partition) {
+            return queues.get(ordered ? partition : 0);
+        }
+
+        private void fetch(int partition) {
+            List<String[]> rows = new ArrayList<>(BATCH_SIZE);
+            try (Connection connection = pool.getConnection();
+                 QueryStream stream = DatabaseUtilites.streamQueryResults(
+                         connection, queries.get(partition), fetchSize)) {
+                running.add(stream);
+                try {
+                    while(!closed && stream.hasNext()) {
+                        rows.add(stream.next());
+                        if(rows.size() == BATCH_SIZE) {
+                            put(new Batch(partition, rows, false, null));
+                            rows = new ArrayList<>(BATCH_SIZE);
+                        }
+                    }
+                } finally {
+                    running.remove(stream);
+                }
+                put(new Batch(partition, rows, true, null));
+            } catch (SQLException sqle) {
+                put(new Batch(partition, null, true, new UncheckedSQLException(sqle)));
+            } catch (RuntimeException e) {
+                put(new Batch(partition, null, true, e));
+            }
+        }
+
+        private void put(Batch next) {
+            BlockingQueue<Batch> queue = queueFor(next.partition);
+            try {
+                while(!closed) {
+                    if(queue.offer(next, 100, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public int getColumnCount() {
+            return columnNames.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return columnNames;
+        }
+
+        @Override
+        public long getRowsRead() {
+            return rowsRead;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while(batchIndex == batch.size()) {
+                if(finished == queries.size()) {
+                    close();
+                }
+                if(closed) {
+                    return false;
+                }
+                Batch next = take();
+                if(next.failure != null) {
+                    close();
+                    throw next.failure;
+                }
+                if(next.done) {
+                    ++finished;
+                    ++current;
+                    startNext();
+                }
+                batch = next.rows;
+                batchIndex = 0;
+            }
+            return true;
+        }
+
+        private Batch take() {
+            try {
+                return queueFor(ordered ? current : 0).take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new UncheckedSQLException(
+                        new SQLException("Interrupted reading " + tableName, e));
+            }
+        }
+
+        @Override
+        public String[] next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ++rowsRead;
+            return batch.get(batchIndex++);
+        }
+
+        /** Stop the partitions still running. */
+        @Override
+        public void close() {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            for(QueryStream stream : running) {
+                stream.cancel();
+            }
+            executor.shutdown();
+        }
+    }
+}
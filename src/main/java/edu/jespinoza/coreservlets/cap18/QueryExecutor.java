@@ -0,0 +1,318 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs independent queries at the same time, each on its own
+ * thread and its own pooled connection, so a page that needs
+ * many queries waits about as long as the slowest of them
+ * rather than the sum.
+ * <ul>
+ * 		<li>submit returns a CompletableFuture that completes with
+ * 			the DBResults, or exceptionally with the SQLException.</li>
+ * 		<li>executeAll runs a group of queries under one deadline:
+ * 			any query still running when it passes is cancelled and
+ * 			its future fails with a TimeoutException. When one query
+ * 			of the group fails, the others are cancelled.</li>
+ * 		<li>Cancelling a future cancels the running Statement.</li>
+ * 		<li>At most concurrencyLimit queries run against each pool
+ * 			at a time (by default the pool's maxSize); the rest wait
+ * 			their turn in order.</li>
+ * 		<li>A pool whose datasource has an AdmissionController is
+ * 			also queried only when the controller admits it, at this
+ * 			executor's priority (INTERACTIVE unless set). A rejection
+ * 			fails the future with its SQLTransientException.</li>
+ * </ul>
+ * The threads mostly wait on the database, so by default each
+ * query gets a thread of its own from a cached pool. Any other
+ * ExecutorService can be passed in instead; on Java 21 or later,
+ * Executors.newVirtualThreadPerTaskExecutor() is the natural choice.
+ */
+
+public class QueryExecutor implements AutoCloseable {
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    // How often a task waiting for its turn checks whether it was cancelled.
+    private static final long CANCEL_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final Map<ConnectionPool, Semaphore> limits = new ConcurrentHashMap<>();
+    private volatile AdmissionController.Priority priority =
+            AdmissionController.Priority.INTERACTIVE;
+
+    public QueryExecutor() {
+        this(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable,
+                    "QueryExecutor-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }), true);
+    }
+
+    /** Run queries on the given executor, which the caller shuts down. */
+    public QueryExecutor(ExecutorService executor) {
+        this(executor, false);
+    }
+
+    private QueryExecutor(ExecutorService executor, boolean ownsExecutor) {
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    /** A query and its parameters, for executeAll. */
+    public static class Query {
+        private final ConnectionPool pool;
+        private final String sql;
+        private final Object[] params;
+
+        public Query(ConnectionPool pool, String sql, Object... params) {
+            this.pool = pool;
+            this.sql = sql;
+            this.params = params;
+        }
+
+        public ConnectionPool getPool() {
+            return pool;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public Object[] getParams() {
+            return params;
+        }
+    }
+
+    /**
+     * Run the query (see DatabaseUtilites.getQueryResults) on
+     * a connection from the pool.
+     */
+    public CompletableFuture<DBResults> submit(ConnectionPool pool,
+                                               String query, Object... params) {
+        return submit(new Query(pool, query, params), 0);
+    }
+
+    /**
+     * Run all the queries at once and return their futures, in
+     * the same order. Queries not finished within timeout
+     * milliseconds (0 for no limit) are cancelled, and so are
+     * the rest of the group as soon as any query fails.
+     */
+    public List<CompletableFuture<DBResults>> executeAll(long timeout,
+                                                         Query... queries) {
+        long deadline = timeout > 0 ? System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+        List<CompletableFuture<DBResults>> futures = new ArrayList<>(queries.length);
+        for(Query query : queries) {
+            futures.add(submit(query, deadline));
+        }
+        for(CompletableFuture<DBResults> future : futures) {
+            future.whenComplete((results, failure) -> {
+                if(failure != null) {
+                    for(CompletableFuture<DBResults> sibling : futures) {
+                        sibling.cancel(false);
+                    }
+                }
+            });
+        }
+        return futures;
+    }
+
+    /** Like the previous method, for unparameterized queries on one pool. */
+    public List<CompletableFuture<DBResults>> executeAll(ConnectionPool pool,
+                                                         long timeout,
+                                                         String... queries) {
+        Query[] group = new Query[queries.length];
+        for(int i = 0; i < queries.length; ++i) {
+            group[i] = new Query(pool, queries[i]);
+        }
+        return executeAll(timeout, group);
+    }
+
+    /**
+     * At most limit queries from this executor run against the
+     * pool at once. Queries already waiting keep the old limit.
+     */
+    public void setConcurrencyLimit(ConnectionPool pool, int limit) {
+        limits.put(pool, new Semaphore(limit, true));
+    }
+
+    public AdmissionController.Priority getPriority() {
+        return priority;
+    }
+
+    /** The priority of this executor's queries under an AdmissionController. */
+    public void setPriority(AdmissionController.Priority priority) {
+        this.priority = priority;
+    }
+
+    /** Shut down the default executor; a supplied one is left alone. */
+    @Override
+    public void close() {
+        if(ownsExecutor) {
+            executor.shutdownNow();
+        }
+    }
+
+    // deadline is a System.nanoTime value, or 0 for none.
+    private CompletableFuture<DBResults> submit(Query query, long deadline) {
+        Task task = new Task(query, deadline);
+        task.future.whenComplete((results, failure) -> {
+            if(failure != null) {
+                task.cancel();
+            }
+        });
+        if(deadline != 0) {
+            task.future.orTimeout(Math.max(0, deadline - System.nanoTime()),
+                    TimeUnit.NANOSECONDS);
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.future.completeExceptionally(e);
+        }
+        return task.future;
+    }
+
+    private Semaphore limitFor(ConnectionPool pool) {
+        return limits.computeIfAbsent(pool,
+                p -> new Semaphore(p.getMaxSize(), true));
+    }
+
+    private class Task implements Runnable {
+        final CompletableFuture<DBResults> future = new CompletableFuture<>();
+        private final Query query;
+        private final long deadline;
+        private Statement statement;
+        private AdmissionController.Permit permit;
+
+        Task(Query query, long deadline) {
+            this.query = query;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            if(future.isDone()) {
+                return;
+            }
+            Semaphore limit = limitFor(query.pool);
+            try {
+                if(!acquire(limit)) {
+                    future.completeExceptionally(new TimeoutException(
+                            "Deadline passed waiting to run " + query.sql));
+                    return;
+                }
+            } catch (CancellationException e) {
+                return;
+            } catch (InterruptedException e) {
+                // The executor is shutting down.
+                Thread.currentThread().interrupt();
+                future.completeExceptionally(new CancellationException());
+                return;
+            }
+            try (AdmissionController.Permit permit = admit();
+                 Connection connection = query.pool.getConnection()) {
+                try {
+                    future.complete(DatabaseUtilites.executeQuery(connection,
+                            query.sql, query.params, queryTimeout(permit), this::started));
+                } finally {
+                    finished();
+                }
+            } catch (SQLException | RuntimeException e) {
+                future.completeExceptionally(e);
+            } finally {
+                limit.release();
+            }
+        }
+
+        // Waits a little at a time, giving up once the future is
+        // done: the thread may belong to a shared executor, so
+        // cancel never interrupts it. False if the deadline passed.
+        private boolean acquire(Semaphore limit) throws InterruptedException {
+            while(!future.isDone()) {
+                long wait = CANCEL_POLL_NANOS;
+                if(deadline != 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if(remaining <= 0) {
+                        return false;
+                    }
+                    wait = Math.min(wait, remaining);
+                }
+                if(limit.tryAcquire(wait, TimeUnit.NANOSECONDS)) {
+                    return true;
+                }
+            }
+            throw new CancellationException();
+        }
+
+        // Waits for the controller, which gives up in the same way
+        // once the future is done.
+        private AdmissionController.Permit admit() throws SQLException {
+            AdmissionController.Permit permit = AdmissionController.admit(
+                    query.pool, priority, deadline, future::isDone);
+            synchronized (this) {
+                this.permit = permit;
+            }
+            return permit;
+        }
+
+        // Whole seconds left before the deadline, at least 1. A
+        // controller's permit already allows for this deadline.
+        private int queryTimeout(AdmissionController.Permit permit) {
+            int queryTimeout = permit.getQueryTimeout();
+            if(queryTimeout > 0 || deadline == 0) {
+                return queryTimeout;
+            }
+            long remaining = deadline - System.nanoTime();
+            return (int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(remaining + 999999999));
+        }
+
+        // Cancelling a statement before it runs has no effect, so a
+        // task cancelled by now stops here instead.
+        private synchronized void started(Statement statement) {
+            this.statement = statement;
+            permit.watch(statement);
+            if(future.isDone()) {
+                throw new CancellationException();
+            }
+        }
+
+        // Cached statements are reused by the connection's next
+        // borrower, so forget this one, and stop the permit's
+        // watch on it, before giving it back.
+        private synchronized void finished() {
+            if(permit != null) {
+                permit.unwatch();
+            }
+            statement = null;
+            permit = null;
+        }
+
+        synchronized void cancel() {
+            if(statement != null) {
+                try {
+                    statement.cancel();
+                } catch (SQLException sqle) {
+                    System.err.println("Error cancelling query: " + sqle);
+                }
+            }
+        }
+    }
+}
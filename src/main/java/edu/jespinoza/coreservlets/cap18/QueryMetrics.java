@@ -0,0 +1,293 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Latency, row, byte and error statistics for the queries run
+ * through DatabaseUtilites and QueryStream, and connection wait
+ * statistics for every ConnectionPool.
+ * <ul>
+ * 		<li>Queries are grouped by datasource (the JDBC URL) and by
+ * 			shape: the SQL with its string and number literals
+ * 			replaced by ?, so "WHERE id = 7" and "WHERE id = 8"
+ * 			share one QueryStats.</li>
+ * 		<li>Every QueryStats and DataSourceStats is registered as
+ * 			an MBean under edu.jespinoza.coreservlets, so the numbers
+ * 			can be watched from jconsole or any JMX client;
+ * 			getQueryStats and getDataSourceStats return the same
+ * 			objects to code.</li>
+ * 		<li>Queries slower than slowQueryThreshold milliseconds are
+ * 			logged on System.err.</li>
+ * </ul>
+ * Recording only touches striped counters, so it is cheap enough
+ * to leave on; setEnabled(false) turns it off entirely.
+ */
+
+public final class QueryMetrics {
+    private static final QueryMetrics INSTANCE = new QueryMetrics();
+    private static final String DOMAIN = "edu.jespinoza.coreservlets";
+
+    /** Shapes kept per registry; later ones are counted as OTHER_SHAPE. */
+    public static final int MAX_QUERY_SHAPES = 1000;
+    public static final String OTHER_SHAPE = "(other)";
+
+    private static final int MAX_CACHED_SHAPES = 10000;
+    private static final Pattern PARAMETER_LIST =
+            Pattern.compile("\\(\\?(?: ?, ?\\?)+\\)");
+
+    private final Map<String, QueryStats> queries = new ConcurrentHashMap<>();
+    private final Map<String, DataSourceStats> dataSources = new ConcurrentHashMap<>();
+    private final Map<String, String> shapes = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private volatile boolean enabled = true;
+    private volatile long slowQueryThreshold = 0;
+
+    private QueryMetrics() {
+    }
+
+    public static QueryMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public long getSlowQueryThreshold() {
+        return slowQueryThreshold;
+    }
+
+    /** Milliseconds after which a query is logged; 0 disables. */
+    public void setSlowQueryThreshold(long slowQueryThreshold) {
+        this.slowQueryThreshold = slowQueryThreshold;
+    }
+
+    /**
+     * Record a query that completed. executeNanos is the time
+     * until the ResultSet came back, fetchNanos the time spent
+     * reading its rows.
+     */
+    public void recordQuery(String dataSource, String sql,
+                            long executeNanos, long fetchNanos,
+                            long rows, long bytes) {
+        if(!enabled) {
+            return;
+        }
+        queryStats(dataSource, sql).record(executeNanos, fetchNanos, rows, bytes);
+        long threshold = slowQueryThreshold;
+        long millis = (executeNanos + fetchNanos) / 1000000;
+        if(threshold > 0 && millis >= threshold) {
+            System.err.println("Slow query (" + millis + " ms, "
+                    + rows + " rows) on " + dataSource + ": " + sql);
+        }
+    }
+
+    /** Record a query that failed. */
+    public void recordError(String dataSource, String sql) {
+        if(enabled) {
+            queryStats(dataSource, sql).recordError();
+        }
+    }
+
+    void recordQuery(Connection connection, String sql, long startNanos,
+                     long executedNanos, long rows, long bytes) {
+        if(enabled) {
+            recordQuery(dataSourceOf(connection), sql, executedNanos - startNanos,
+                    System.nanoTime() - executedNanos, rows, bytes);
+        }
+    }
+
+    void recordQuery(Connection connection, String sql, long startNanos,
+                     long executedNanos, DBResults results) {
+        if(enabled) {
+            recordQuery(connection, sql, startNanos, executedNanos,
+                    results.getRowCount(), results.estimateBytes());
+        }
+    }
+
+    void recordError(Connection connection, String sql) {
+        if(enabled) {
+            recordError(dataSourceOf(connection), sql);
+        }
+    }
+
+    void recordAcquire(ConnectionPool pool, long waitNanos, boolean timedOut) {
+        if(enabled) {
+            dataSourceStats(pool.getURL()).recordAcquire(pool, waitNanos, timedOut);
+        }
+    }
+
+    /** Statistics for every query shape seen so far, in SQL order. */
+    public List<QueryStats> getQueryStats() {
+        List<QueryStats> stats = new ArrayList<>(queries.values());
+        stats.sort(Comparator.comparing(QueryStats::getSql)
+                .thenComparing(QueryStats::getDataSource));
+        return stats;
+    }
+
+    /** Connection statistics for every datasource seen so far. */
+    public List<DataSourceStats> getDataSourceStats() {
+        List<DataSourceStats> stats = new ArrayList<>(dataSources.values());
+        stats.sort(Comparator.comparing(DataSourceStats::getDataSource));
+        return stats;
+    }
+
+    /** Zero every counter; the MBeans stay registered. */
+    public void reset() {
+        for(QueryStats stats : queries.values()) {
+            stats.reset();
+        }
+        for(DataSourceStats stats : dataSources.values()) {
+            stats.reset();
+        }
+    }
+
+    private QueryStats queryStats(String dataSource, String sql) {
+        String shape = shapeOf(sql);
+        String key = dataSource + '\n' + shape;
+        QueryStats stats = queries.get(key);
+        if(stats != null) {
+            return stats;
+        }
+        if(queries.size() >= MAX_QUERY_SHAPES) {
+            shape = OTHER_SHAPE;
+            key = dataSource + '\n' + shape;
+        }
+        String finalShape = shape;
+        return queries.computeIfAbsent(key, k -> {
+            QueryStats created = new QueryStats(dataSource, finalShape);
+            register(created, "type=QueryStats,dataSource="
+                    + ObjectName.quote(dataSource) + ",id=" + nextId.incrementAndGet());
+            return created;
+        });
+    }
+
+    private DataSourceStats dataSourceStats(String dataSource) {
+        DataSourceStats stats = dataSources.get(dataSource);
+        if(stats != null) {
+            return stats;
+        }
+        return dataSources.computeIfAbsent(dataSource, k -> {
+            DataSourceStats created = new DataSourceStats(dataSource);
+            register(created, "type=DataSourceStats,name="
+                    + ObjectName.quote(dataSource));
+            return created;
+        });
+    }
+
+    private static void register(Object mbean, String properties) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            if(!server.isRegistered(name)) {
+                server.registerMBean(mbean, name);
+            }
+        } catch (Exception e) {
+            System.err.println("Error registering MBean " + properties + ": " + e);
+        }
+    }
+
+    // normalize, remembered for the SQL texts seen most recently.
+    String shapeOf(String sql) {
+        String shape = shapes.get(sql);
+        if(shape == null) {
+            shape = normalize(sql);
+            if(shapes.size() >= MAX_CACHED_SHAPES) {
+                shapes.clear();
+            }
+            shapes.put(sql, shape);
+        }
+        return shape;
+    }
+
+    /**
+     * The shape of a SQL statement: string and numeric literals
+     * become ?, runs of whitespace become one space, and lists
+     * of placeholders such as IN (?, ?, ?) become (?).
+     */
+    public static String normalize(String sql) {
+        int length = sql.length();
+        StringBuilder shape = new StringBuilder(length);
+        int i = 0;
+        while(i < length) {
+            char c = sql.charAt(i);
+            if(c == '\'') {
+                // '' inside a literal is an escaped quote.
+                ++i;
+                while(i < length) {
+                    if(sql.charAt(i) == '\'') {
+                        if(i + 1 < length && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    ++i;
+                }
+                ++i;
+                shape.append('?');
+            } else if(c == '"' || c == '`') {
+                int end = sql.indexOf(c, i + 1);
+                end = end < 0 ? length : end + 1;
+                shape.append(sql, i, end);
+                i = end;
+            } else if(Character.isDigit(c) && !continuesIdentifier(shape)) {
+                while(i < length && (Character.isLetterOrDigit(sql.charAt(i))
+                        || sql.charAt(i) == '.')) {
+                    ++i;
+                }
+                shape.append('?');
+            } else if(Character.isWhitespace(c)) {
+                while(i < length && Character.isWhitespace(sql.charAt(i))) {
+                    ++i;
+                }
+                if(shape.length() > 0 && i < length) {
+                    shape.append(' ');
+                }
+            } else {
+                shape.append(c);
+                ++i;
+            }
+        }
+        String result = shape.toString();
+        return result.indexOf(',') < 0 ? result
+                : PARAMETER_LIST.matcher(result).replaceAll("(?)");
+    }
+
+    // A digit right after a letter, digit or _ is part of a name.
+    private static boolean continuesIdentifier(StringBuilder shape) {
+        if(shape.length() == 0) {
+            return false;
+        }
+        char previous = shape.charAt(shape.length() - 1);
+        return Character.isLetterOrDigit(previous) || previous == '_';
+    }
+
+    /** The JDBC URL a connection is open to. */
+    static String dataSourceOf(Connection connection) {
+        ConnectionPool pool = ConnectionPool.poolOf(connection);
+        if(pool != null) {
+            return pool.getURL();
+        }
+        try {
+            return connection.getMetaData().getURL();
+        } catch (SQLException sqle) {
+            return "unknown";
+        }
+    }
+}
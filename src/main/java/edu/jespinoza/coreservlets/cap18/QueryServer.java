@@ -0,0 +1,507 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small embedded HTTP server (the JDK's HttpServer) that runs
+ * named, parameterized queries on pooled connections and sends
+ * back the rows as an HTML table or as CSV.
+ * <ul>
+ * 		<li>GET /query/name?param=value&amp;... runs the endpoint
+ * 			called name, binding the request parameters to its ?
+ * 			placeholders in the order the endpoint lists them,
+ * 			each converted to the SQL type declared for it (text
+ * 			unless declared). A missing or unconvertible value, or
+ * 			a badly escaped query string, gets 400 Bad Request.
+ * 			Add .csv to the name (or format=csv) for CSV.</li>
+ * 		<li>The response is sent with chunked transfer as the rows
+ * 			are fetched (see QueryStream), so the first bytes go out
+ * 			as soon as the query has executed, whatever the size of
+ * 			the result, and memory use per request stays flat.</li>
+ * 		<li>Each endpoint runs at most concurrencyLimit queries at
+ * 			once. Requests beyond that wait up to queueTimeout
+ * 			milliseconds and then get 503 Service Unavailable. So
+ * 			do requests the datasource's AdmissionController, if
+ * 			it has one, turns away.</li>
+ * 		<li>An endpoint can be given a ResultCache, in which case
+ * 			it answers from the cache and only runs the query on
+ * 			a miss, with the same admission control and query
+ * 			timeout as an uncached query.</li>
+ * </ul>
+ * Requests are handled on a cached pool of daemon threads unless
+ * another executor is supplied. A thread blocked on the database
+ * or on a slow client costs little more than its stack, but on a
+ * JDK with virtual threads, passing a virtual-thread-per-task
+ * executor lets one server hold many thousands of open requests.
+ */
+
+public class QueryServer {
+    public static final String CONTEXT_PATH = "/query/";
+    public static final long DEFAULT_QUEUE_TIMEOUT = 10000;
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private volatile String headingColor;
+
+    /** A named query that clients can run; see QueryServer.addEndpoint. */
+    public static class Endpoint {
+        private final String name;
+        private final ConnectionPool pool;
+        private final String query;
+        private final String[] parameterNames;
+        private final int[] parameterTypes;
+        private volatile Semaphore limit;
+        private volatile int fetchSize;
+        private volatile int queryTimeout;
+        private volatile long queueTimeout = DEFAULT_QUEUE_TIMEOUT;
+        private volatile ResultCache cache;
+        private volatile long timeToLive;
+
+        private Endpoint(String name, ConnectionPool pool, String query,
+                         String[] parameterNames, int[] parameterTypes) {
+            this.name = name;
+            this.pool = pool;
+            this.query = query;
+            this.parameterNames = parameterNames;
+            this.parameterTypes = parameterTypes;
+            limit = new Semaphore(pool.getMaxSize(), true);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        /**
+         * Queries of this endpoint that may run at once; the
+         * pool's maximum size unless set. Requests already waiting
+         * keep waiting under the old limit.
+         */
+        public void setConcurrencyLimit(int concurrencyLimit) {
+            limit = new Semaphore(concurrencyLimit, true);
+        }
+
+        /** Rows per round trip; 0, the default, lets FetchSizeTuner choose. */
+        public void setFetchSize(int fetchSize) {
+            this.fetchSize = fetchSize;
+        }
+
+        /** Seconds before the database is asked to give up; 0 for no limit. */
+        public void setQueryTimeout(int queryTimeout) {
+            this.queryTimeout = queryTimeout;
+        }
+
+        /** Milliseconds a request may wait for its turn before getting a 503. */
+        public void setQueueTimeout(long queueTimeout) {
+            this.queueTimeout = queueTimeout;
+        }
+
+        /**
+         * Answer from cache, keeping results for timeToLive
+         * milliseconds; a null cache turns caching off. Cached
+         * results are held in memory whole, so this is for
+         * queries with modest results.
+         */
+        public void setCache(ResultCache cache, long timeToLive) {
+            this.cache = cache;
+            this.timeToLive = timeToLive;
+        }
+    }
+
+    /** Listen on port, handling requests on the default executor. */
+    public QueryServer(int port) throws IOException {
+        this(new InetSocketAddress(port), Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable,
+                    "QueryServer-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }), true);
+    }
+
+    /** Handle requests on the given executor, which the caller shuts down. */
+    public QueryServer(InetSocketAddress address, ExecutorService executor)
+            throws IOException {
+        this(address, executor, false);
+    }
+
+    private QueryServer(InetSocketAddress address, ExecutorService executor,
+                        boolean ownsExecutor) throws IOException {
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        server = HttpServer.create(address, 0);
+        server.createContext(CONTEXT_PATH, this::handle);
+        server.setExecutor(executor);
+    }
+
+    /**
+     * Make query available as CONTEXT_PATH + name. Its ?
+     * placeholders are bound, as text, to the request parameters
+     * called parameterNames, in that order.
+     */
+    public Endpoint addEndpoint(String name, ConnectionPool pool, String query,
+                                String... parameterNames) {
+        int[] parameterTypes = new int[parameterNames.length];
+        Arrays.fill(parameterTypes, Types.VARCHAR);
+        return addEndpoint(name, pool, query, parameterNames, parameterTypes);
+    }
+
+    /**
+     * Like the previous method, but each parameter is converted
+     * to the matching java.sql.Types type before it is bound, as
+     * databases such as PostgreSQL will not compare a text value
+     * with a number or date column. Numbers, BOOLEAN (true or
+     * false), DATE (yyyy-mm-dd), TIME (hh:mm:ss) and TIMESTAMP
+     * (yyyy-mm-dd hh:mm:ss, or with a T) are converted; other
+     * types are bound as text.
+     */
+    public Endpoint addEndpoint(String name, ConnectionPool pool, String query,
+                                String[] parameterNames, int[] parameterTypes) {
+        if(parameterTypes.length != parameterNames.length) {
+            throw new IllegalArgumentException(parameterNames.length
+                    + " parameters but " + parameterTypes.length + " types");
+        }
+        Endpoint endpoint = new Endpoint(name, pool, query, parameterNames.clone(),
+                parameterTypes.clone());
+        endpoints.put(name, endpoint);
+        return endpoint;
+    }
+
+    public Endpoint getEndpoint(String name) {
+        return endpoints.get(name);
+    }
+
+    public void removeEndpoint(String name) {
+        endpoints.remove(name);
+    }
+
+    /** Background color of the heading row of HTML tables. */
+    public void setHeadingColor(String headingColor) {
+        this.headingColor = headingColor;
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /** The port listened on, useful when created with port 0. */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stop accepting requests, give the ones in progress up to
+     * delay seconds to finish, and shut down the default executor.
+     */
+    public void stop(int delay) {
+        server.stop(delay);
+        if(ownsExecutor) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if(!"GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                sendError(exchange, 405, "Only GET is supported");
+                return;
+            }
+            String name = exchange.getRequestURI().getPath()
+                    .substring(CONTEXT_PATH.length());
+            Map<String, String> parameters;
+            try {
+                parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+            } catch (IllegalArgumentException iae) {
+                sendError(exchange, 400, "Malformed query string");
+                return;
+            }
+            boolean csv = "csv".equalsIgnoreCase(parameters.get("format"));
+            if(name.endsWith(".csv")) {
+                csv = true;
+                name = name.substring(0, name.length() - 4);
+            } else if(name.endsWith(".html")) {
+                name = name.substring(0, name.length() - 5);
+            }
+            Endpoint endpoint = endpoints.get(name);
+            if(endpoint == null) {
+                sendError(exchange, 404, "No query named " + name);
+                return;
+            }
+            Object[] params = new Object[endpoint.parameterNames.length];
+            for(int i = 0; i < params.length; ++i) {
+                String value = parameters.get(endpoint.parameterNames[i]);
+                if(value == null) {
+                    sendError(exchange, 400, "Missing parameter "
+                            + endpoint.parameterNames[i]);
+                    return;
+                }
+                try {
+                    params[i] = convertParameter(value, endpoint.parameterTypes[i]);
+                } catch (IllegalArgumentException iae) {
+                    sendError(exchange, 400, "Bad value for parameter "
+                            + endpoint.parameterNames[i]);
+                    return;
+                }
+            }
+            Semaphore limit = endpoint.limit;
+            try {
+                if(!limit.tryAcquire(endpoint.queueTimeout, TimeUnit.MILLISECONDS)) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    sendError(exchange, 503, "Too many requests for " + name);
+                    return;
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                sendError(exchange, 503, "Server stopping");
+                return;
+            }
+            try {
+                if(endpoint.cache != null) {
+                    sendCached(exchange, endpoint, params, csv);
+                } else {
+                    sendStreamed(exchange, endpoint, params, csv);
+                }
+            } finally {
+                limit.release();
+            }
+        } catch (IOException ioe) {
+            // Usually the client went away; nothing left to tell it.
+            System.err.println("Error sending results: " + ioe);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void sendStreamed(HttpExchange exchange, Endpoint endpoint,
+                              Object[] params, boolean csv) throws IOException {
+        AdmissionController.Permit permit;
+        try {
+            permit = AdmissionController.admit(endpoint.pool,
+                    AdmissionController.Priority.INTERACTIVE, 0);
+        } catch (SQLException sqle) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            sendError(exchange, 503, "Too many queries for " + endpoint.name);
+            return;
+        }
+        try (AdmissionController.Permit admitted = permit;
+             Connection connection = endpoint.pool.getConnection();
+             QueryStream rows = new QueryStream(connection, endpoint.query, params,
+                     endpoint.fetchSize, queryTimeout(endpoint, admitted))) {
+            admitted.watch(rows::cancel);
+            try {
+                // The status line has to go before the first row, so
+                // an error while fetching can only cut the body short.
+                startResponse(exchange, csv);
+                if(csv) {
+                    try (CsvExporter exporter = new CsvExporter(
+                            Channels.newChannel(exchange.getResponseBody()))) {
+                        exporter.export(rows);
+                    }
+                } else {
+                    Writer out = startPage(exchange, endpoint);
+                    new HtmlTableWriter(out, headingColor).write(rows);
+                    endPage(out);
+                }
+            } finally {
+                admitted.unwatch();
+            }
+        } catch (SQLException sqle) {
+            System.err.println("Error running " + endpoint.name + ": " + sqle);
+            if(exchange.getResponseCode() < 0) {
+                sendError(exchange, 500, "Error running query");
+            }
+        } catch (UncheckedSQLException usqle) {
+            System.err.println("Error reading " + endpoint.name + ": " + usqle);
+        }
+    }
+
+    // The shorter of the endpoint's and the controller's timeouts.
+    private static int queryTimeout(Endpoint endpoint,
+                                    AdmissionController.Permit permit) {
+        int queryTimeout = permit.getQueryTimeout();
+        if(endpoint.queryTimeout > 0 && (queryTimeout == 0
+                || endpoint.queryTimeout < queryTimeout)) {
+            return endpoint.queryTimeout;
+        }
+        return queryTimeout;
+    }
+
+    private void sendCached(HttpExchange exchange, Endpoint endpoint,
+                            Object[] params, boolean csv) throws IOException {
+        DBResults results;
+        try {
+            results = endpoint.cache.get(endpoint.pool.getURL(), endpoint.query, params,
+                    endpoint.timeToLive, () -> load(endpoint, params));
+        } catch (UncheckedSQLException usqle) {
+            // Only thrown by load when the query is turned away.
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            sendError(exchange, 503, "Too many queries for " + endpoint.name);
+            return;
+        }
+        if(results == null) {
+            sendError(exchange, 500, "Error running query");
+            return;
+        }
+        startResponse(exchange, csv);
+        if(csv) {
+            try (CsvExporter exporter = new CsvExporter(
+                    Channels.newChannel(exchange.getResponseBody()))) {
+                exporter.export(results);
+            }
+        } else {
+            Writer out = startPage(exchange, endpoint);
+            new HtmlTableWriter(out, headingColor).write(results);
+            endPage(out);
+        }
+    }
+
+    // Run the query for the cache: null if it fails, and an
+    // UncheckedSQLException if the AdmissionController turns it
+    // away, so that the waiting requests get a 503 as well.
+    private static DBResults load(Endpoint endpoint, Object[] params) {
+        AdmissionController.Permit permit;
+        try {
+            permit = AdmissionController.admit(endpoint.pool,
+                    AdmissionController.Priority.INTERACTIVE, 0);
+        } catch (SQLException sqle) {
+            throw new UncheckedSQLException(sqle);
+        }
+        try (AdmissionController.Permit admitted = permit;
+             Connection connection = endpoint.pool.getConnection()) {
+            try {
+                return DatabaseUtilites.executeQuery(connection, endpoint.query, params,
+                        queryTimeout(endpoint, admitted), admitted::watch);
+            } finally {
+                admitted.unwatch();
+            }
+        } catch (SQLException sqle) {
+            System.err.println("Error running " + endpoint.name + ": " + sqle);
+        }
+        return null;
+    }
+
+    private static void startResponse(HttpExchange exchange, boolean csv)
+            throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", csv ? "text/csv; charset=utf-8"
+                : "text/html; charset=utf-8");
+        headers.set("Cache-Control", "no-store");
+        // A length of 0 means chunked transfer.
+        exchange.sendResponseHeaders(200, 0);
+    }
+
+    private static Writer startPage(HttpExchange exchange, Endpoint endpoint)
+            throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                exchange.getResponseBody(), StandardCharsets.UTF_8));
+        out.write("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>");
+        HtmlTableWriter.escape(endpoint.name, out);
+        out.write("</title></head>\n<body>\n");
+        return out;
+    }
+
+    private static void endPage(Writer out) throws IOException {
+        out.write("\n</body></html>\n");
+        out.close();
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message)
+            throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    // The request's text as an object of the declared type;
+    // IllegalArgumentException if it is not one.
+    private static Object convertParameter(String value, int sqlType) {
+        switch(sqlType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return Integer.valueOf(value.trim());
+            case Types.BIGINT:
+                return Long.valueOf(value.trim());
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return new BigDecimal(value.trim());
+            case Types.REAL:
+                return Float.valueOf(value.trim());
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return Double.valueOf(value.trim());
+            case Types.BIT:
+            case Types.BOOLEAN:
+                if("true".equalsIgnoreCase(value.trim())) {
+                    return Boolean.TRUE;
+                } else if("false".equalsIgnoreCase(value.trim())) {
+                    return Boolean.FALSE;
+                }
+                throw new IllegalArgumentException("Not a boolean: " + value);
+            case Types.DATE:
+                return Date.valueOf(value.trim());
+            case Types.TIME:
+                return Time.valueOf(value.trim());
+            case Types.TIMESTAMP:
+                return Timestamp.valueOf(value.trim().replace('T', ' '));
+            default:
+                return value;
+        }
+    }
+
+    // name=value pairs of a URL query string, decoded. The first
+    // of repeated names wins. A bad %-escape throws
+    // IllegalArgumentException.
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> parameters = new HashMap<>();
+        if(rawQuery == null || rawQuery.isEmpty()) {
+            return parameters;
+        }
+        for(String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            parameters.putIfAbsent(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                    URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+}
@@ -0,0 +1,142 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics for one SQL shape (the SQL with its literals
+ * replaced by ?) on one datasource. Execution time runs until
+ * the query returns its ResultSet; fetch time covers reading
+ * the rows. See QueryMetrics.
+ */
+
+public class QueryStats implements QueryStatsMBean {
+    private final String dataSource;
+    private final String sql;
+    private final LatencyHistogram executeTime = new LatencyHistogram();
+    private final LatencyHistogram fetchTime = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    QueryStats(String dataSource, String sql) {
+        this.dataSource = dataSource;
+        this.sql = sql;
+    }
+
+    void record(long executeNanos, long fetchNanos, long rowCount, long byteCount) {
+        executeTime.record(executeNanos);
+        fetchTime.record(fetchNanos);
+        rows.add(rowCount);
+        bytes.add(byteCount);
+    }
+
+    void recordError() {
+        errors.increment();
+    }
+
+    @Override
+    public String getDataSource() {
+        return dataSource;
+    }
+
+    @Override
+    public String getSql() {
+        return sql;
+    }
+
+    @Override
+    public long getExecutionCount() {
+        return executeTime.getCount();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getRowCount() {
+        return rows.sum();
+    }
+
+    @Override
+    public long getBytesMaterialized() {
+        return bytes.sum();
+    }
+
+    public LatencyHistogram getExecuteTime() {
+        return executeTime;
+    }
+
+    public LatencyHistogram getFetchTime() {
+        return fetchTime;
+    }
+
+    @Override
+    public double getExecuteTimeMean() {
+        return executeTime.getMean();
+    }
+
+    @Override
+    public double getExecuteTime50thPercentile() {
+        return executeTime.getPercentile(50);
+    }
+
+    @Override
+    public double getExecuteTime95thPercentile() {
+        return executeTime.getPercentile(95);
+    }
+
+    @Override
+    public double getExecuteTime99thPercentile() {
+        return executeTime.getPercentile(99);
+    }
+
+    @Override
+    public double getExecuteTimeMax() {
+        return executeTime.getMax();
+    }
+
+    @Override
+    public double getFetchTimeMean() {
+        return fetchTime.getMean();
+    }
+
+    @Override
+    public double getFetchTime50thPercentile() {
+        return fetchTime.getPercentile(50);
+    }
+
+    @Override
+    public double getFetchTime95thPercentile() {
+        return fetchTime.getPercentile(95);
+    }
+
+    @Override
+    public double getFetchTime99thPercentile() {
+        return fetchTime.getPercentile(99);
+    }
+
+    @Override
+    public double getFetchTimeMax() {
+        return fetchTime.getMax();
+    }
+
+    @Override
+    public void reset() {
+        executeTime.reset();
+        fetchTime.reset();
+        errors.reset();
+        rows.reset();
+        bytes.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s [%s]: %d executions, %d errors, %d rows,"
+                        + " execute p50/p99 %.1f/%.1f ms, fetch p50/p99 %.1f/%.1f ms",
+                sql, dataSource, getExecutionCount(), getErrorCount(), getRowCount(),
+                getExecuteTime50thPercentile(), getExecuteTime99thPercentile(),
+                getFetchTime50thPercentile(), getFetchTime99thPercentile());
+    }
+}
@@ -0,0 +1,42 @@
+package edu.jespinoza.coreservlets.cap18;
+
+/**
+ * JMX view of the statistics for one SQL shape on one
+ * datasource. Times are in milliseconds.
+ */
+
+public interface QueryStatsMBean {
+    String getDataSource();
+
+    String getSql();
+
+    long getExecutionCount();
+
+    long getErrorCount();
+
+    long getRowCount();
+
+    long getBytesMaterialized();
+
+    double getExecuteTimeMean();
+
+    double getExecuteTime50thPercentile();
+
+    double getExecuteTime95thPercentile();
+
+    double getExecuteTime99thPercentile();
+
+    double getExecuteTimeMax();
+
+    double getFetchTimeMean();
+
+    double getFetchTime50thPercentile();
+
+    double getFetchTime95thPercentile();
+
+    double getFetchTime99thPercentile();
+
+    double getFetchTimeMax();
+
+    void reset();
+}
@@ -0,0 +1,241 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * An open query whose rows are read one at a time as they
+ * are asked for, instead of being gathered into a DBResults.
+ * <ul>
+ * 		<li>Only the rows the driver has fetched (see fetchSize)
+ * 			are in memory, however large the result is.</li>
+ * 		<li>Rows are String arrays, exactly as DBResults.getRow
+ * 			would return them.</li>
+ * 		<li>The Statement and ResultSet are closed when the last
+ * 			row has been read, or when close is called, so always
+ * 			use it in a try-with-resources block if you may
+ * 			stop early.</li>
+ * </ul>
+ * Some drivers (PostgreSQL) only honour the fetch size inside a
+ * transaction, so if a fetch size is given on an auto-commit
+ * connection, auto-commit is switched off until the stream is closed.
+ * MySQL only streams when the fetch size is Integer.MIN_VALUE.
+ * A fetch size of 0 leaves the choice to FetchSizeTuner, which
+ * adjusts it as the rows are read.
+ * <p>
+ * The query is recorded in QueryMetrics when the stream is closed;
+ * its fetch time includes whatever the caller did between rows.
+ */
+
+public class QueryStream implements RowSource {
+    private final Connection connection;
+    private final String query;
+    private final long startNanos;
+    private final long executedNanos;
+    private final Statement statement;
+    private final ResultSet resultSet;
+    private final boolean restoreAutoCommit;
+    private final int columnCount;
+    private final String[] columnNames;
+    private String[] nextRow;
+    private boolean closed;
+    private long rowsRead;
+    private long bytesRead;
+    private boolean failed;
+    private final FetchSizeTuner.Tuning tuning;
+
+    QueryStream(Connection connection, String query, int fetchSize)
+            throws SQLException {
+        this(connection, query, null, fetchSize);
+    }
+
+    QueryStream(Connection connection, String query, Object[] params,
+                int fetchSize) throws SQLException {
+        this(connection, query, params, fetchSize, 0);
+    }
+
+    /**
+     * A stream over a PreparedStatement, if params is not null,
+     * that the database abandons after queryTimeout seconds
+     * (0 for no limit).
+     */
+    QueryStream(Connection connection, String query, Object[] params,
+                int fetchSize, int queryTimeout) throws SQLException {
+        this.connection = connection;
+        this.query = query;
+        startNanos = System.nanoTime();
+        // Any fetch size turns autocommit off below.
+        tuning = fetchSize == 0
+                ? FetchSizeTuner.getInstance().start(connection, query, false) : null;
+        if(tuning != null) {
+            fetchSize = tuning.getFetchSize();
+        }
+        restoreAutoCommit = fetchSize != 0 && connection.getAutoCommit();
+        if(restoreAutoCommit) {
+            connection.setAutoCommit(false);
+        }
+        Statement statement = null;
+        try {
+            if(params == null) {
+                statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+                        ResultSet.CONCUR_READ_ONLY);
+            } else {
+                statement = connection.prepareStatement(query,
+                        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                DatabaseUtilites.bindParameters((PreparedStatement) statement, params);
+            }
+            if(fetchSize != 0) {
+                statement.setFetchSize(fetchSize);
+            }
+            if(queryTimeout > 0) {
+                statement.setQueryTimeout(queryTimeout);
+            }
+            resultSet = params == null ? statement.executeQuery(query)
+                    : ((PreparedStatement) statement).executeQuery();
+            executedNanos = System.nanoTime();
+            this.statement = statement;
+            if(tuning != null) {
+                tuning.attach(resultSet);
+            }
+            ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
+            columnCount = resultSetMetaData.getColumnCount();
+            columnNames = DatabaseUtilites.readColumnNames(resultSetMetaData);
+        } catch (SQLException | RuntimeException e) {
+            if(statement != null) {
+                try {
+                    statement.close();
+                } catch (SQLException sqle) {}
+            }
+            restoreAutoCommit();
+            QueryMetrics.getInstance().recordError(connection, query);
+            throw e;
+        }
+    }
+
+    @Override
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    @Override
+    public long getRowsRead() {
+        return rowsRead;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if(nextRow != null) {
+            return true;
+        }
+        if(closed) {
+            return false;
+        }
+        try {
+            long start = System.nanoTime();
+            if(resultSet.next()) {
+                long fetched = System.nanoTime();
+                nextRow = DatabaseUtilites.readRow(resultSet, columnCount);
+                long rowBytes = DBResults.estimateBytes(nextRow);
+                bytesRead += rowBytes;
+                if(tuning != null) {
+                    tuning.rowRead(fetched - start, rowBytes);
+                }
+                return true;
+            }
+            close();
+            return false;
+        } catch (SQLException sqle) {
+            failed = true;
+            close();
+            throw new UncheckedSQLException(sqle);
+        }
+    }
+
+    @Override
+    public String[] next() {
+        if(!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String[] row = nextRow;
+        nextRow = null;
+        ++rowsRead;
+        return row;
+    }
+
+    /**
+     * The remaining rows as a sequential Stream. Closing the
+     * Stream closes this QueryStream.
+     */
+    public Stream<String[]> stream() {
+        Spliterator<String[]> spliterator = Spliterators.spliteratorUnknownSize(this,
+                Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false).onClose(this::close);
+    }
+
+    /**
+     * Ask the database to abort the query. Safe to call from
+     * another thread while this one is blocked fetching rows.
+     */
+    public void cancel() {
+        try {
+            statement.cancel();
+        } catch (SQLException sqle) {
+            System.err.println("Error cancelling query: " + sqle);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /** Release the ResultSet and Statement. The connection stays open. */
+    @Override
+    public void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        nextRow = null;
+        try {
+            resultSet.close();
+        } catch (SQLException sqle) {}
+        try {
+            statement.close();
+        } catch (SQLException sqle) {}
+        restoreAutoCommit();
+        if(failed) {
+            QueryMetrics.getInstance().recordError(connection, query);
+        } else {
+            if(tuning != null) {
+                tuning.finish();
+            }
+            QueryMetrics.getInstance().recordQuery(connection, query,
+                    startNanos, executedNanos, rowsRead, bytesRead);
+        }
+    }
+
+    private void restoreAutoCommit() {
+        if(restoreAutoCommit) {
+            try {
+                connection.commit();
+                connection.setAutoCommit(true);
+            } catch (SQLException sqle) {
+                System.err.println("Error restoring auto-commit: " + sqle);
+            }
+        }
+    }
+}
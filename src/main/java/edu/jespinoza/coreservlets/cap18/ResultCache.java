@@ -0,0 +1,302 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An opt-in cache of query results, for read-only queries that
+ * are run over and over (dashboards, lookup tables).
+ * <ul>
+ * 		<li>Entries are keyed by datasource URL, SQL text and
+ * 			parameters, and hold read-only DBResults snapshots.</li>
+ * 		<li>Each entry expires after its own time-to-live.</li>
+ * 		<li>The cache is bounded by the estimated heap size of
+ * 			the results rather than by entry count; least recently
+ * 			used entries go first.</li>
+ * 		<li>When several threads miss on the same key at once,
+ * 			only one runs the query and the rest wait for it.</li>
+ * 		<li>invalidateTable drops every entry whose SQL reads
+ * 			from the named table.</li>
+ * </ul>
+ */
+
+public class ResultCache {
+    private static final Pattern TABLE_LIST = Pattern.compile(
+            "\\b(?:FROM|JOIN)\\s+(.+?)(?=\\s+(?:WHERE|GROUP|ORDER|HAVING|LIMIT|OFFSET|FETCH"
+                    + "|UNION|INTERSECT|EXCEPT|MINUS|ON|USING|CROSS|NATURAL|INNER|LEFT|RIGHT"
+                    + "|FULL|JOIN|FOR)\\b|\\)|;|$)",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private final long maxBytes;
+    private final long defaultTimeToLive;
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Key, CompletableFuture<DBResults>> loading = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long totalBytes;
+    private long generation;
+
+    /**
+     * A cache holding at most about maxBytes of results, each
+     * kept for defaultTimeToLive milliseconds unless a call
+     * gives its own time-to-live.
+     */
+    public ResultCache(long maxBytes, long defaultTimeToLive) {
+        this.maxBytes = maxBytes;
+        this.defaultTimeToLive = defaultTimeToLive;
+    }
+
+    /**
+     * The cached results of the query on the pool's datasource,
+     * running it (through DatabaseUtilites.getQueryResults) if
+     * they are missing or stale. Failed queries (null results)
+     * are not cached.
+     */
+    public DBResults get(ConnectionPool pool, String query, Object... params) {
+        return get(pool, defaultTimeToLive, query, params);
+    }
+
+    public DBResults get(ConnectionPool pool, long timeToLive,
+                         String query, Object... params) {
+        return get(pool.getURL(), query, params, timeToLive,
+                () -> DatabaseUtilites.getQueryResults(pool, query, params));
+    }
+
+    /**
+     * The general form: look up (url, query, params) and, on a
+     * miss, call loader to produce the results.
+     */
+    public DBResults get(String url, String query, Object[] params,
+                         long timeToLive, Supplier<DBResults> loader) {
+        Key key = new Key(url, query, params);
+        DBResults cached = lookup(key);
+        if(cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        CompletableFuture<DBResults> load = new CompletableFuture<>();
+        CompletableFuture<DBResults> running = loading.putIfAbsent(key, load);
+        if(running != null) {
+            hits.incrementAndGet();
+            return await(running);
+        }
+        try {
+            // Somebody may have finished loading between our
+            // lookup and claiming the key.
+            cached = lookup(key);
+            if(cached == null) {
+                misses.incrementAndGet();
+                long startGeneration;
+                synchronized (this) {
+                    startGeneration = generation;
+                }
+                DBResults results = loader.get();
+                if(results != null) {
+                    cached = results.isReadOnly() ? results : results.readOnlyCopy();
+                    put(key, cached, query, timeToLive, startGeneration);
+                }
+            }
+            load.complete(cached);
+            return cached;
+        } catch (RuntimeException | Error e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, load);
+        }
+    }
+
+    private static DBResults await(CompletableFuture<DBResults> running) {
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    private synchronized DBResults lookup(Key key) {
+        Entry entry = entries.get(key);
+        if(entry == null) {
+            return null;
+        }
+        if(entry.expiresAt <= System.currentTimeMillis()) {
+            remove(key);
+            return null;
+        }
+        return entry.results;
+    }
+
+    private synchronized void put(Key key, DBResults results, String query,
+                                  long timeToLive, long startGeneration) {
+        // An invalidation while the query ran may mean the
+        // results are already out of date.
+        if(generation != startGeneration || timeToLive <= 0) {
+            return;
+        }
+        long bytes = results.estimateBytes();
+        if(bytes > maxBytes) {
+            return;
+        }
+        remove(key);
+        entries.put(key, new Entry(results, bytes, tablesReadBy(query),
+                System.currentTimeMillis() + timeToLive));
+        totalBytes += bytes;
+        if(totalBytes > maxBytes) {
+            evict();
+        }
+    }
+
+    // Expired entries first, then least recently used.
+    private void evict() {
+        long now = System.currentTimeMillis();
+        for(Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+            Entry entry = i.next();
+            if(entry.expiresAt <= now) {
+                totalBytes -= entry.bytes;
+                i.remove();
+            }
+        }
+        for(Iterator<Entry> i = entries.values().iterator();
+            totalBytes > maxBytes && i.hasNext(); ) {
+            totalBytes -= i.next().bytes;
+            i.remove();
+        }
+    }
+
+    private void remove(Key key) {
+        Entry entry = entries.remove(key);
+        if(entry != null) {
+            totalBytes -= entry.bytes;
+        }
+    }
+
+    /**
+     * Drop every entry whose SQL reads from tableName (with
+     * or without a schema prefix; case is ignored).
+     */
+    public synchronized void invalidateTable(String tableName) {
+        String table = normalizeTableName(tableName);
+        ++generation;
+        for(Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+            Entry entry = i.next();
+            if(entry.tables.contains(table)) {
+                totalBytes -= entry.bytes;
+                i.remove();
+            }
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        ++generation;
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /** Estimated heap size of all cached results. */
+    public synchronized long getSizeInBytes() {
+        return totalBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    // Names after FROM and JOIN, including comma-separated
+    // lists, without aliases, quotes or schema.
+    static Set<String> tablesReadBy(String query) {
+        Set<String> tables = new HashSet<>();
+        Matcher matcher = TABLE_LIST.matcher(query);
+        // Resume just past each FROM/JOIN rather than after the
+        // whole match, so tables inside subqueries are found too.
+        for(int from = 0; matcher.find(from); from = matcher.start(1)) {
+            for(String item : matcher.group(1).split(",")) {
+                String name = item.trim().split("\\s+")[0];
+                if(!name.isEmpty() && !name.startsWith("(")) {
+                    tables.add(normalizeTableName(name));
+                }
+            }
+        }
+        return tables;
+    }
+
+    private static String normalizeTableName(String name) {
+        name = name.replace("\"", "").replace("`", "").toLowerCase(Locale.ROOT);
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    private static class Entry {
+        final DBResults results;
+        final long bytes;
+        final Set<String> tables;
+        final long expiresAt;
+
+        Entry(DBResults results, long bytes, Set<String> tables, long expiresAt) {
+            this.results = results;
+            this.bytes = bytes;
+            this.tables = tables;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class Key {
+        private final String url;
+        private final String query;
+        private final Object[] params;
+        private final int hash;
+
+        Key(String url, String query, Object[] params) {
+            this.url = url;
+            this.query = query;
+            this.params = params == null ? new Object[0] : params.clone();
+            hash = (url.hashCode() * 31 + query.hashCode()) * 31
+                    + Arrays.deepHashCode(this.params);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if(!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return hash == key.hash && url.equals(key.url)
+                    && query.equals(key.query)
+                    && Arrays.deepEquals(params, key.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
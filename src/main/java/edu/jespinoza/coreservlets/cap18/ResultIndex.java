@@ -0,0 +1,520 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.DoublePredicate;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
+
+/**
+ * Sorts, filters and groups the rows of a DBResults in memory,
+ * without going back to the database.
+ * <ul>
+ * 		<li>A sort is an int[] of row numbers in sorted order; the
+ * 			rows themselves are never moved or copied. Sorts by a
+ * 			column are kept, and when rows have been added since,
+ * 			only the new rows are sorted and merged in. After rows
+ * 			are replaced, rowsChanged moves just those rows.</li>
+ * 		<li>A filter is a BitSet with the bit of each matching row
+ * 			set. Filters combine with BitSet.and, or and andNot,
+ * 			and restrict a sort through filter(int[], BitSet).</li>
+ * 		<li>groupBy counts rows and sums, averages and finds the
+ * 			extremes of a numeric column per distinct value of
+ * 			another, splitting large results over the fork/join
+ * 			common pool.</li>
+ * </ul>
+ * Columns of a columnar DBResults are compared by their typed
+ * values. Rows stored as strings are compared as numbers if
+ * every value in the column is one, and as strings otherwise.
+ * Nulls sort after every other value, or before when descending.
+ */
+
+public class ResultIndex {
+    // Below this many rows groupBy does not bother splitting.
+    private static final int GROUP_CHUNK = 32 * 1024;
+    // Runs this short are sorted by insertion.
+    private static final int INSERTION_SORT_SIZE = 32;
+
+    // Group keys are Longs for integer columns and Doubles for
+    // floating point ones, so they sort by value; otherwise the
+    // Strings getString gives.
+    private static final int STRING_KEY = 0;
+    private static final int LONG_KEY = 1;
+    private static final int DOUBLE_KEY = 2;
+
+    private final DBResults results;
+    private final Map<Integer, Sort> sorts = new HashMap<>();
+
+    // Compares two rows by their row numbers.
+    private interface RowComparator {
+        int compare(int a, int b);
+    }
+
+    private static class Sort {
+        final int[] order;
+        final boolean numeric;
+        // DBResults.modCount when the sort was made.
+        final int modCount;
+
+        Sort(int[] order, boolean numeric, int modCount) {
+            this.order = order;
+            this.numeric = numeric;
+            this.modCount = modCount;
+        }
+    }
+
+    // The comparator for one column, and whether strings were
+    // compared as numbers.
+    private static class ColumnOrder {
+        final RowComparator comparator;
+        final boolean numeric;
+
+        ColumnOrder(RowComparator comparator, boolean numeric) {
+            this.comparator = comparator;
+            this.numeric = numeric;
+        }
+    }
+
+    public ResultIndex(DBResults results) {
+        this.results = results;
+    }
+
+    public DBResults getResults() {
+        return results;
+    }
+
+    /**
+     * The row numbers of all rows, ordered by a column. The
+     * array is kept for later calls and must not be changed.
+     */
+    public synchronized int[] sortedBy(int column, boolean ascending) {
+        int rowCount = results.getRowCount();
+        int modCount = results.modCount;
+        Integer key = ascending ? column : -1 - column;
+        Sort sort = sorts.get(key);
+        if(sort != null && sort.modCount != modCount) {
+            sort = null;
+        }
+        if(sort != null && sort.order.length == rowCount) {
+            return sort.order;
+        }
+        ColumnOrder columnOrder = order(column, ascending, rowCount);
+        RowComparator comparator = columnOrder.comparator;
+        int[] order = new int[rowCount];
+        if(sort != null && sort.order.length < rowCount
+                && sort.numeric == columnOrder.numeric) {
+            // Sort just the new rows, then merge the two runs.
+            int sorted = sort.order.length;
+            System.arraycopy(sort.order, 0, order, 0, sorted);
+            for(int row = sorted; row < rowCount; ++row) {
+                order[row] = row;
+            }
+            int[] work = new int[rowCount];
+            sort(order, work, sorted, rowCount, comparator);
+            System.arraycopy(order, 0, work, 0, rowCount);
+            merge(work, order, 0, sorted, rowCount, comparator);
+        } else {
+            for(int row = 0; row < rowCount; ++row) {
+                order[row] = row;
+            }
+            sort(order, new int[rowCount], 0, rowCount, comparator);
+        }
+        sorts.put(key, new Sort(order, columnOrder.numeric, modCount));
+        return order;
+    }
+
+    /**
+     * Bring the kept sorts up to date after the given rows were
+     * replaced (see DBResults.setRow): they are taken out and
+     * merged back in at their new places, which is much cheaper
+     * than sorting again.
+     */
+    public synchronized void rowsChanged(int[] rows) {
+        int modCount = results.modCount;
+        int rowCount = results.getRowCount();
+        BitSet changed = new BitSet(rowCount);
+        for(int row : rows) {
+            changed.set(row);
+        }
+        Iterator<Map.Entry<Integer, Sort>> entries = sorts.entrySet().iterator();
+        while(entries.hasNext()) {
+            Map.Entry<Integer, Sort> entry = entries.next();
+            int key = entry.getKey();
+            Sort sort = entry.getValue();
+            int column = key >= 0 ? key : -1 - key;
+            ColumnOrder columnOrder = order(column, key >= 0, rowCount);
+            if(columnOrder.numeric != sort.numeric) {
+                // A changed value is no longer a number; start over.
+                entries.remove();
+                continue;
+            }
+            int sorted = sort.order.length;
+            int[] work = new int[sorted];
+            int kept = 0;
+            for(int row : sort.order) {
+                if(!changed.get(row)) {
+                    work[kept++] = row;
+                }
+            }
+            int moved = kept;
+            for(int row = changed.nextSetBit(0); row >= 0 && row < sorted;
+                row = changed.nextSetBit(row + 1)) {
+                work[moved++] = row;
+            }
+            int[] order = new int[sorted];
+            sort(work, order, kept, sorted, columnOrder.comparator);
+            merge(work, order, 0, kept, sorted, columnOrder.comparator);
+            entry.setValue(new Sort(order, sort.numeric, modCount));
+        }
+    }
+
+    /**
+     * A copy of rows sorted by a column. The sort is stable, so
+     * sorting by the least significant column first and the most
+     * significant last orders by several columns.
+     */
+    public int[] sort(int[] rows, int column, boolean ascending) {
+        int[] order = rows.clone();
+        RowComparator comparator = order(column, ascending, results.getRowCount()).comparator;
+        sort(order, new int[order.length], 0, order.length, comparator);
+        return order;
+    }
+
+    /** Forget the kept sorts, after rows have been changed. */
+    public synchronized void invalidate() {
+        sorts.clear();
+    }
+
+    /** The rows whose value in column is not null and passes test. */
+    public BitSet filter(int column, Predicate<? super String> test) {
+        int rowCount = results.getRowCount();
+        BitSet matches = new BitSet(rowCount);
+        Column stored = results.getColumn(column);
+        if(stored != null) {
+            stored.match(test, 0, rowCount, matches);
+            return matches;
+        }
+        for(int row = 0; row < rowCount; ++row) {
+            String value = results.getString(row, column);
+            if(value != null && test.test(value)) {
+                matches.set(row);
+            }
+        }
+        return matches;
+    }
+
+    /** The rows whose value in column is not null and, as a long, passes test. */
+    public BitSet filterLong(int column, LongPredicate test) {
+        int rowCount = results.getRowCount();
+        BitSet matches = new BitSet(rowCount);
+        for(int row = 0; row < rowCount; ++row) {
+            if(!results.isNull(row, column) && test.test(results.getLong(row, column))) {
+                matches.set(row);
+            }
+        }
+        return matches;
+    }
+
+    /** The rows whose value in column is not null and, as a double, passes test. */
+    public BitSet filterDouble(int column, DoublePredicate test) {
+        int rowCount = results.getRowCount();
+        BitSet matches = new BitSet(rowCount);
+        for(int row = 0; row < rowCount; ++row) {
+            if(!results.isNull(row, column) && test.test(results.getDouble(row, column))) {
+                matches.set(row);
+            }
+        }
+        return matches;
+    }
+
+    /** The rows whose value in column is null. */
+    public BitSet nulls(int column) {
+        int rowCount = results.getRowCount();
+        BitSet matches = new BitSet(rowCount);
+        for(int row = 0; row < rowCount; ++row) {
+            if(results.isNull(row, column)) {
+                matches.set(row);
+            }
+        }
+        return matches;
+    }
+
+    /** The entries of order (row numbers) whose bit is set in rows, in the same order. */
+    public static int[] filter(int[] order, BitSet rows) {
+        int[] kept = new int[Math.min(order.length, rows.cardinality())];
+        int count = 0;
+        for(int row : order) {
+            if(rows.get(row)) {
+                kept[count++] = row;
+            }
+        }
+        return count == kept.length ? kept : Arrays.copyOf(kept, count);
+    }
+
+    /**
+     * Group the rows (all of them if rows is null) by the value
+     * of groupColumn. The result has a row per group, in order
+     * of that value: the value, then COUNT, the number of rows,
+     * and the SUM, MIN, MAX and AVG of the non-null values of
+     * valueColumn, which must be numeric (dates count as epoch
+     * milliseconds). With a negative valueColumn there is only
+     * COUNT.
+     */
+    public DBResults groupBy(int groupColumn, int valueColumn, BitSet rows) {
+        int[] selected = rows == null ? null : rows.stream().toArray();
+        int rowCount = selected == null ? results.getRowCount() : selected.length;
+        Aggregation aggregation = new Aggregation(selected, 0, rowCount,
+                groupColumn, valueColumn, keyType(groupColumn));
+        Map<Object, Aggregate> groups = rowCount > GROUP_CHUNK
+                ? ForkJoinPool.commonPool().invoke(aggregation)
+                : aggregation.compute();
+        List<Object> keys = new ArrayList<>(groups.keySet());
+        keys.sort(Comparator.nullsLast(ResultIndex::compareKeys));
+
+        boolean values = valueColumn >= 0;
+        String[] names = values
+                ? new String[] { results.getColumnNames()[groupColumn],
+                        "COUNT", "SUM", "MIN", "MAX", "AVG" }
+                : new String[] { results.getColumnNames()[groupColumn], "COUNT" };
+        int[] types = values
+                ? new int[] { results.getColumnType(groupColumn), Types.BIGINT,
+                        Types.DOUBLE, Types.DOUBLE, Types.DOUBLE, Types.DOUBLE }
+                : new int[] { results.getColumnType(groupColumn), Types.BIGINT };
+        DBResults grouped = new DBResults(null, results.getProductName(),
+                results.getProductVersion(), names.length, names, types);
+        for(Object key : keys) {
+            Aggregate aggregate = groups.get(key);
+            String[] row = new String[names.length];
+            row[0] = key == null ? null : key.toString();
+            row[1] = Long.toString(aggregate.count);
+            if(values && aggregate.valueCount > 0) {
+                row[2] = Double.toString(aggregate.sum);
+                row[3] = Double.toString(aggregate.min);
+                row[4] = Double.toString(aggregate.max);
+                row[5] = Double.toString(aggregate.sum / aggregate.valueCount);
+            }
+            grouped.addRow(row);
+        }
+        return grouped;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static int compareKeys(Object a, Object b) {
+        return ((Comparable) a).compareTo(b);
+    }
+
+    private int keyType(int column) {
+        if(!results.isColumnar()) {
+            return STRING_KEY;
+        }
+        switch (results.getColumnType(column)) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                return LONG_KEY;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return DOUBLE_KEY;
+            default:
+                return STRING_KEY;
+        }
+    }
+
+    private static class Aggregate {
+        long count;
+        long valueCount;
+        double sum;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+
+        void add(Aggregate other) {
+            count += other.count;
+            valueCount += other.valueCount;
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+    }
+
+    // Aggregates the rows selected[from..to) (or rows from..to,
+    // if selected is null), splitting the range in two and doing
+    // the halves in parallel while it is large.
+    private class Aggregation extends RecursiveTask<Map<Object, Aggregate>> {
+        private final int[] selected;
+        private final int from;
+        private final int to;
+        private final int groupColumn;
+        private final int valueColumn;
+        private final int keyType;
+
+        Aggregation(int[] selected, int from, int to, int groupColumn,
+                    int valueColumn, int keyType) {
+            this.selected = selected;
+            this.from = from;
+            this.to = to;
+            this.groupColumn = groupColumn;
+            this.valueColumn = valueColumn;
+            this.keyType = keyType;
+        }
+
+        @Override
+        protected Map<Object, Aggregate> compute() {
+            if(to - from > GROUP_CHUNK) {
+                int middle = (from + to) >>> 1;
+                Aggregation left = new Aggregation(selected, from, middle,
+                        groupColumn, valueColumn, keyType);
+                left.fork();
+                Map<Object, Aggregate> groups = new Aggregation(selected, middle, to,
+                        groupColumn, valueColumn, keyType).compute();
+                Map<Object, Aggregate> leftGroups = left.join();
+                if(leftGroups.size() > groups.size()) {
+                    Map<Object, Aggregate> swap = groups;
+                    groups = leftGroups;
+                    leftGroups = swap;
+                }
+                for(Map.Entry<Object, Aggregate> entry : leftGroups.entrySet()) {
+                    Aggregate aggregate = groups.get(entry.getKey());
+                    if(aggregate == null) {
+                        groups.put(entry.getKey(), entry.getValue());
+                    } else {
+                        aggregate.add(entry.getValue());
+                    }
+                }
+                return groups;
+            }
+            Map<Object, Aggregate> groups = new HashMap<>();
+            for(int i = from; i < to; ++i) {
+                int row = selected == null ? i : selected[i];
+                Object key = key(row);
+                Aggregate aggregate = groups.get(key);
+                if(aggregate == null) {
+                    aggregate = new Aggregate();
+                    groups.put(key, aggregate);
+                }
+                ++aggregate.count;
+                if(valueColumn >= 0 && !results.isNull(row, valueColumn)) {
+                    double value = results.getDouble(row, valueColumn);
+                    ++aggregate.valueCount;
+                    aggregate.sum += value;
+                    aggregate.min = Math.min(aggregate.min, value);
+                    aggregate.max = Math.max(aggregate.max, value);
+                }
+            }
+            return groups;
+        }
+
+        private Object key(int row) {
+            if(results.isNull(row, groupColumn)) {
+                return null;
+            }
+            switch (keyType) {
+                case LONG_KEY:
+                    return results.getLong(row, groupColumn);
+                case DOUBLE_KEY:
+                    return results.getDouble(row, groupColumn);
+                default:
+                    return results.getString(row, groupColumn);
+            }
+        }
+    }
+
+    private ColumnOrder order(int column, boolean ascending, int rowCount) {
+        ColumnOrder order = ascendingOrder(column, rowCount);
+        if(ascending) {
+            return order;
+        }
+        RowComparator comparator = order.comparator;
+        return new ColumnOrder((a, b) -> comparator.compare(b, a), order.numeric);
+    }
+
+    private ColumnOrder ascendingOrder(int column, int rowCount) {
+        Column stored = results.getColumn(column);
+        if(stored != null) {
+            stored.prepareCompare();
+            return new ColumnOrder(stored::compare, false);
+        }
+        // Read the column once: rows that were spilled to disk
+        // are slow to get at one by one.
+        String[] keys = new String[rowCount];
+        double[] numbers = new double[rowCount];
+        boolean numeric = true;
+        for(int row = 0; row < rowCount; ++row) {
+            String key = results.getString(row, column);
+            keys[row] = key;
+            if(numeric && key != null) {
+                try {
+                    numbers[row] = Double.parseDouble(key);
+                } catch (NumberFormatException nfe) {
+                    numeric = false;
+                }
+            }
+        }
+        if(numeric) {
+            return new ColumnOrder((a, b) -> {
+                if(keys[a] == null || keys[b] == null) {
+                    return keys[a] == keys[b] ? 0 : keys[a] == null ? 1 : -1;
+                }
+                return Double.compare(numbers[a], numbers[b]);
+            }, true);
+        }
+        return new ColumnOrder((a, b) -> {
+            if(keys[a] == null || keys[b] == null) {
+                return keys[a] == keys[b] ? 0 : keys[a] == null ? 1 : -1;
+            }
+            return keys[a].compareTo(keys[b]);
+        }, false);
+    }
+
+    // A stable merge sort of rows[from..to), using work (at
+    // least as long) as scratch space.
+    private static void sort(int[] rows, int[] work, int from, int to,
+                             RowComparator comparator) {
+        if(to - from <= INSERTION_SORT_SIZE) {
+            for(int i = from + 1; i < to; ++i) {
+                int row = rows[i];
+                int j = i;
+                while(j > from && comparator.compare(rows[j - 1], row) > 0) {
+                    rows[j] = rows[j - 1];
+                    --j;
+                }
+                rows[j] = row;
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sort(rows, work, from, middle, comparator);
+        sort(rows, work, middle, to, comparator);
+        if(comparator.compare(rows[middle - 1], rows[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(rows, from, work, from, to - from);
+        merge(work, rows, from, middle, to, comparator);
+    }
+
+    // Merge the sorted runs source[from..middle) and
+    // source[middle..to) into target[from..to).
+    private static void merge(int[] source, int[] target, int from, int middle,
+                              int to, RowComparator comparator) {
+        int left = from;
+        int right = middle;
+        for(int i = from; i < to; ++i) {
+            if(right >= to || (left < middle
+                    && comparator.compare(source[left], source[right]) <= 0)) {
+                target[i] = source[left++];
+            } else {
+                target[i] = source[right++];
+            }
+        }
+    }
+}
@@ -0,0 +1,463 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * A primary database and its read replicas, each with its own
+ * ConnectionPool, used as one datasource: writes go to the primary
+ * and reads are spread over the replicas.
+ * <ul>
+ * 		<li>forRead picks two healthy replicas at random and takes
+ * 			the one with the lower recent latency times the
+ * 			connections it has in use. Comparing two at random,
+ * 			rather than always taking the best, keeps every caller
+ * 			from piling onto the same replica between measurements.</li>
+ * 		<li>The recent latency is an average weighted by age, each
+ * 			measurement counting for less as decayTime milliseconds
+ * 			pass. While a replica is not used its latency fades
+ * 			towards 0 as well, so one that was slow once is tried
+ * 			again before long.</li>
+ * 		<li>The latencies come from the queries run through
+ * 			getQueryResults and from the health checks, which every
+ * 			healthCheckInterval milliseconds time a validation of
+ * 			each replica.</li>
+ * 		<li>A replica that fails failureThreshold times in a row
+ * 			(connection errors or health checks, not SQL errors) is
+ * 			ejected, and admitted again after its next successful
+ * 			health check.</li>
+ * 		<li>With no healthy replica, reads go to the primary too.</li>
+ * </ul>
+ * Replicas usually lag the primary a little, so a read that must
+ * see the caller's own write should use forWrite.
+ */
+
+public class RoutingDataSource implements AutoCloseable {
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    public static final long DEFAULT_HEALTH_CHECK_INTERVAL = 5000;
+    public static final long DEFAULT_DECAY_TIME = 1000;
+
+    // Seconds a health check waits for Connection.isValid.
+    private static final int PROBE_TIMEOUT = 2;
+
+    private static final Map<String, RoutingDataSource> ROUTERS = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService HEALTH_CHECKER =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "RoutingDataSource-health");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // Statements that only read, unless they lock rows or, after
+    // a WITH, change them.
+    private static final Pattern READ_ONLY = Pattern.compile(
+            "(?is)\\s*\\(*\\s*(SELECT|WITH|VALUES|TABLE|SHOW|EXPLAIN|DESCRIBE)\\b.*");
+    private static final Pattern WRITES = Pattern.compile(
+            "(?is).*\\b(FOR\\s+UPDATE|FOR\\s+SHARE|INSERT|UPDATE|DELETE|MERGE)\\b.*");
+    private static final Pattern COMMENTS = Pattern.compile("(?s)--[^\\n]*|/\\*.*?\\*/");
+
+    private final Backend primary;
+    private final List<Backend> replicas;
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile long decayTime = DEFAULT_DECAY_TIME;
+    private long healthCheckInterval;
+    private ScheduledFuture<?> healthCheck;
+    private boolean closed;
+
+    /** One database behind the router and what is known of its health. */
+    public static class Backend {
+        private final ConnectionPool pool;
+        private double latencyNanos;
+        private long measuredAt;
+        private boolean measured;
+        private boolean healthy = true;
+        private int failures;
+        private long requestCount;
+        private long ejectionCount;
+
+        private Backend(ConnectionPool pool) {
+            this.pool = pool;
+        }
+
+        public ConnectionPool getPool() {
+            return pool;
+        }
+
+        public synchronized boolean isHealthy() {
+            return healthy;
+        }
+
+        /** Recent latency in milliseconds; 0 until measured. */
+        public synchronized double getLatency() {
+            return latencyNanos / 1e6;
+        }
+
+        public synchronized int getConsecutiveFailures() {
+            return failures;
+        }
+
+        /** Reads routed here by forRead. */
+        public synchronized long getRequestCount() {
+            return requestCount;
+        }
+
+        public synchronized long getEjectionCount() {
+            return ejectionCount;
+        }
+
+        // Lower is better. Unmeasured backends score 0, so they are
+        // tried before the others.
+        private synchronized double score(long now, long decayNanos) {
+            double weight = Math.exp(-(double) (now - measuredAt) / decayNanos);
+            return latencyNanos * weight * (pool.getActiveCount() + 1);
+        }
+
+        private synchronized void succeeded(long nanos, long decayNanos) {
+            long now = System.nanoTime();
+            if(measured) {
+                double weight = Math.exp(-(double) (now - measuredAt) / decayNanos);
+                latencyNanos = nanos + weight * (latencyNanos - nanos);
+            } else {
+                latencyNanos = nanos;
+                measured = true;
+            }
+            measuredAt = now;
+            failures = 0;
+        }
+
+        // True if this failure ejects the backend.
+        private synchronized boolean failed(int failureThreshold) {
+            if(++failures < failureThreshold || !healthy) {
+                return false;
+            }
+            healthy = false;
+            ++ejectionCount;
+            return true;
+        }
+
+        // Back in after a health check: start afresh from its latency.
+        private synchronized void readmit(long nanos) {
+            healthy = true;
+            failures = 0;
+            latencyNanos = nanos;
+            measuredAt = System.nanoTime();
+            measured = true;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return pool.getURL() + (healthy ? "" : " (ejected)")
+                    + String.format(" %.2f ms", latencyNanos / 1e6);
+        }
+    }
+
+    /**
+     * Route over the given pools, which the caller closes. Health
+     * checks start at once, every DEFAULT_HEALTH_CHECK_INTERVAL.
+     */
+    public RoutingDataSource(ConnectionPool primary, ConnectionPool... replicas) {
+        this.primary = new Backend(primary);
+        List<Backend> backends = new ArrayList<>(replicas.length);
+        for(ConnectionPool replica : replicas) {
+            backends.add(new Backend(replica));
+        }
+        this.replicas = Collections.unmodifiableList(backends);
+        setHealthCheckInterval(DEFAULT_HEALTH_CHECK_INTERVAL);
+    }
+
+    /**
+     * The shared router for the given URLs (the primary's first),
+     * over pools from ConnectionPool.getPool.
+     */
+    public static RoutingDataSource getRouting(String driver, String[] urls,
+                                               String username, String password)
+            throws SQLException {
+        if(urls.length == 0) {
+            throw new IllegalArgumentException("No primary URL");
+        }
+        String key = String.join("|", urls) + "|" + username;
+        RoutingDataSource router = ROUTERS.get(key);
+        if(router != null && !router.isClosed()) {
+            return router;
+        }
+        synchronized (ROUTERS) {
+            router = ROUTERS.get(key);
+            if(router == null || router.isClosed()) {
+                ConnectionPool[] replicas = new ConnectionPool[urls.length - 1];
+                for(int i = 1; i < urls.length; ++i) {
+                    replicas[i - 1] = ConnectionPool.getPool(driver, urls[i],
+                            username, password);
+                }
+                router = new RoutingDataSource(ConnectionPool.getPool(driver, urls[0],
+                        username, password), replicas);
+                ROUTERS.put(key, router);
+            }
+            return router;
+        }
+    }
+
+    /**
+     * The pool a query should use: the shared pool of a single URL,
+     * or, given several, the one their shared router routes it to.
+     */
+    public static ConnectionPool getPool(String driver, String[] urls,
+                                         String username, String password,
+                                         String query)
+            throws SQLException {
+        if(urls.length == 1) {
+            return ConnectionPool.getPool(driver, urls[0], username, password);
+        }
+        return getRouting(driver, urls, username, password).route(query);
+    }
+
+    public Backend getPrimary() {
+        return primary;
+    }
+
+    public List<Backend> getReplicas() {
+        return replicas;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    /** Failures in a row that eject a replica. */
+    public void setFailureThreshold(int failureThreshold) {
+        if(failureThreshold < 1) {
+            throw new IllegalArgumentException("Threshold must be positive: "
+                    + failureThreshold);
+        }
+        this.failureThreshold = failureThreshold;
+    }
+
+    public long getDecayTime() {
+        return decayTime;
+    }
+
+    /**
+     * Milliseconds over which a latency measurement fades (to 1/e
+     * of its weight); shorter follows changes faster but is noisier.
+     */
+    public void setDecayTime(long decayTime) {
+        if(decayTime < 1) {
+            throw new IllegalArgumentException("Decay time must be positive: "
+                    + decayTime);
+        }
+        this.decayTime = decayTime;
+    }
+
+    public synchronized long getHealthCheckInterval() {
+        return healthCheckInterval;
+    }
+
+    /** Milliseconds between health checks; 0 stops them. */
+    public synchronized void setHealthCheckInterval(long healthCheckInterval) {
+        if(healthCheckInterval < 0) {
+            throw new IllegalArgumentException("Interval must not be negative: "
+                    + healthCheckInterval);
+        }
+        if(healthCheck != null) {
+            healthCheck.cancel(false);
+            healthCheck = null;
+        }
+        this.healthCheckInterval = healthCheckInterval;
+        if(healthCheckInterval > 0 && !replicas.isEmpty() && !closed) {
+            healthCheck = HEALTH_CHECKER.scheduleWithFixedDelay(this::checkHealth,
+                    healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** The pool writes (and reads that must see them) go to. */
+    public ConnectionPool forWrite() {
+        return primary.pool;
+    }
+
+    /** The pool a read should go to now. */
+    public ConnectionPool forRead() {
+        return chooseReplica().pool;
+    }
+
+    /** forRead for a query that only reads, otherwise forWrite. */
+    public ConnectionPool route(String query) {
+        return isReadOnly(query) ? forRead() : forWrite();
+    }
+
+    /**
+     * Whether the statement only reads: a SELECT, WITH, VALUES,
+     * SHOW or EXPLAIN that does not lock or change rows. Anything
+     * unrecognized counts as a write.
+     */
+    public static boolean isReadOnly(String query) {
+        String text = COMMENTS.matcher(query).replaceAll(" ");
+        return READ_ONLY.matcher(text).matches() && !WRITES.matcher(text).matches();
+    }
+
+    /**
+     * Run the query (see DatabaseUtilites.getQueryResults) where
+     * route sends it, timing it for the next choice. A read that
+     * fails to reach its replica is retried on the primary.
+     */
+    public DBResults getQueryResults(String query, Object... params) {
+        boolean readOnly = isReadOnly(query);
+        Backend backend = readOnly ? chooseReplica() : primary;
+        try {
+            return execute(backend, query, params);
+        } catch (SQLException sqle) {
+            if(backend != primary && isConnectionFailure(sqle)) {
+                System.err.println("Error reading from " + backend.pool.getURL()
+                        + ", retrying on primary: " + sqle);
+                try {
+                    return execute(primary, query, params);
+                } catch (SQLException retry) {
+                    sqle = retry;
+                }
+            }
+            System.err.println("Error executing query: " + sqle);
+            sqle.printStackTrace();
+        }
+        return null;
+    }
+
+    private DBResults execute(Backend backend, String query, Object[] params)
+            throws SQLException {
+        long start = System.nanoTime();
+        try {
+            DBResults results = DatabaseUtilites.executeQuery(backend.pool, query, params);
+            backend.succeeded(System.nanoTime() - start, decayNanos());
+            return results;
+        } catch (SQLException sqle) {
+            if(isConnectionFailure(sqle)) {
+                failed(backend);
+            }
+            throw sqle;
+        }
+    }
+
+    // A query the backend never got to run, as opposed to bad SQL.
+    // Rejections by an AdmissionController are plain
+    // SQLTransientExceptions and do not count, and neither does
+    // waiting too long for one of the pool's connections: the
+    // backend is busy, not down, and moving its load elsewhere
+    // would only swamp the others.
+    private static boolean isConnectionFailure(SQLException sqle) {
+        if(ConnectionPool.ACQUIRE_TIMEOUT_STATE.equals(sqle.getSQLState())) {
+            return false;
+        }
+        return sqle instanceof SQLTransientConnectionException
+                || sqle instanceof SQLNonTransientConnectionException
+                || sqle instanceof SQLRecoverableException
+                || (sqle.getSQLState() != null && sqle.getSQLState().startsWith("08"));
+    }
+
+    // Power of two choices among the healthy replicas.
+    private Backend chooseReplica() {
+        List<Backend> healthy = new ArrayList<>(replicas.size());
+        for(Backend replica : replicas) {
+            if(replica.isHealthy() && !replica.pool.isClosed()) {
+                healthy.add(replica);
+            }
+        }
+        Backend choice;
+        if(healthy.isEmpty()) {
+            choice = primary;
+        } else if(healthy.size() == 1) {
+            choice = healthy.get(0);
+        } else {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(healthy.size());
+            int second = random.nextInt(healthy.size() - 1);
+            if(second >= first) {
+                ++second;
+            }
+            Backend a = healthy.get(first);
+            Backend b = healthy.get(second);
+            long now = System.nanoTime();
+            long decayNanos = decayNanos();
+            choice = b.score(now, decayNanos) < a.score(now, decayNanos) ? b : a;
+        }
+        synchronized (choice) {
+            ++choice.requestCount;
+        }
+        return choice;
+    }
+
+    private long decayNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(decayTime);
+    }
+
+    private void failed(Backend backend) {
+        if(backend != primary && backend.failed(failureThreshold)) {
+            System.err.println("Ejecting replica " + backend.pool.getURL()
+                    + " after " + failureThreshold + " failures");
+        }
+    }
+
+    /** Check every replica now, as the scheduled health checks do. */
+    public void checkHealth() {
+        for(Backend replica : replicas) {
+            ConnectionPool pool = replica.pool;
+            // A replica with every connection busy is working, and
+            // waiting for a connection would only hold up the rest.
+            if(pool.isClosed() || pool.getActiveCount() >= pool.getMaxSize()) {
+                continue;
+            }
+            long start = System.nanoTime();
+            boolean valid;
+            try (Connection connection = pool.getConnection()) {
+                valid = connection.isValid(PROBE_TIMEOUT);
+            } catch (SQLException sqle) {
+                if(ConnectionPool.ACQUIRE_TIMEOUT_STATE.equals(sqle.getSQLState())) {
+                    // Became busy since the check above.
+                    continue;
+                }
+                valid = false;
+            } catch (RuntimeException e) {
+                valid = false;
+            }
+            long nanos = System.nanoTime() - start;
+            if(!valid) {
+                failed(replica);
+            } else if(replica.isHealthy()) {
+                replica.succeeded(nanos, decayNanos());
+            } else {
+                replica.readmit(nanos);
+                System.err.println("Readmitting replica " + pool.getURL());
+            }
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /** Stop the health checks. The pools are left open. */
+    @Override
+    public synchronized void close() {
+        if(healthCheck != null) {
+            healthCheck.cancel(false);
+            healthCheck = null;
+        }
+        closed = true;
+    }
+
+    @Override
+    public String toString() {
+        return "primary " + primary + ", replicas " + Arrays.toString(replicas.toArray());
+    }
+}
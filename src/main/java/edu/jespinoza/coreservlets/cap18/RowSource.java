@@ -0,0 +1,22 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.util.Iterator;
+
+/**
+ * Rows handed out one at a time, as String arrays, together
+ * with their column names: a QueryStream, or the merged
+ * partitions of a PartitionedScan. TextTablePrinter and
+ * HtmlTableWriter accept either.
+ */
+
+public interface RowSource extends Iterator<String[]>, AutoCloseable {
+    int getColumnCount();
+
+    String[] getColumnNames();
+
+    /** Number of rows handed out so far. */
+    long getRowsRead();
+
+    @Override
+    void close();
+}
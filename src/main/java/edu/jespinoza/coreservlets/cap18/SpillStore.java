@@ -0,0 +1,260 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The rows of a DBResults that did not fit in its memory budget,
+ * kept in a temporary file instead of on the heap.
+ * <ul>
+ * 		<li>Each row is written as its length in bytes followed by
+ * 			its entries, each one a length (-1 for null) and its
+ * 			UTF-8 bytes.</li>
+ * 		<li>Only the offset of each row stays in memory, so any row
+ * 			can be read back directly.</li>
+ * 		<li>Rows are read through memory-mapped segments of the
+ * 			file, so reading costs no system calls and the data lives
+ * 			in the page cache rather than the Java heap.</li>
+ * 		<li>A replaced row is written at the end of the file and its
+ * 			offset moved there; the old copy is left as garbage.</li>
+ * 		<li>The file is deleted by close, or failing that once the
+ * 			store is garbage collected.</li>
+ * </ul>
+ */
+
+class SpillStore implements AutoCloseable {
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private final int columnCount;
+    private final FileState state;
+    private final Cleaner.Cleanable cleanable;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private long[] offsets = new long[1024];
+    private int rowCount;
+    private long size;
+    private long flushedSize;
+    private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private volatile CachedRow lastRow;
+
+    // The part a Cleaner may touch: it must not refer back to
+    // the store, or the store would never become unreachable.
+    private static class FileState implements Runnable {
+        final Path path;
+        final FileChannel channel;
+
+        FileState(Path path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            try {
+                channel.close();
+            } catch (IOException ioe) {}
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException ioe) {
+                System.err.println("Error deleting spill file " + path + ": " + ioe);
+            }
+        }
+    }
+
+    private static class CachedRow {
+        final int index;
+        final String[] row;
+
+        CachedRow(int index, String[] row) {
+            this.index = index;
+            this.row = row;
+        }
+    }
+
+    SpillStore(int columnCount) {
+        this.columnCount = columnCount;
+        try {
+            Path path = Files.createTempFile("dbresults", ".rows");
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            state = new FileState(path, channel);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Error creating spill file", ioe);
+        }
+        cleanable = CLEANER.register(this, state);
+    }
+
+    int size() {
+        return rowCount;
+    }
+
+    /** Bytes written to the file so far. */
+    long fileSize() {
+        return size;
+    }
+
+    synchronized void append(String[] row) {
+        long offset = write(row);
+        if(rowCount == offsets.length) {
+            offsets = Arrays.copyOf(offsets, rowCount * 2);
+        }
+        offsets[rowCount++] = offset;
+    }
+
+    synchronized void replace(int index, String[] row) {
+        if(index < 0 || index >= rowCount) {
+            throw new IndexOutOfBoundsException("Row " + index + " of " + rowCount);
+        }
+        offsets[index] = write(row);
+        lastRow = null;
+    }
+
+    // Add the row at the end of the file, returning its offset.
+    private long write(String[] row) {
+        byte[][] encoded = new byte[columnCount][];
+        int length = 0;
+        for(int i = 0; i < columnCount; ++i) {
+            if(row[i] != null) {
+                encoded[i] = row[i].getBytes(StandardCharsets.UTF_8);
+                length += encoded[i].length;
+            }
+            length += 4;
+        }
+        try {
+            if(writeBuffer.remaining() < length + 4) {
+                flush();
+            }
+            ByteBuffer target = length + 4 <= writeBuffer.capacity()
+                    ? writeBuffer : ByteBuffer.allocate(length + 4);
+            target.putInt(length);
+            for(byte[] entry : encoded) {
+                if(entry == null) {
+                    target.putInt(-1);
+                } else {
+                    target.putInt(entry.length);
+                    target.put(entry);
+                }
+            }
+            if(target != writeBuffer) {
+                target.flip();
+                writeFully(target);
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Error writing spill file", ioe);
+        }
+        long offset = size;
+        size += length + 4;
+        return offset;
+    }
+
+    /**
+     * The row at index. The last row read is kept and handed out
+     * again for the next get of the same index (a table asks for
+     * a row one cell at a time), so it must not be changed.
+     */
+    String[] get(int index) {
+        if(index < 0 || index >= rowCount) {
+            throw new IndexOutOfBoundsException("Row " + index + " of " + rowCount);
+        }
+        CachedRow cached = lastRow;
+        if(cached != null && cached.index == index) {
+            return cached.row;
+        }
+        try {
+            ByteBuffer buffer = rowBuffer(offsets[index]);
+            String[] row = new String[columnCount];
+            for(int i = 0; i < columnCount; ++i) {
+                int length = buffer.getInt();
+                if(length >= 0) {
+                    byte[] bytes = new byte[length];
+                    buffer.get(bytes);
+                    row[i] = new String(bytes, StandardCharsets.UTF_8);
+                }
+            }
+            lastRow = new CachedRow(index, row);
+            return row;
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Error reading spill file", ioe);
+        }
+    }
+
+    // A buffer positioned at the first entry of the row at offset:
+    // a view of its mapped segment or, for the rare row that
+    // crosses into the next segment, a copy.
+    private synchronized ByteBuffer rowBuffer(long offset) throws IOException {
+        // Rows are flushed whole, so this flushes all of it.
+        if(offset >= flushedSize) {
+            flush();
+        }
+        int segment = (int) (offset / SEGMENT_SIZE);
+        int position = (int) (offset - segment * SEGMENT_SIZE);
+        if(position + 4 <= SEGMENT_SIZE) {
+            int length = segment(segment, position + 4).getInt(position);
+            long end = position + 4L + length;
+            if(end <= SEGMENT_SIZE) {
+                ByteBuffer view = segment(segment, end).duplicate();
+                view.position(position + 4);
+                return view;
+            }
+        }
+        ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(header, offset);
+        ByteBuffer copy = ByteBuffer.allocate(header.getInt(0));
+        readFully(copy, offset + 4);
+        copy.flip();
+        return copy;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(state.channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Spill file truncated");
+            }
+        }
+    }
+
+    // The segment, mapped far enough to include needed bytes.
+    private MappedByteBuffer segment(int segment, long needed) throws IOException {
+        if(segment >= segments.length) {
+            segments = Arrays.copyOf(segments, segment + 1);
+        }
+        MappedByteBuffer mapped = segments[segment];
+        if(mapped == null || mapped.limit() < needed) {
+            long start = segment * SEGMENT_SIZE;
+            long length = Math.min(SEGMENT_SIZE, flushedSize - start);
+            mapped = state.channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            segments[segment] = mapped;
+        }
+        return mapped;
+    }
+
+    private synchronized void flush() throws IOException {
+        writeBuffer.flip();
+        writeFully(writeBuffer);
+        writeBuffer.clear();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            flushedSize += state.channel.write(buffer, flushedSize);
+        }
+    }
+
+    /** Delete the file. The rows can no longer be read. */
+    @Override
+    public synchronized void close() {
+        segments = new MappedByteBuffer[0];
+        lastRow = null;
+        cleanable.clean();
+    }
+}
@@ -0,0 +1,70 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The distinct values of one string column, each given a small
+ * integer code in order of first appearance. Columns such as
+ * status or country repeat a few values over millions of rows,
+ * so storing each value once (see DBResults and
+ * Column.StringColumn) saves most of their memory. Once the
+ * column shows more than maxSize distinct values it is not
+ * worth it, and encode starts returning -1.
+ */
+
+final class StringDictionary {
+    /** The most codes a char can hold. */
+    static final int MAX_SIZE = 65536;
+
+    private final int maxSize;
+    private final Map<String, Integer> codes = new HashMap<>();
+    private String[] values = new String[16];
+    private long valueBytes;
+
+    StringDictionary(int maxSize) {
+        this.maxSize = Math.min(maxSize, MAX_SIZE);
+    }
+
+    /** The code of value, adding it if new; -1 if the dictionary is full. */
+    int encode(String value) {
+        Integer code = codes.get(value);
+        if(code != null) {
+            return code;
+        }
+        int size = codes.size();
+        if(size >= maxSize) {
+            return -1;
+        }
+        if(size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size] = value;
+        codes.put(value, size);
+        valueBytes += DBResults.estimateBytes(value);
+        return size;
+    }
+
+    String decode(int code) {
+        return values[code];
+    }
+
+    /**
+     * The stored instance equal to value (value itself, the first
+     * time it is seen), or null if the dictionary is full.
+     */
+    String intern(String value) {
+        int code = encode(value);
+        return code < 0 ? null : values[code];
+    }
+
+    int size() {
+        return codes.size();
+    }
+
+    /** Rough heap bytes: the values, the array and the map entries. */
+    long estimateBytes() {
+        return valueBytes + 16 + 4L * values.length + 64 + 48L * codes.size();
+    }
+}
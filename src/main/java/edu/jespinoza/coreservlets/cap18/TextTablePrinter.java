@@ -0,0 +1,217 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Prints query results as a fixed-width text table of the form
+ * <pre>
+ * +------+------+
+ * |   ID | NAME |
+ * +------+------+
+ * |    1 |  Bob |
+ * +------+------+
+ * </pre>
+ * Each column is made as wide as its widest entry, found in
+ * one pass over the results (or over the first rows, when
+ * printing a RowSource such as a QueryStream). Every line is built in the same
+ * char buffer and written through a buffered Writer.
+ */
+
+public class TextTablePrinter {
+    /** Rows looked at to size the columns of a RowSource. */
+    public static final int DEFAULT_SAMPLE_SIZE = 1000;
+
+    private static final String NULL_ENTRY = "<null>";
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final Writer out;
+    private char[] line = new char[256];
+    private int length;
+
+    public TextTablePrinter(Writer out) {
+        this.out = out;
+    }
+
+    /** Print to the stream (System.out, say) through a buffer. */
+    public TextTablePrinter(OutputStream out) {
+        this(new BufferedWriter(new OutputStreamWriter(out)));
+    }
+
+    /** Width of each column: its widest entry or name. */
+    public static int[] computeWidths(DBResults results) {
+        int columnCount = results.getColumnCount();
+        int[] widths = new int[columnCount];
+        widen(widths, results.getColumnNames());
+        int rowCount = results.getRowCount();
+        for(int row = 0; row < rowCount; ++row) {
+            for(int column = 0; column < columnCount; ++column) {
+                widths[column] = Math.max(widths[column],
+                        entryLength(results.getString(row, column)));
+            }
+        }
+        return widths;
+    }
+
+    /** Print the results with each column as wide as it needs to be. */
+    public void print(String tableName, DBResults results, boolean printMetaData) {
+        print(tableName, results, computeWidths(results), printMetaData);
+    }
+
+    /** Print the results with every column entryWidth wide. */
+    public void print(String tableName, DBResults results, int entryWidth,
+                      boolean printMetaData) {
+        int[] widths = new int[results.getColumnCount()];
+        Arrays.fill(widths, entryWidth);
+        print(tableName, results, widths, printMetaData);
+    }
+
+    public void print(String tableName, DBResults results, int[] widths,
+                      boolean printMetaData) {
+        try {
+            if(printMetaData) {
+                printLine("Database: " + results.getProductName());
+                printLine("Version: " + results.getProductVersion());
+                printLine("");
+            }
+            printTitle(tableName);
+            printSeparator(widths);
+            printRow(results.getColumnNames(), widths);
+            printSeparator(widths);
+            int rowCount = results.getRowCount();
+            for(int row = 0; row < rowCount; ++row) {
+                printRow(results.getRow(row), widths);
+            }
+            printSeparator(widths);
+            out.flush();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * Print rows as they are fetched. Column widths come from
+     * the first sampleSize rows, which are held back until the
+     * widths are known; a wider entry later on simply pushes
+     * its line out of alignment. Returns the number of rows printed.
+     */
+    public long print(String tableName, RowSource rows, int sampleSize) {
+        try {
+            List<String[]> sample = new ArrayList<>(Math.min(sampleSize, 1024));
+            while(sample.size() < sampleSize && rows.hasNext()) {
+                sample.add(rows.next());
+            }
+            int[] widths = new int[rows.getColumnCount()];
+            widen(widths, rows.getColumnNames());
+            for(String[] row : sample) {
+                widen(widths, row);
+            }
+            printTitle(tableName);
+            printSeparator(widths);
+            printRow(rows.getColumnNames(), widths);
+            printSeparator(widths);
+            for(String[] row : sample) {
+                printRow(row, widths);
+            }
+            sample.clear();
+            while(rows.hasNext()) {
+                printRow(rows.next(), widths);
+            }
+            printSeparator(widths);
+            out.flush();
+            return rows.getRowsRead();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    public long print(String tableName, RowSource rows) {
+        return print(tableName, rows, DEFAULT_SAMPLE_SIZE);
+    }
+
+    private static void widen(int[] widths, String[] entries) {
+        for(int i = 0; i < widths.length; ++i) {
+            widths[i] = Math.max(widths[i], entryLength(entries[i]));
+        }
+    }
+
+    private static int entryLength(String entry) {
+        return entry == null ? NULL_ENTRY.length() : entry.length();
+    }
+
+    private void printTitle(String tableName) throws IOException {
+        printLine(tableName + ":");
+        length = 0;
+        fill('=', tableName.length() + 1);
+        writeLine();
+    }
+
+    // A line of the form "+------+------+------+"
+    private void printSeparator(int[] widths) throws IOException {
+        length = 0;
+        append('+');
+        for(int width : widths) {
+            fill('-', width + 1);
+            append('+');
+        }
+        writeLine();
+    }
+
+    // A line of the form "| xxx | xxx | xxx |", entries right-aligned.
+    private void printRow(String[] entries, int[] widths) throws IOException {
+        length = 0;
+        append('|');
+        for(int i = 0; i < widths.length; ++i) {
+            String entry = entries[i] == null ? NULL_ENTRY : entries[i];
+            fill(' ', widths[i] - entry.length());
+            append(entry);
+            append(' ');
+            append('|');
+        }
+        writeLine();
+    }
+
+    private void printLine(String text) throws IOException {
+        out.write(text);
+        out.write(LINE_SEPARATOR);
+    }
+
+    private void writeLine() throws IOException {
+        out.write(line, 0, length);
+        out.write(LINE_SEPARATOR);
+    }
+
+    private void ensureCapacity(int extra) {
+        if(length + extra > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, length + extra));
+        }
+    }
+
+    private void append(char c) {
+        ensureCapacity(1);
+        line[length++] = c;
+    }
+
+    private void append(String text) {
+        int textLength = text.length();
+        ensureCapacity(textLength);
+        text.getChars(0, textLength, line, length);
+        length += textLength;
+    }
+
+    private void fill(char c, int count) {
+        if(count <= 0) {
+            return;
+        }
+        ensureCapacity(count);
+        Arrays.fill(line, length, length + count, c);
+        length += count;
+    }
+}
@@ -0,0 +1,23 @@
+package edu.jespinoza.coreservlets.cap18;
+
+import java.sql.SQLException;
+
+/**
+ * Wraps a SQLException thrown from a place that cannot
+ * declare it, such as Iterator.hasNext on a QueryStream.
+ */
+
+public class UncheckedSQLException extends RuntimeException {
+    public UncheckedSQLException(SQLException cause) {
+        super(cause);
+    }
+
+    public UncheckedSQLException(String message, SQLException cause) {
+        super(message, cause);
+    }
+
+    @Override
+    public synchronized SQLException getCause() {
+        return (SQLException) super.getCause();
+    }
+}
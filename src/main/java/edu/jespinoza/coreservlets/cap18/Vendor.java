@@ -0,0 +1,77 @@
+package edu.jespinoza.coreservlets.cap18;
+
+/**
+ * The databases DriverUtilities knows how to reach: the name
+ * used to pick one, the driver class, the default port and the
+ * form of the JDBC URL.
+ */
+
+public enum Vendor {
+    ORACLE(1, "oracle", "oracle.jdbc.driver.OracleDriver", "1521",
+            "jdbc:oracle:thin:@%s:%s:%s"),
+    POSTGRES(2, "postgres", "org.postgresql.Driver", "5432",
+            "jdbc:postgresql://%s:%s/%s"),
+    MYSQL(3, "mysql", "com.mysql.cj.jdbc.Driver", "3306",
+            "jdbc:mysql://%s:%s/%s");
+
+    private final int code;
+    private final String vendorName;
+    private final String driver;
+    private final String defaultPort;
+    private final String urlFormat;
+
+    Vendor(int code, String vendorName, String driver, String defaultPort,
+           String urlFormat) {
+        this.code = code;
+        this.vendorName = vendorName;
+        this.driver = driver;
+        this.defaultPort = defaultPort;
+        this.urlFormat = urlFormat;
+    }
+
+    /** The matching DriverUtilities int constant. */
+    public int getCode() {
+        return code;
+    }
+
+    public String getVendorName() {
+        return vendorName;
+    }
+
+    /** Fully qualified name of the JDBC driver class. */
+    public String getDriver() {
+        return driver;
+    }
+
+    public String getDefaultPort() {
+        return defaultPort;
+    }
+
+    /** The JDBC URL; a null or empty port means the default one. */
+    public String makeURL(String host, String port, String dbName) {
+        if(port == null || port.isEmpty()) {
+            port = defaultPort;
+        }
+        return String.format(urlFormat, host, port, dbName);
+    }
+
+    /** The vendor called vendorName (ignoring case), or null. */
+    public static Vendor forName(String vendorName) {
+        for(Vendor vendor : values()) {
+            if(vendor.vendorName.equalsIgnoreCase(vendorName)) {
+                return vendor;
+            }
+        }
+        return null;
+    }
+
+    /** The vendor with the given DriverUtilities constant, or null. */
+    public static Vendor forCode(int code) {
+        for(Vendor vendor : values()) {
+            if(vendor.code == code) {
+                return vendor;
+            }
+        }
+        return null;
+    }
+}
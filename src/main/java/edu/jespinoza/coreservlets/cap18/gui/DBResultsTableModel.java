@@ -1,19 +1,141 @@
 package edu.jespinoza.coreservlets.cap18.gui;
 
 import edu.jespinoza.coreservlets.cap18.DBResults;
+import edu.jespinoza.coreservlets.cap18.IncrementalQuery;
+import edu.jespinoza.coreservlets.cap18.ResultIndex;
 
 import javax.swing.table.AbstractTableModel;
+import java.util.List;
 
 /** Simple class that tells a JTable how to extract
  * relevant data from a DBResults object (which is
  * used to store the results from a database query).
+ * The rows can be shown sorted by any column (see sortBy),
+ * through the sorts a ResultIndex keeps, so switching back
+ * and forth between columns costs nothing after the first time.
  */
 
 public class DBResultsTableModel extends AbstractTableModel {
     private DBResults results;
+    private final ResultIndex index;
+    private boolean closed;
+    // The row numbers in display order, or null when unsorted.
+    private int[] order;
+    private int sortColumn = -1;
+    private boolean ascending;
 
     public DBResultsTableModel(DBResults results) {
         this.results = results;
+        index = new ResultIndex(results);
+    }
+
+    /** A model with no rows yet; see addRows. */
+    public DBResultsTableModel(String[] columnNames) {
+        this(new DBResults(null, null, null, columnNames.length, columnNames));
+    }
+
+    /**
+     * Append rows as they arrive from a query and tell the
+     * table about them. Call only on the event dispatch thread.
+     */
+    public void addRows(List<String[]> rows) {
+        if(rows.isEmpty() || closed) {
+            return;
+        }
+        int firstRow = results.getRowCount();
+        for(String[] row : rows) {
+            results.addRow(row);
+        }
+        if(order != null) {
+            // The new rows are merged into the sorted order.
+            order = index.sortedBy(sortColumn, ascending);
+            fireTableDataChanged();
+            return;
+        }
+        fireTableRowsInserted(firstRow, results.getRowCount() - 1);
+    }
+
+    /**
+     * Tell the table about the rows an IncrementalQuery has just
+     * merged into the results: only those rows are repainted, and
+     * a sort moves only those rows. Call only on the event
+     * dispatch thread.
+     */
+    public void rowsChanged(IncrementalQuery.Changes changes) {
+        if(closed || changes.isEmpty()) {
+            return;
+        }
+        index.rowsChanged(changes.getUpdatedRows());
+        if(order != null) {
+            order = index.sortedBy(sortColumn, ascending);
+            fireTableDataChanged();
+            return;
+        }
+        for(int row : changes.getUpdatedRows()) {
+            fireTableRowsUpdated(row, row);
+        }
+        if(changes.getInsertedCount() > 0) {
+            int firstRow = changes.getFirstInsertedRow();
+            fireTableRowsInserted(firstRow, firstRow + changes.getInsertedCount() - 1);
+        }
+    }
+
+    /**
+     * Sort by a column: ascending the first time, descending
+     * the second, and back to the order of the query the third.
+     * Call only on the event dispatch thread.
+     */
+    public void sortBy(int column) {
+        if(column != sortColumn) {
+            setSort(column, true);
+        } else if(ascending) {
+            setSort(column, false);
+        } else {
+            setSort(-1, true);
+        }
+    }
+
+    /** Sort by a column, or show the rows unsorted if column is -1. */
+    public void setSort(int column, boolean ascending) {
+        sortColumn = column;
+        this.ascending = ascending;
+        order = column < 0 ? null : index.sortedBy(column, ascending);
+        // Column names change too, but a structure change would
+        // reset the widths the user gave the columns; see
+        // QueryViewer for how the header is brought up to date.
+        fireTableDataChanged();
+    }
+
+    /** The column sorted by, or -1. */
+    public int getSortColumn() {
+        return sortColumn;
+    }
+
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    /** The row of the DBResults shown at a row of the table. */
+    public int getResultsRow(int rowIndex) {
+        return order == null ? rowIndex : order[rowIndex];
+    }
+
+    public ResultIndex getIndex() {
+        return index;
+    }
+
+    public DBResults getResults() {
+        return results;
+    }
+
+    /**
+     * Release the results (deleting any rows spilled to disk)
+     * once the table is no longer shown. Rows still arriving
+     * are ignored.
+     */
+    public void close() {
+        closed = true;
+        results.close();
     }
 
     @Override
@@ -28,11 +150,15 @@ public class DBResultsTableModel extends AbstractTableModel {
 
     @Override
     public String getColumnName(int column) {
-        return results.getColumnNames()[column];
+        String name = results.getColumnNames()[column];
+        if(column == sortColumn) {
+            name += ascending ? " \u25b2" : " \u25bc";
+        }
+        return name;
     }
 
     @Override
     public Object getValueAt(int rowIndex, int columnIndex) {
-        return results.getRow(rowIndex)[columnIndex];
+        return results.getString(getResultsRow(rowIndex), columnIndex);
     }
 }
\ No newline at end of file
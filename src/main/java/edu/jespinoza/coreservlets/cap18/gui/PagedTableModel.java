@@ -0,0 +1,153 @@
+package edu.jespinoza.coreservlets.cap18.gui;
+
+import edu.jespinoza.coreservlets.cap18.PagedQuery;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * A table model over a PagedQuery that only holds the pages
+ * the table has recently shown, so even a table with millions
+ * of rows costs a bounded amount of memory.
+ * <ul>
+ * 		<li>The row count comes from a COUNT query when the
+ * 			model is opened.</li>
+ * 		<li>A cell on a page that has not been fetched shows as
+ * 			"..." while the page (and the one after it) is loaded
+ * 			on a background thread; the table is repainted when
+ * 			it arrives.</li>
+ * 		<li>The most recently requested pages are loaded first,
+ * 			and only the MAX_PENDING newest requests are kept: older
+ * 			ones are dropped, so fast scrolling does not queue up
+ * 			pages nobody is looking at any more. A dropped page is
+ * 			requested again if it comes back into view.</li>
+ * 		<li>Only the maxPages most recently used pages are kept.</li>
+ * </ul>
+ */
+
+public class PagedTableModel extends AbstractTableModel {
+    public static final int DEFAULT_PAGE_SIZE = 200;
+    public static final int DEFAULT_MAX_PAGES = 20;
+    /** Page requests waiting to be loaded; older ones are dropped. */
+    public static final int MAX_PENDING = 6;
+    private static final String LOADING = "...";
+
+    private final PagedQuery source;
+    private final int rowCount;
+    private final int pageSize;
+    private final Map<Integer, List<String[]>> pages;
+    private final Set<Integer> requested = new HashSet<>();
+    private final LinkedBlockingDeque<Integer> pending = new LinkedBlockingDeque<>();
+    private final Thread loader;
+    private volatile boolean closed;
+
+    /**
+     * Wrap a PagedQuery, counting its rows first. This runs a
+     * query, so call it off the event dispatch thread.
+     */
+    public PagedTableModel(PagedQuery source, int pageSize, final int maxPages)
+            throws SQLException {
+        this.source = source;
+        this.pageSize = pageSize;
+        rowCount = (int) Math.min(source.countRows(), Integer.MAX_VALUE);
+        pages = new LinkedHashMap<Integer, List<String[]>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, List<String[]>> eldest) {
+                return size() > maxPages;
+            }
+        };
+        loader = new Thread(this::loadPages, "PoolDB-page-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return source.getColumnCount();
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return source.getColumnNames()[column];
+    }
+
+    @Override
+    public Object getValueAt(int rowIndex, int columnIndex) {
+        int page = rowIndex / pageSize;
+        List<String[]> rows = pages.get(page);
+        if(rows == null) {
+            request(page + 1);
+            request(page);
+            return LOADING;
+        }
+        int offset = rowIndex % pageSize;
+        return offset < rows.size() ? rows.get(offset)[columnIndex] : null;
+    }
+
+    // Newest requests go to the front of the queue, and the
+    // oldest fall off the back. Runs on the event dispatch thread,
+    // like everything else that touches requested.
+    private void request(int page) {
+        if(page * (long) pageSize >= rowCount || pages.containsKey(page)
+                || !requested.add(page)) {
+            return;
+        }
+        pending.offerFirst(page);
+        while(pending.size() > MAX_PENDING) {
+            Integer stale = pending.pollLast();
+            if(stale == null) {
+                break;
+            }
+            requested.remove(stale);
+        }
+    }
+
+    private void loadPages() {
+        while(!closed) {
+            int page;
+            try {
+                page = pending.takeFirst();
+            } catch (InterruptedException e) {
+                break;
+            }
+            final int pageNumber = page;
+            try {
+                final List<String[]> rows = source.fetchPage(
+                        (long) page * pageSize, pageSize);
+                SwingUtilities.invokeLater(() -> pageLoaded(pageNumber, rows));
+            } catch (SQLException sqle) {
+                System.err.println("Error loading page " + page + ": " + sqle);
+                SwingUtilities.invokeLater(() -> requested.remove(pageNumber));
+            }
+        }
+        source.close();
+    }
+
+    private void pageLoaded(int page, List<String[]> rows) {
+        requested.remove(page);
+        if(closed) {
+            return;
+        }
+        pages.put(page, rows);
+        int firstRow = page * pageSize;
+        fireTableRowsUpdated(firstRow, Math.min(firstRow + pageSize, rowCount) - 1);
+    }
+
+    /** Stop loading pages. */
+    public void close() {
+        closed = true;
+        loader.interrupt();
+    }
+}
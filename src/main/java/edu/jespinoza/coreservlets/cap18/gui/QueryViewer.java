@@ -1,20 +1,44 @@
 package edu.jespinoza.coreservlets.cap18.gui;
 
-import edu.jespinoza.coreservlets.cap18.DBResults;
-import edu.jespinoza.coreservlets.cap18.DatabaseUtilites;
+import edu.jespinoza.coreservlets.cap18.ConnectionPool;
 import edu.jespinoza.coreservlets.cap18.DriverUtilities;
+import edu.jespinoza.coreservlets.cap18.IncrementalQuery;
+import edu.jespinoza.coreservlets.cap18.PagedQuery;
+import edu.jespinoza.coreservlets.cap18.RoutingDataSource;
+import edu.jespinoza.coreservlets.cap18.Vendor;
 
 import javax.swing.*;
 import javax.swing.table.JTableHeader;
+import javax.swing.table.TableColumn;
+import javax.swing.table.TableColumnModel;
+import javax.swing.table.TableModel;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.sql.SQLException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 public class QueryViewer extends JFrame implements ActionListener {
-    private JTextField hostField, dbNameField, queryField, usernameField;
+    private JTextField hostField, dbNameField, queryField, usernameField, keyField,
+            watermarkField;
+    private JCheckBox pagedBox;
     private JRadioButton mySqlButton, postgresButton;
     private JPasswordField passwordField;
-    private JButton showResultsButton;
+    private JButton showResultsButton, cancelButton;
+    private JLabel statusLabel;
+    private JProgressBar progressBar;
+    private QueryWorker worker;
+    // Opening a paged table or refreshing by watermark, if under way.
+    private FetchWorker<?> fetch;
+    private PagedTableModel pagedModel;
+    private DBResultsTableModel resultsModel;
+    // The query shown incrementally, and what it was run against.
+    private IncrementalQuery incremental;
+    private String incrementalSource;
+    private int queryCount;
     private Container contentPane;
     private JPanel tablePanel;
 
@@ -24,63 +48,367 @@ public class QueryViewer extends JFrame implements ActionListener {
         addWindowListener(new ExitListener());
         contentPane = getContentPane();
         contentPane.add(makeControlPanel(), BorderLayout.NORTH);
+        contentPane.add(makeStatusPanel(), BorderLayout.SOUTH);
         pack();
         setLocationRelativeTo(null);
         setVisible(true);
     }
 
+    // A background fetch that Cancel can stop, like a QueryWorker:
+    // cancelQuery cancels the worker and the statement under way.
+    private abstract static class FetchWorker<T> extends SwingWorker<T, Void> {
+        // Set by doInBackground once there is a query to cancel.
+        volatile Runnable canceller;
+
+        void cancelQuery() {
+            Runnable running = canceller;
+            if(running != null) {
+                running.run();
+            }
+            cancel(false);
+        }
+    }
+
     @Override
     public void actionPerformed(ActionEvent e) {
+        if(e.getSource() == cancelButton) {
+            cancelQueries();
+            return;
+        }
         String host = hostField.getText();
         String dbName = dbNameField.getText();
         String username = usernameField.getText();
         String password = String.valueOf(passwordField.getPassword());
         String query = queryField.getText();
-        int vendor;
+        Vendor vendor;
         if(postgresButton.isSelected()) {
-            vendor = DriverUtilities.POSTGRES;
+            vendor = Vendor.POSTGRES;
         } else {
-            vendor = DriverUtilities.MYSQL;
+            vendor = Vendor.MYSQL;
+        }
+        String watermarkColumn = watermarkField.getText().trim();
+        boolean byWatermark = !pagedBox.isSelected() && !watermarkColumn.isEmpty();
+        // Checked before anything changes, so an earlier query
+        // still running carries on and finishes as usual.
+        if(byWatermark && keyField.getText().trim().isEmpty()) {
+            statusLabel.setText("Give a key column to refresh by watermark");
+            return;
         }
+        cancelQueries();
+        // Anything still to come from an earlier query is ignored.
+        final int queryNumber = ++queryCount;
+        if(host == null || host.isEmpty() || dbName == null || dbName.isEmpty()
+            || username == null || username.isEmpty()
+            || password == null || password.isEmpty()
+            || query == null || query.isEmpty()) {
+            setRunning(false);
+            statusLabel.setText(" ");
+            showTablePanel(makeErrorPanel());
+            return;
+        }
+        String driver = vendor.getDriver();
+        // Several hosts are a primary and its read replicas.
+        String[] urls = DriverUtilities.makeURLs(host, "", dbName, vendor.getCode());
+        if(pagedBox.isSelected()) {
+            openPagedTable(queryNumber, driver, urls, username, password,
+                    query, keyField.getText());
+            return;
+        }
+        if(byWatermark) {
+            refreshIncremental(queryNumber, driver, urls, username, password,
+                    query, keyField.getText().trim(), watermarkColumn);
+            return;
+        }
+        // The query runs in the background; rows are added to
+        // the table as they arrive (see QueryWorker).
+        fetch = null;
+        worker = new QueryWorker(driver, urls, username, password, query,
+                new QueryWorker.Listener() {
+            @Override
+            public void started(DBResultsTableModel model) {
+                if(queryNumber == queryCount) {
+                    showTablePanel(makeTablePanel(model));
+                    resultsModel = model;
+                } else {
+                    model.close();
+                }
+            }
+
+            @Override
+            public void progress(long rowCount, double rowsPerSecond) {
+                if(queryNumber == queryCount) {
+                    statusLabel.setText(String.format("%,d rows (%,.0f rows/s)",
+                            rowCount, rowsPerSecond));
+                }
+            }
+
+            @Override
+            public void finished(long rowCount, String message) {
+                if(queryNumber != queryCount) {
+                    return;
+                }
+                setRunning(false);
+                statusLabel.setText(message);
+                if(rowCount < 0 && tablePanel == null) {
+                    showTablePanel(makeErrorPanel());
+                }
+            }
+        });
         if(tablePanel != null) {
             contentPane.remove(tablePanel);
+            tablePanel = null;
+        }
+        closeModels();
+        setRunning(true);
+        statusLabel.setText("Running query...");
+        worker.execute();
+    }
+
+    // Page through the results instead of loading them all:
+    // only the rows being looked at are fetched and kept (see
+    // PagedTableModel). Counting the rows happens in the background.
+    private void openPagedTable(final int queryNumber, final String driver,
+                                final String[] urls, final String username,
+                                final String password, final String query,
+                                final String keyColumn) {
+        worker = null;
+        setRunning(true);
+        statusLabel.setText("Counting rows...");
+        fetch = new FetchWorker<PagedTableModel>() {
+            // The model, once made, so it can be closed if cancelled.
+            private volatile PagedTableModel opened;
+
+            @Override
+            protected PagedTableModel doInBackground() throws Exception {
+                ConnectionPool pool = RoutingDataSource.getPool(driver, urls,
+                        username, password, query);
+                PagedQuery source = new PagedQuery(pool, query, keyColumn);
+                canceller = source::cancel;
+                if(isCancelled()) {
+                    throw new CancellationException();
+                }
+                try {
+                    opened = new PagedTableModel(source,
+                            PagedTableModel.DEFAULT_PAGE_SIZE,
+                            PagedTableModel.DEFAULT_MAX_PAGES);
+                } catch (SQLException sqle) {
+                    source.close();
+                    throw sqle;
+                }
+                if(isCancelled()) {
+                    opened.close();
+                }
+                return opened;
+            }
+
+            @Override
+            protected void done() {
+                PagedTableModel model;
+                try {
+                    model = get();
+                } catch (CancellationException e) {
+                    if(opened != null) {
+                        opened.close();
+                    }
+                    if(queryNumber == queryCount) {
+                        setRunning(false);
+                        statusLabel.setText("Cancelled");
+                    }
+                    return;
+                } catch (InterruptedException | ExecutionException e) {
+                    System.err.println("Error opening query: " + e);
+                    if(queryNumber == queryCount) {
+                        setRunning(false);
+                        statusLabel.setText("Error: " + e.getMessage());
+                        showTablePanel(makeErrorPanel());
+                    }
+                    return;
+                }
+                if(queryNumber != queryCount) {
+                    model.close();
+                    return;
+                }
+                setRunning(false);
+                statusLabel.setText(String.format("%,d rows", model.getRowCount()));
+                showTablePanel(makeTablePanel(model));
+                pagedModel = model;
+            }
+        };
+        fetch.execute();
+    }
+
+    // Show the query's results, or, if they are already shown,
+    // fetch just the rows past the watermark and merge them in
+    // (see IncrementalQuery).
+    private void refreshIncremental(final int queryNumber, final String driver,
+                                    final String[] urls, final String username,
+                                    final String password, final String query,
+                                    final String keyColumn,
+                                    final String watermarkColumn) {
+        final String source = String.join(",", urls) + '\n' + username + '\n' + query + '\n'
+                + keyColumn + '\n' + watermarkColumn;
+        final IncrementalQuery shown = source.equals(incrementalSource)
+                && resultsModel != null ? incremental : null;
+        worker = null;
+        setRunning(true);
+        statusLabel.setText(shown == null ? "Running query..." : "Refreshing...");
+        fetch = new FetchWorker<IncrementalQuery.Changes>() {
+            private IncrementalQuery target = shown;
+
+            @Override
+            protected IncrementalQuery.Changes doInBackground() throws Exception {
+                if(target == null) {
+                    ConnectionPool pool = RoutingDataSource.getPool(driver, urls,
+                            username, password, query);
+                    target = new IncrementalQuery(pool, query, keyColumn,
+                            watermarkColumn);
+                }
+                canceller = target::cancel;
+                if(isCancelled()) {
+                    throw new CancellationException();
+                }
+                return target.fetchChanges();
+            }
+
+            @Override
+            protected void done() {
+                // Changes not merged are simply fetched again next time.
+                if(queryNumber != queryCount) {
+                    return;
+                }
+                setRunning(false);
+                IncrementalQuery.Changes changes;
+                try {
+                    changes = get();
+                    target.merge(changes);
+                } catch (CancellationException e) {
+                    statusLabel.setText("Cancelled");
+                    return;
+                } catch (InterruptedException | ExecutionException
+                        | RuntimeException e) {
+                    System.err.println("Error refreshing query: " + e);
+                    statusLabel.setText("Error: " + e.getMessage());
+                    return;
+                }
+                int rowCount = target.getResults().getRowCount();
+                if(shown == null) {
+                    DBResultsTableModel model =
+                            new DBResultsTableModel(target.getResults());
+                    showTablePanel(makeTablePanel(model));
+                    resultsModel = model;
+                    incremental = target;
+                    incrementalSource = source;
+                    statusLabel.setText(String.format("%,d rows", rowCount));
+                } else {
+                    resultsModel.rowsChanged(changes);
+                    statusLabel.setText(String.format("%,d rows (%,d new, %,d changed)",
+                            rowCount, changes.getInsertedCount(),
+                            changes.getUpdatedRows().length));
+                }
+            }
+        };
+        fetch.execute();
+    }
+
+    private void cancelQueries() {
+        if(worker != null) {
+            worker.cancelQuery();
         }
-        tablePanel = makeTablePanel(host, dbName, vendor, username, password, query);
+        if(fetch != null) {
+            fetch.cancelQuery();
+        }
+    }
+
+    private void showTablePanel(JPanel panel) {
+        if(tablePanel != null) {
+            contentPane.remove(tablePanel);
+        }
+        closeModels();
+        tablePanel = panel;
         contentPane.add(tablePanel, BorderLayout.CENTER);
         pack();
     }
 
-    private JPanel makeTablePanel(String host, String dbName, int vendor,
-                                  String username, String password,
-                                  String query) {
-        JPanel panel = new JPanel(new BorderLayout());
-        if(host == null || host.isEmpty() || dbName == null || dbName.isEmpty()
-            || vendor == -1 || username == null || username.isEmpty()
-            || password == null || password.isEmpty()
-            || query == null || query.isEmpty()) {
-            panel.add(makeErrorLabel());
-            return panel;
+    // Stop paging and drop any rows spilled to disk for the
+    // table that is going away.
+    private void closeModels() {
+        if(pagedModel != null) {
+            pagedModel.close();
+            pagedModel = null;
         }
-        String driver = DriverUtilities.getDriver(vendor);
-        String url = DriverUtilities.makeURL(host, "", dbName, vendor);
-        DBResults results = DatabaseUtilites.getQueryResults(driver, url,
-                username, password, query, true);
-        if(results == null) {
-            panel.add(makeErrorLabel());
-            return panel;
+        if(resultsModel != null) {
+            resultsModel.close();
+            resultsModel = null;
         }
-        DBResultsTableModel model = new DBResultsTableModel(results);
+        incremental = null;
+        incrementalSource = null;
+    }
+
+    private void setRunning(boolean running) {
+        cancelButton.setEnabled(running);
+        progressBar.setIndeterminate(running);
+        progressBar.setVisible(running);
+    }
+
+    private JPanel makeTablePanel(TableModel model) {
+        JPanel panel = new JPanel(new BorderLayout());
         JTable table = new JTable(model);
         table.setFont(new Font("Serif", Font.PLAIN, 17));
         table.setRowHeight(28);
+        table.setPreferredScrollableViewportSize(new Dimension(700, 28 * 12));
         JTableHeader header = table.getTableHeader();
         header.setFont(new Font("SansSerif", Font.BOLD, 13));
-        panel.add(table, BorderLayout.CENTER);
-        panel.add(header, BorderLayout.NORTH);
+        if(model instanceof DBResultsTableModel) {
+            // Clicking a heading sorts by that column, in memory.
+            DBResultsTableModel sortable = (DBResultsTableModel) model;
+            header.addMouseListener(new MouseAdapter() {
+                @Override
+                public void mouseClicked(MouseEvent event) {
+                    int column = header.columnAtPoint(event.getPoint());
+                    if(column < 0) {
+                        return;
+                    }
+                    sortable.sortBy(table.convertColumnIndexToModel(column));
+                    TableColumnModel columns = table.getColumnModel();
+                    for(int i = 0; i < columns.getColumnCount(); ++i) {
+                        TableColumn tableColumn = columns.getColumn(i);
+                        tableColumn.setHeaderValue(
+                                model.getColumnName(tableColumn.getModelIndex()));
+                    }
+                    header.repaint();
+                }
+            });
+        }
+        panel.add(new JScrollPane(table), BorderLayout.CENTER);
         panel.setBorder(BorderFactory.createTitledBorder("Query Results"));
         return panel;
     }
 
+    private JPanel makeErrorPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.add(makeErrorLabel());
+        return panel;
+    }
+
+    // Row count, rows per second and the Cancel button.
+    // Placed at the bottom of the window.
+    private JPanel makeStatusPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        statusLabel = new JLabel(" ");
+        progressBar = new JProgressBar();
+        progressBar.setVisible(false);
+        cancelButton = new JButton("Cancel");
+        cancelButton.setEnabled(false);
+        cancelButton.addActionListener(this);
+        JPanel east = new JPanel();
+        east.add(progressBar);
+        east.add(cancelButton);
+        panel.add(statusLabel, BorderLayout.CENTER);
+        panel.add(east, BorderLayout.EAST);
+        panel.setBorder(BorderFactory.createEmptyBorder(2, 6, 2, 6));
+        return panel;
+    }
+
     private JPanel makeControlPanel() {
         JPanel panel = new JPanel(new GridLayout(0, 1));
         panel.add(makeHostPanel());
@@ -97,6 +425,7 @@ public class QueryViewer extends JFrame implements ActionListener {
         JPanel panel = new JPanel();
         panel.add(new JLabel("Host:"));
         hostField = new JTextField(15);
+        hostField.setToolTipText("A host, or a primary then its read replicas, separated by commas");
         panel.add(hostField);
         panel.add(new JLabel("DB Name:"));
         dbNameField = new JTextField(15);
@@ -125,12 +454,24 @@ public class QueryViewer extends JFrame implements ActionListener {
         return panel;
     }
 
+    // The query textfield, plus the option to page through
+    // huge results by an (optional) unique key column, or to
+    // refresh them by a watermark column.
     private JPanel makeQueryPanel() {
         JPanel panel = new JPanel();
         queryField = new JTextField(40);
         queryField.addActionListener(this);
         panel.add(new JLabel("Query:"));
         panel.add(queryField);
+        pagedBox = new JCheckBox("Paged");
+        panel.add(pagedBox);
+        panel.add(new JLabel("Key:"));
+        keyField = new JTextField(8);
+        panel.add(keyField);
+        panel.add(new JLabel("Watermark:"));
+        watermarkField = new JTextField(8);
+        watermarkField.setToolTipText("Refresh by fetching only rows past this column's highest value");
+        panel.add(watermarkField);
         return panel;
     }
 
@@ -0,0 +1,141 @@
+package edu.jespinoza.coreservlets.cap18.gui;
+
+import edu.jespinoza.coreservlets.cap18.ConnectionPool;
+import edu.jespinoza.coreservlets.cap18.DatabaseUtilites;
+import edu.jespinoza.coreservlets.cap18.QueryStream;
+import edu.jespinoza.coreservlets.cap18.RoutingDataSource;
+
+import javax.swing.*;
+import java.sql.Connection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Runs a query off the event dispatch thread and feeds the rows
+ * to a table model in chunks as they are fetched, so the window
+ * stays responsive and the first rows show up right away.
+ * cancelQuery asks the database to abort the statement.
+ */
+
+public class QueryWorker extends SwingWorker<Long, String[]> {
+    /** Rows the driver fetches per round trip. */
+    public static final int FETCH_SIZE = 500;
+
+    private final String driver;
+    private final String[] urls;
+    private final String username;
+    private final String password;
+    private final String query;
+    private final Listener listener;
+    private volatile QueryStream rows;
+    private DBResultsTableModel model;
+    private final long startTime;
+    private long rowsShown;
+
+    /** What the viewer hears about the query, always on the EDT. */
+    public interface Listener {
+        /** The query is running; rows will be added to model. */
+        void started(DBResultsTableModel model);
+
+        void progress(long rowCount, double rowsPerSecond);
+
+        /** rowCount is -1 if the query failed or was cancelled. */
+        void finished(long rowCount, String message);
+    }
+
+    public QueryWorker(String driver, String url,
+                       String username, String password,
+                       String query, Listener listener) {
+        this(driver, new String[] {url}, username, password, query, listener);
+    }
+
+    /**
+     * Like the previous constructor, for a primary and its read
+     * replicas (see RoutingDataSource.getPool).
+     */
+    public QueryWorker(String driver, String[] urls,
+                       String username, String password,
+                       String query, Listener listener) {
+        this.driver = driver;
+        this.urls = urls;
+        this.username = username;
+        this.password = password;
+        this.query = query;
+        this.listener = listener;
+        startTime = System.nanoTime();
+    }
+
+    @Override
+    protected Long doInBackground() throws Exception {
+        // Even getting the pool may mean opening connections,
+        // so that happens here too, not on the EDT.
+        ConnectionPool pool = RoutingDataSource.getPool(driver, urls,
+                username, password, query);
+        try (Connection connection = pool.getConnection();
+             QueryStream stream = DatabaseUtilites.streamQueryResults(connection,
+                     query, FETCH_SIZE)) {
+            rows = stream;
+            final String[] columnNames = stream.getColumnNames();
+            // Queued before any rows are published, so the
+            // model exists by the time process is called.
+            SwingUtilities.invokeLater(() -> {
+                model = new DBResultsTableModel(columnNames);
+                listener.started(model);
+            });
+            while(!isCancelled() && stream.hasNext()) {
+                publish(stream.next());
+            }
+            return stream.getRowsRead();
+        } finally {
+            rows = null;
+        }
+    }
+
+    @Override
+    protected void process(List<String[]> chunk) {
+        if(isCancelled()) {
+            return;
+        }
+        model.addRows(chunk);
+        rowsShown += chunk.size();
+        listener.progress(rowsShown, rowsPerSecond(rowsShown));
+    }
+
+    @Override
+    protected void done() {
+        try {
+            long rowCount = get();
+            listener.finished(rowCount, rowCount + " rows in "
+                    + String.format("%.1f", elapsedSeconds()) + " s");
+        } catch (CancellationException e) {
+            listener.finished(-1, "Cancelled after " + rowsShown + " rows");
+        } catch (InterruptedException e) {
+            listener.finished(-1, "Interrupted");
+        } catch (ExecutionException e) {
+            System.err.println("Error running query: " + e.getCause());
+            listener.finished(-1, "Error: " + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Stop the query: the database is told to abort the
+     * statement, which unblocks a fetch in progress.
+     */
+    public void cancelQuery() {
+        QueryStream stream = rows;
+        if(stream != null) {
+            stream.cancel();
+        }
+        cancel(false);
+    }
+
+    private double rowsPerSecond(long rowCount) {
+        double seconds = elapsedSeconds();
+        return seconds > 0 ? rowCount / seconds : 0;
+    }
+
+    private double elapsedSeconds() {
+        return (System.nanoTime() - startTime) / 1e9;
+    }
+}